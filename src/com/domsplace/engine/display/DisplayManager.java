@@ -7,10 +7,19 @@
  */
 package com.domsplace.engine.display;
 
+import com.domsplace.engine.display.backend.RenderBackend;
+import com.domsplace.engine.display.batch.InstancedSpriteRenderer;
+import com.domsplace.engine.display.batch.ParticleRenderer;
+import com.domsplace.engine.display.batch.RenderWorkers;
+import com.domsplace.engine.display.batch.SpriteBatch;
+import com.domsplace.engine.display.batch.StreamBuffer;
+import com.domsplace.engine.display.post.PostProcessor;
 import com.domsplace.engine.display.shader.ShaderProgram;
 import com.domsplace.engine.display.texture.Texture;
+import com.domsplace.engine.display.texture.TextureAtlas;
 import com.domsplace.engine.game.Game;
 import com.domsplace.engine.game.GameInfo;
+import com.domsplace.engine.gui.PerformanceOverlay;
 import com.domsplace.engine.input.KeyManager;
 import com.domsplace.engine.scene.GameScene;
 import com.domsplace.engine.utilities.ColorUtilities;
@@ -19,14 +28,13 @@ import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import static org.lwjgl.glfw.GLFW.*;
+import org.lwjgl.BufferUtils;
 import org.lwjgl.glfw.*;
 import static org.lwjgl.opengl.EXTFramebufferObject.*;
-import static org.lwjgl.opengl.EXTTextureFilterAnisotropic.GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT;
-import static org.lwjgl.opengl.EXTTextureFilterAnisotropic.GL_TEXTURE_MAX_ANISOTROPY_EXT;
 import org.lwjgl.opengl.GL;
 import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL13.*;
 import org.lwjgl.opengl.GL14;
+import static org.lwjgl.stb.STBImageWrite.stbi_write_png;
 
 /**
  * DisplayManager handles the main graphics processing, and is what loops the 
@@ -60,6 +68,9 @@ public final class DisplayManager {
     private int sceneBufferFBID;//FrameBuffer ID
     private int sceneBufferCRID;//ColorBuffer ID
     private int sceneBufferDPID;//DepthBuffer ID
+    private int presentedFBID;//Whatever was presented last frame, scene or post output
+    
+    private boolean headless;
     
     private boolean disposed = false;
     
@@ -73,8 +84,12 @@ public final class DisplayManager {
     
     public int getWidth() {return this.width;}
     public int getHeight() {return this.height;}
+    //Part of the scene FBO actually rendered into, smaller under dynamic resolution
+    public int getRenderWidth() {return DynamicResolution.getInstance().getRenderWidth(this.width);}
+    public int getRenderHeight() {return DynamicResolution.getInstance().getRenderHeight(this.height);}
     
     public boolean isDisposed() {return disposed;}
+    public boolean isHeadless() {return this.headless;}
     
     public void setup(Game game) throws Exception {
         if(!Thread.currentThread().equals(game.getMainThread())) throw new Exception("This is not the main thread, cannot setup.");
@@ -112,65 +127,99 @@ public final class DisplayManager {
             height = WINDOW_HEIGHT;
         }
         
+        //Headless never shows the window or presents, everything stays in the
+        //scene FBO. Still needs a display for GLFW, Xvfb (with Mesa llvmpipe if
+        //there's no GPU) does the job, or headless_context egl.
+        GameInfo info = GameInfo.getGameInfo();
+        this.headless = info.getBooleanValue("headless", false);
+        boolean egl = this.headless && info.getValue("headless_context", "native").trim().equalsIgnoreCase("egl");
+        if(this.headless) logger.log(Level.INFO, "Running headless ({0} context).", egl ? "EGL" : "native");
+        
         // Create the game window
-        this.window = new GLFWWindow(WINDOW_WIDTH, WINDOW_HEIGHT, game.getName());
+        this.window = new GLFWWindow(WINDOW_WIDTH, WINDOW_HEIGHT, game.getName(), false, glfwGetPrimaryMonitor(), egl);
         this.window.setContextCurrent();
         
         //Setup our GL stuff
         GL.createCapabilities();
-        glEnable(GL_COLOR_MATERIAL);
-        glEnable(GL_TEXTURE_2D);
-        glEnable(GL_BLEND);
-        glActiveTexture(GL_TEXTURE0);
-        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
-        glHint(GL_PERSPECTIVE_CORRECTION_HINT, GL_NICEST);
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        gl.enable(GL_COLOR_MATERIAL);
+        gl.enable(GL_TEXTURE_2D);
+        gl.enable(GL_BLEND);
+        GLStateCache cache = GLStateCache.getInstance();
+        cache.invalidate();//Fresh context, nothing we knew is valid.
+        cache.activeTexture(0);
+        cache.blendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+        gl.hint(GL_PERSPECTIVE_CORRECTION_HINT, GL_NICEST);
+        gl.matrixMode(GL_MODELVIEW);
+        gl.loadIdentity();
         
         //We need to load our default Shader here.
         ShaderProgram.getDefaultShader().bind();//Basically loads it.
         
         //Now we need the buffer that we're going to render the scene to.
-        this.sceneBufferCRID = glGenTextures();
-        this.sceneBufferDPID = glGenRenderbuffersEXT();
-        this.sceneBufferFBID = glGenFramebuffersEXT();
-        
-        //Initialize the buffers
-        float f = glGetFloat(GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT);//Texture filtering
-        glBindFramebufferEXT(GL_FRAMEBUFFER_EXT, this.sceneBufferFBID);
-        glBindTexture(GL_TEXTURE_2D, this.sceneBufferCRID);
-        glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-        glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-        if(f > 0) glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MAX_ANISOTROPY_EXT, f);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, width,height, 0,GL_RGB, GL_INT, (ByteBuffer)null);//Use RGBA if you want THIS TEXTURE to have alpha channels stored.
-        glFramebufferTexture2DEXT(GL_FRAMEBUFFER_EXT,GL_COLOR_ATTACHMENT0_EXT,GL_TEXTURE_2D, sceneBufferCRID, 0);
-        glBindRenderbufferEXT(GL_RENDERBUFFER_EXT, sceneBufferDPID);
-        glRenderbufferStorageEXT(GL_RENDERBUFFER_EXT, GL14.GL_DEPTH_COMPONENT24, width, height);
-        glFramebufferRenderbufferEXT(GL_FRAMEBUFFER_EXT,GL_DEPTH_ATTACHMENT_EXT,GL_RENDERBUFFER_EXT, sceneBufferDPID);
+        this.sceneBufferCRID = gl.genTexture();
+        this.sceneBufferDPID = gl.genRenderbuffer();
+        this.sceneBufferFBID = gl.genFramebuffer();
+        
+        //Initialize the buffers, no mipmaps so the filter mustn't use them.
+        cache.bindFramebuffer(this.sceneBufferFBID);
+        cache.bindTexture(0, this.sceneBufferCRID);
+        gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        gl.texImage2D(GL_TEXTURE_2D, 0, GL_RGB, width,height, 0,GL_RGB, GL_INT, null);//Use RGBA if you want THIS TEXTURE to have alpha channels stored.
+        gl.framebufferTexture2D(GL_FRAMEBUFFER_EXT,GL_COLOR_ATTACHMENT0_EXT,GL_TEXTURE_2D, sceneBufferCRID, 0);
+        gl.bindRenderbuffer(GL_RENDERBUFFER_EXT, sceneBufferDPID);
+        gl.renderbufferStorage(GL_RENDERBUFFER_EXT, GL14.GL_DEPTH_COMPONENT24, width, height);
+        gl.framebufferRenderbuffer(GL_FRAMEBUFFER_EXT,GL_DEPTH_ATTACHMENT_EXT,GL_RENDERBUFFER_EXT, sceneBufferDPID);
 
         //Reset to main frame buffer
-        glBindFramebufferEXT(GL_FRAMEBUFFER_EXT, 0);
+        cache.bindFramebuffer(0);
+        
+        //Work out the letterbox, GLFWWindow redoes this on resize.
+        PresentStage.getInstance().resize(this.window.getWidth(), this.window.getHeight(), width, height);
     }
     
     public void start(Game game) throws Exception {
         if(!Thread.currentThread().equals(game.getMainThread())) throw new Exception("This is not the main thread, cannot start.");
         
         //DisplayManager was requested to start.
-        window.show();
-        window.setPosition(64, 64);
+        if(!this.headless) {
+            window.show();
+            window.setPosition(64, 64);
+        }
         
         //Vsync?
         boolean vsync = false;
         if(GameInfo.getGameInfo().isValueSet("vsync")) vsync = GameInfo.getGameInfo().getValue("vsync").equalsIgnoreCase("true");
-        if(vsync) glfwSwapInterval(1);
+        if(vsync && !this.headless) glfwSwapInterval(1);
+        
+        //Nobody is going to close a window they can't see, so headless runs
+        //can stop themselves after a number of frames (0 runs forever).
+        int frames = this.headless ? GameInfo.getGameInfo().getIntValue("headless_frames", 0) : 0;
+        long frame = 0;
         
         //Can't remember what this does, but it's important!... probably
-        glClearColor(1.0f, 1.0f, 1.0f, 1.0f);//Set our default clear color.
+        RenderBackend.getActiveBackend().clearColor(1.0f, 1.0f, 1.0f, 1.0f);//Set our default clear color.
         
-        while(!window.isCloseRequested()) {
+        FrameLimiter limiter = FrameLimiter.getInstance();
+        while(!window.isCloseRequested() && (frames <= 0 || frame < frames)) {
             try {
                 game.run();
             } catch(Exception e) {
                 logger.log(Level.SEVERE, "Failed to render!", e);
             }
+            limiter.sync();//target_fps in gameinfo.txt, 0 is uncapped
+            frame++;
+        }
+        
+        //Golden image of the last frame, for comparing on CI
+        if(this.headless && GameInfo.getGameInfo().isValueSet("headless_capture")) {
+            String path = GameInfo.getGameInfo().getValue("headless_capture");
+            if(this.saveScene(path)) {
+                logger.log(Level.INFO, "Saved last frame to {0}.", path);
+            } else {
+                logger.log(Level.SEVERE, "Failed to save last frame to {0}.", path);
+            }
         }
         if(GameScene.getActiveScene() instanceof GameScene) GameScene.getActiveScene().dispose();
         logger.log(Level.INFO, "Window was requested to close.");
@@ -191,7 +240,13 @@ public final class DisplayManager {
             window.setTitle(title);
         }
         
+        GPUProfiler profiler = GPUProfiler.getInstance();
+        profiler.beginFrame();
+        DynamicResolution dynamic = DynamicResolution.getInstance();
+        dynamic.update();
+        
         //Upload all pending textures.
+        profiler.begin(GPUProfiler.UPLOAD);
         for(Texture t : Texture.getTexturesToUpload()) {
             if(t == null) continue;
             t.upload();
@@ -199,55 +254,61 @@ public final class DisplayManager {
         Texture.unbind();
         
         //Bind the Scene's FBO
-        glBindFramebufferEXT(GL_FRAMEBUFFER_EXT, this.sceneBufferFBID);
+        GLStateCache cache = GLStateCache.getInstance();
+        cache.bindFramebuffer(this.sceneBufferFBID);
         
         //Now render the scene to the FBO
-        glPushMatrix();
-        glPushAttrib(GL_VIEWPORT_BIT);
-        this.setupMatrices(width, height, c);
+        int renderWidth = this.getRenderWidth();
+        int renderHeight = this.getRenderHeight();
+        this.setupMatrices(renderWidth, renderHeight, width, height, c);
+        profiler.begin(GPUProfiler.SCENE);
+        SpriteBatch.getInstance().begin();
+        InstancedSpriteRenderer.getInstance().begin();
+        ParticleRenderer.getInstance().begin();
         if(scene instanceof GameScene) {
             GameScene.getActiveScene().render();
         }
-        glPopAttrib();
-        glPopMatrix();
+        SpriteBatch.getInstance().end();
+        InstancedSpriteRenderer.getInstance().end();
+        ParticleRenderer.getInstance().end();
+        StreamBuffer.getInstance().endFrame();
         
         //Unbind our texture (A bit of cleanup)
         Texture.unbind();
         //Dunno why, the ShaderProgram was causing some issues
         ShaderProgram.unbindProgram();
         
-        //Bind the FBO
-        glBindFramebufferEXT(GL_FRAMEBUFFER_EXT, 0);
-        glBindTexture(GL_TEXTURE_2D, this.sceneBufferCRID);
-        
-        //Now render the scenes fbo to a quad
-        glPushMatrix();
-        glPushAttrib(GL_VIEWPORT_BIT);
-        this.setupMatrices(window.getWidth(), window.getHeight(), Color.BLACK);
-        
-        //Fun Part, Here we get to resize our quad
-        float ww = (float)window.getWidth();
-        float wh = (float)window.getHeight();
-        float qw = 0;
-        float qh = 0;
-        float qx = 0;
-        float qy = 0;
-        float ratio = ((float)WINDOW_WIDTH)/((float)WINDOW_HEIGHT);
-        if((ww/wh) > ((float)width/(float)height)) {
-            qw = wh*ratio;
-            qh = wh;
-            qx = (ww/2) - (qw/2);
-            qy = 0;
-        } else {
-            qw = ww;
-            qh = ww/ratio;
-            qx = 0;
-            qy = (wh/2)-(qh/2);
+        //Post processing, the output replaces the scene FBO if anything ran
+        int presentFBID = this.sceneBufferFBID;
+        int presentCRID = this.sceneBufferCRID;
+        PostProcessor post = PostProcessor.getInstance();
+        profiler.begin(GPUProfiler.POST);
+        if(post.process(this.sceneBufferCRID, renderWidth, renderHeight, width, height)) {
+            presentFBID = post.getOutputFramebuffer();
+            presentCRID = post.getOutputTexture();
+        }
+        this.presentedFBID = presentFBID;
+        
+        //Copy the scene onto the window
+        if(!this.headless) {
+            profiler.begin(GPUProfiler.PRESENT);
+            PresentStage.getInstance().present(presentFBID, presentCRID, renderWidth, renderHeight);
+            
+            //Drawn onto the window itself, outside everything measured above
+            PerformanceOverlay overlay = PerformanceOverlay.getInstance();
+            if(overlay.isVisible()) {
+                profiler.begin(GPUProfiler.OVERLAY);
+                overlay.draw(this.window.getWidth(), this.window.getHeight());
+            }
         }
-        simpleQuad(qx,qy,(int)qw,(int)qh,Color.white);
+        profiler.endFrame();
         
-        glPopAttrib();
-        glPopMatrix();
+        if(this.headless) {
+            //No swap to pace us, wait for the frame so frame times are real.
+            RenderBackend.getActiveBackend().finish();
+            glfwPollEvents();
+            return;
+        }
         
         //Swap and shuffle
         this.window.swapBuffers();
@@ -258,6 +319,14 @@ public final class DisplayManager {
         if(!Thread.currentThread().equals(game.getMainThread())) throw new Exception("This is not the main thread, cannot stop.");
         this.disposed = true;
         
+        RenderWorkers.getInstance().dispose();
+        GPUProfiler.getInstance().dispose();
+        DynamicResolution.getInstance().dispose();
+        PostProcessor.getInstance().dispose();
+        InstancedSpriteRenderer.getInstance().dispose();
+        ParticleRenderer.getInstance().dispose();
+        StreamBuffer.getInstance().dispose();
+        TextureAtlas.getInstance().dispose();
         if(this.window instanceof GLFWWindow) this.window.dispose();
         
         GLFW.glfwSetErrorCallback(null);
@@ -266,50 +335,106 @@ public final class DisplayManager {
         glfwTerminate();
     }
     
+    /**
+     * Reads back what was presented last frame (after post processing), the
+     * getRenderWidth() x getRenderHeight() pixels as RGBA, top row first.
+     * Stalls until the GPU is done, so it's for tests and tools not gameplay.
+     */
+    public ByteBuffer captureScene() {
+        int w = this.getRenderWidth();
+        int h = this.getRenderHeight();
+        ByteBuffer pixels = BufferUtils.createByteBuffer(w * h * 4);
+        GLStateCache cache = GLStateCache.getInstance();
+        int previous = cache.getFramebuffer();
+        cache.bindFramebuffer(this.presentedFBID != 0 ? this.presentedFBID : this.sceneBufferFBID);
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        gl.pixelStorei(GL_PACK_ALIGNMENT, 1);
+        gl.readPixels(0, 0, w, h, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+        cache.bindFramebuffer(previous);
+        
+        //GL reads bottom up, flip it
+        int stride = w * 4;
+        byte[] top = new byte[stride];
+        byte[] bottom = new byte[stride];
+        for(int y = 0; y < h / 2; y++) {
+            int a = y * stride;
+            int b = (h - 1 - y) * stride;
+            pixels.position(a);
+            pixels.get(top);
+            pixels.position(b);
+            pixels.get(bottom);
+            pixels.position(a);
+            pixels.put(bottom);
+            pixels.position(b);
+            pixels.put(top);
+        }
+        pixels.clear();
+        return pixels;
+    }
+    
+    //Writes captureScene() out as a PNG
+    public boolean saveScene(String path) {
+        ByteBuffer pixels = this.captureScene();
+        int w = this.getRenderWidth();
+        return stbi_write_png(path, w, this.getRenderHeight(), 4, pixels, w * 4);
+    }
+    
     public void setupMatrices(int width, int height, Color color) {
+        this.setupMatrices(width, height, width, height, color);
+    }
+    
+    /**
+     * Same as setupMatrices but only renders into the bottom left viewWidth x
+     * viewHeight pixels, while the projection still covers width x height.
+     */
+    public void setupMatrices(int viewWidth, int viewHeight, int width, int height, Color color) {
         float[] colors = ColorUtilities.getColorAdjust(color);
-        glViewport(0, 0, width,height);//Changes our viewport to be the size of the window.
-        glClearColor(colors[0],colors[1],colors[2],1);
-        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
-        
-        //Now change our games rendering space
-        glMatrixMode(GL_PROJECTION);
-        glLoadIdentity();
-        glOrtho(0,width, height, 0, -1.0, 10.0);
-        glMatrixMode(GL_MODELVIEW);
-        glLoadIdentity();
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        GLStateCache.getInstance().viewport(0, 0, viewWidth, viewHeight);//Changes our viewport to be the size of the window.
+        gl.clearColor(colors[0],colors[1],colors[2],1);
+        gl.clear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+        
+        //Now change our games rendering space, the modelview is left as identity
+        //for good, all transforms happen on the CPU through Transform2D.
+        gl.matrixMode(GL_PROJECTION);
+        gl.loadIdentity();
+        gl.ortho(0,width, height, 0, -1.0, 10.0);
     }
     
     public void simpleQuad(float x, float y, int width, int height, Color color){
+        this.simpleQuad(x, y, width, height, color, 1, 1);
+    }
+    
+    //ss/ts are how much of the bound texture to stretch over the quad
+    public void simpleQuad(float x, float y, int width, int height, Color color, float ss, float ts){
         float[] colors = ColorUtilities.getColorAdjust(color);
-        glColor4f(colors[0],colors[1],colors[2],1);
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        gl.color4f(colors[0],colors[1],colors[2],1);
         
         float s = 0;
         float t = 0;
-        float ss = 1;
-        float ts = 1;
         
-        glBegin(GL_TRIANGLES);
-        glTexCoord2d(s, ts);
-        glVertex2d(x, y);
+        gl.begin(GL_TRIANGLES);
+        gl.texCoord2f(s, ts);
+        gl.vertex2f(x, y);
 
-        glTexCoord2d(ss, ts);
-        glVertex2d(x+width, y);
+        gl.texCoord2f(ss, ts);
+        gl.vertex2f(x+width, y);
 
-        glTexCoord2d(ss, t);
-        glVertex2d(x+width, y+height);
-        glEnd();
+        gl.texCoord2f(ss, t);
+        gl.vertex2f(x+width, y+height);
+        gl.end();
 
         //Second Triangle
-        glBegin(GL_TRIANGLES);
-        glTexCoord2d(s, ts);
-        glVertex2d(x, y);
+        gl.begin(GL_TRIANGLES);
+        gl.texCoord2f(s, ts);
+        gl.vertex2f(x, y);
 
-        glTexCoord2d(ss, t);
-        glVertex2d(x+width, y+height);
+        gl.texCoord2f(ss, t);
+        gl.vertex2f(x+width, y+height);
 
-        glTexCoord2d(s, t);
-        glVertex2d(x, y+height);
-        glEnd();
+        gl.texCoord2f(s, t);
+        gl.vertex2f(x, y+height);
+        gl.end();
     }
 }
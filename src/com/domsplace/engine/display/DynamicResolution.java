@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display;
+
+import com.domsplace.engine.game.GameInfo;
+
+/**
+ * Picks how much of the scene FBO to actually render into. The scene, GUI and
+ * post passes are timed on the GPU by the GPUProfiler and every ADJUST_FRAMES
+ * profiled frames the scale moves towards
+ * whatever should hit the target time, staying between the min and max.
+ * The projection never changes so scene coordinates (and the mouse) don't
+ * either, only the viewport shrinks and the present stretches it back up.
+ *
+ * Configured from gameinfo.txt:
+ *  dynamic_resolution      true to enable (default false)
+ *  dynamic_resolution_min  smallest scale (default 0.5)
+ *  dynamic_resolution_max  largest scale (default 1.0)
+ *  dynamic_resolution_ms   GPU time to aim for (default 12)
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class DynamicResolution {
+    //Constants
+    public static final int ADJUST_FRAMES = 30;
+    public static final float SCALE_STEP = 1f / 64f;
+
+    private static final DynamicResolution INSTANCE = new DynamicResolution();
+    public static DynamicResolution getInstance() {return INSTANCE;}
+
+    //Instance
+    private boolean configured = false;
+    private boolean enabled;
+    private float minScale;
+    private float maxScale;
+    private double targetNanos;
+    private float scale = 1f;
+
+    private long lastProfiledFrame = -1;
+    private long total = 0;
+    private int samples = 0;
+    private double lastGpuNanos = 0;
+
+    private DynamicResolution() {}
+
+    private void configure() {
+        if(this.configured) return;
+        this.configured = true;
+        GameInfo info = GameInfo.getGameInfo();
+        this.enabled = info.getBooleanValue("dynamic_resolution", false);
+        this.minScale = Math.max(SCALE_STEP, Math.min(1f, info.getFloatValue("dynamic_resolution_min", 0.5f)));
+        this.maxScale = Math.max(this.minScale, Math.min(1f, info.getFloatValue("dynamic_resolution_max", 1f)));
+        this.targetNanos = info.getFloatValue("dynamic_resolution_ms", 12f) * 1000000d;
+        this.scale = this.enabled ? this.maxScale : 1f;
+    }
+
+    public boolean isEnabled() {this.configure(); return this.enabled;}
+    public float getScale() {this.configure(); return this.scale;}
+    public float getMinScale() {this.configure(); return this.minScale;}
+    public float getMaxScale() {this.configure(); return this.maxScale;}
+    public double getLastGpuNanos() {return this.lastGpuNanos;}//Average of the last adjustment window
+
+    public void setEnabled(boolean enabled) {
+        this.configure();
+        this.enabled = enabled;
+        this.scale = enabled ? this.maxScale : 1f;
+    }
+
+    public void setTargetMilliseconds(double ms) {this.configure(); this.targetNanos = ms * 1000000d;}
+
+    public void setScaleRange(float min, float max) {
+        this.configure();
+        this.minScale = Math.max(SCALE_STEP, Math.min(1f, min));
+        this.maxScale = Math.max(this.minScale, Math.min(1f, max));
+        this.scale = Math.max(this.minScale, Math.min(this.maxScale, this.scale));
+    }
+
+    public int getRenderWidth(int width) {return Math.max(1, Math.round(width * this.getScale()));}
+    public int getRenderHeight(int height) {return Math.max(1, Math.round(height * this.getScale()));}
+
+    /**
+     * Takes the GPUProfiler's latest finished frame into account, call once a
+     * frame after GPUProfiler.beginFrame().
+     */
+    public void update() {
+        if(!this.isEnabled()) return;
+        GPUProfiler profiler = GPUProfiler.getInstance();
+        if(profiler.getCompletedFrames() == this.lastProfiledFrame) return;
+        this.lastProfiledFrame = profiler.getCompletedFrames();
+        this.total += profiler.getFrameNanos(GPUProfiler.SCENE);
+        this.total += profiler.getFrameNanos(GPUProfiler.GUI);
+        this.total += profiler.getFrameNanos(GPUProfiler.POST);
+        if(++this.samples >= ADJUST_FRAMES) this.adjust();
+    }
+
+    private void adjust() {
+        double average = (double)this.total / this.samples;
+        this.lastGpuNanos = average;
+        this.total = 0;
+        this.samples = 0;
+        if(average <= 0) return;
+
+        //GPU time goes roughly with pixel count, so scale by the square root
+        float ideal = this.scale * (float)Math.sqrt(this.targetNanos / average);
+        float next = Math.max(this.scale * 0.85f, Math.min(this.scale + 0.05f, ideal));
+        if(average < this.targetNanos && average > this.targetNanos * 0.8) next = this.scale;//Close enough, don't hunt
+        next = Math.round(next / SCALE_STEP) * SCALE_STEP;
+        this.scale = Math.max(this.minScale, Math.min(this.maxScale, next));
+    }
+
+    public void dispose() {
+        this.lastProfiledFrame = -1;
+        this.total = 0;
+        this.samples = 0;
+    }
+}
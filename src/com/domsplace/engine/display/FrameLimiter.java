@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display;
+
+import com.domsplace.engine.game.GameInfo;
+import java.util.Arrays;
+
+/**
+ * Holds the main loop to a target frame rate. Frames are scheduled against a
+ * fixed cadence; most of the wait is slept away in 1ms naps and the last bit
+ * is spun so wake up is precise. How much is left for spinning adapts to how
+ * late the OS actually wakes us (mean + 2 deviations of measured oversleep).
+ *
+ * Also keeps the last SAMPLES frame times for mean/variance reporting, with or
+ * without a target.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class FrameLimiter {
+    //Constants
+    public static final int SAMPLES = 120;
+    private static final long NAP = 1000000L;//1ms
+    private static final long MIN_MARGIN = 200000L;//0.2ms
+    private static final long MAX_MARGIN = 4000000L;//4ms
+    private static final double JITTER_WEIGHT = 0.05;
+
+    private static final FrameLimiter INSTANCE = new FrameLimiter();
+    public static FrameLimiter getInstance() {return INSTANCE;}
+
+    //Instance
+    private int targetFps = -1;
+    private long frameNanos = 0;
+    private long deadline = -1;
+
+    //Oversleep estimate (nanoseconds), exponentially weighted
+    private double jitterMean = 1000000;
+    private double jitterVariance = 0;
+
+    //Frame times
+    private final long[] samples = new long[SAMPLES];
+    private final long[] scratch = new long[SAMPLES];
+    private int sampleCount = 0;
+    private int sampleIndex = 0;
+    private long lastFrame = -1;
+
+    private FrameLimiter() {}
+
+    public int getTargetFps() {
+        if(this.targetFps < 0) this.setTargetFps(GameInfo.getGameInfo().getIntValue("target_fps", 0));
+        return this.targetFps;
+    }
+
+    //0 for uncapped
+    public void setTargetFps(int fps) {
+        this.targetFps = Math.max(0, fps);
+        this.frameNanos = this.targetFps > 0 ? 1000000000L / this.targetFps : 0;
+        this.deadline = -1;
+    }
+
+    //How early we stop sleeping and start spinning
+    public long getSleepMargin() {
+        long margin = (long)(this.jitterMean + 2 * Math.sqrt(this.jitterVariance));
+        return Math.max(MIN_MARGIN, Math.min(MAX_MARGIN, margin));
+    }
+
+    /**
+     * Waits out whatever is left of this frame, call once per frame after
+     * swapping buffers.
+     */
+    public void sync() {
+        if(this.getTargetFps() > 0) {
+            long now = System.nanoTime();
+            if(this.deadline == -1 || now - this.deadline > this.frameNanos) {
+                //First frame or we're a whole frame behind, don't try to catch up
+                this.deadline = now;
+            }
+            this.deadline += this.frameNanos;
+            this.waitUntil(this.deadline);
+        }
+        this.recordFrame(System.nanoTime());
+    }
+
+    private void waitUntil(long deadline) {
+        while(deadline - System.nanoTime() > NAP + this.getSleepMargin()) {
+            long start = System.nanoTime();
+            try {
+                Thread.sleep(1);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            this.measureJitter(System.nanoTime() - start - NAP);
+        }
+        while(deadline - System.nanoTime() > 0) {
+            Thread.yield();
+        }
+    }
+
+    private void measureJitter(long oversleep) {
+        double delta = oversleep - this.jitterMean;
+        this.jitterMean += JITTER_WEIGHT * delta;
+        this.jitterVariance = (1 - JITTER_WEIGHT) * (this.jitterVariance + JITTER_WEIGHT * delta * delta);
+    }
+
+    private void recordFrame(long now) {
+        if(this.lastFrame != -1) {
+            this.samples[this.sampleIndex] = now - this.lastFrame;
+            this.sampleIndex = (this.sampleIndex + 1) % SAMPLES;
+            if(this.sampleCount < SAMPLES) this.sampleCount++;
+        }
+        this.lastFrame = now;
+    }
+
+    public int getSampleCount() {return this.sampleCount;}
+    public long getLastFrameNanos() {return this.getFrameNanos(0);}
+
+    //How long the frame age frames before the last one took, 0 if we don't have it
+    public long getFrameNanos(int age) {
+        if(age < 0 || age >= this.sampleCount) return 0;
+        return this.samples[(this.sampleIndex + SAMPLES - 1 - age) % SAMPLES];
+    }
+
+    //Over the last SAMPLES frames
+    public double getFrameTimeMean() {
+        if(this.sampleCount == 0) return 0;
+        long total = 0;
+        for(int i = 0; i < this.sampleCount; i++) total += this.samples[i];
+        return (double)total / this.sampleCount;
+    }
+
+    //Nanoseconds squared, over the last SAMPLES frames
+    public double getFrameTimeVariance() {
+        if(this.sampleCount < 2) return 0;
+        double mean = this.getFrameTimeMean();
+        double sum = 0;
+        for(int i = 0; i < this.sampleCount; i++) {
+            double d = this.samples[i] - mean;
+            sum += d * d;
+        }
+        return sum / (this.sampleCount - 1);
+    }
+
+    //Nearest rank, 0 to 100, over the last SAMPLES frames
+    public long getFrameTimePercentile(double percentile) {
+        if(this.sampleCount == 0) return 0;
+        System.arraycopy(this.samples, 0, this.scratch, 0, this.sampleCount);
+        Arrays.sort(this.scratch, 0, this.sampleCount);
+        int rank = (int)Math.ceil(Math.max(0, Math.min(100, percentile)) / 100d * this.sampleCount) - 1;
+        return this.scratch[Math.max(0, rank)];
+    }
+
+    public double getFrameTimeDeviation() {return Math.sqrt(this.getFrameTimeVariance());}
+
+    public double getFrameRate() {
+        double mean = this.getFrameTimeMean();
+        return mean > 0 ? 1000000000d / mean : 0;
+    }
+}
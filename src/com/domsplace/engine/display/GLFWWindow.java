@@ -47,6 +47,11 @@ public final class GLFWWindow {
     }
     
     public GLFWWindow(int width, int height, String title, boolean fullscreen, long monitor) throws Exception {
+        this(width,height,title,fullscreen,monitor,false);
+    }
+    
+    //egl asks GLFW for an EGL context instead of the native one (GLX etc), handy on headless boxes.
+    public GLFWWindow(int width, int height, String title, boolean fullscreen, long monitor, boolean egl) throws Exception {
         this.title = title;
         this.width = width;
         this.height = height;
@@ -56,6 +61,7 @@ public final class GLFWWindow {
         glfwDefaultWindowHints();                   // optional, the current window hints are already the default
         glfwWindowHint(GLFW_VISIBLE, GLFW_FALSE);   // the window will stay hidden after creation
         glfwWindowHint(GLFW_RESIZABLE, GLFW_TRUE);  // the window will be resizable
+        if(egl) glfwWindowHint(GLFW_CONTEXT_CREATION_API, GLFW_EGL_CONTEXT_API);
         window_handle = glfwCreateWindow(WINDOW_WIDTH, WINDOW_HEIGHT, title, fullscreen ? glfwGetPrimaryMonitor() : NULL, NULL);
         if (window_handle == NULL) {
             throw new Exception("Failed to create the GLFW window");
@@ -138,6 +144,8 @@ public final class GLFWWindow {
     public void onResize(long window, int width, int height) {
         this.width = width;
         this.height = height;
+        DisplayManager display = DisplayManager.getInstance();
+        PresentStage.getInstance().resize(width, height, display.getWidth(), display.getHeight());
     }
     
     public void onKey(long window, int key, int scancode, int action, int mods) {
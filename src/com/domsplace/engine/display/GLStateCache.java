@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display;
+
+import com.domsplace.engine.display.backend.RenderBackend;
+import static org.lwjgl.opengl.EXTFramebufferObject.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+
+/**
+ * Shadows the bits of GL state the engine changes a lot so that redundant
+ * changes never reach the driver. Everything that binds a program, texture,
+ * buffer or framebuffer, or touches the blend func or viewport, should go
+ * through here. Whatever isn't redundant goes on to the active RenderBackend.
+ * Main thread only.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class GLStateCache {
+    //Constants
+    public static final int MAX_TEXTURE_UNITS = 16;
+
+    private static final GLStateCache INSTANCE = new GLStateCache();
+    public static GLStateCache getInstance() {return INSTANCE;}
+
+    //Instance
+    private int program;
+    private int activeUnit;
+    private final int[] textures = new int[MAX_TEXTURE_UNITS];
+    private int arrayBuffer;
+    private int framebuffer;
+    private int blendSrc;
+    private int blendDst;
+    private final int[] viewport = new int[4];
+    private float maxAnisotropy = -1;
+
+    private long issued = 0;
+    private long elided = 0;
+    private long textureBinds = 0;
+
+    private GLStateCache() {
+        this.invalidate();
+    }
+
+    public int getProgram() {return this.program;}
+    public int getActiveUnit() {return this.activeUnit;}
+    public int getTexture(int unit) {return this.textures[unit];}
+    public int getArrayBuffer() {return this.arrayBuffer;}
+    public int getFramebuffer() {return this.framebuffer;}
+    public long getIssuedCalls() {return this.issued;}
+    public long getElidedCalls() {return this.elided;}
+    public long getTextureBinds() {return this.textureBinds;}//Issued ones only, never reset
+
+    /**
+     * Largest anisotropy the driver supports, queried once rather than on every
+     * texture bind. 0 if the extension is missing.
+     */
+    public float getMaxAnisotropy() {
+        if(this.maxAnisotropy >= 0) return this.maxAnisotropy;
+        return this.maxAnisotropy = RenderBackend.getActiveBackend().getMaxAnisotropy();
+    }
+
+    /**
+     * Forgets everything we know, next call of each kind always gets issued.
+     * Use after something outside the cache has changed GL state.
+     */
+    public void invalidate() {
+        this.program = -1;
+        this.activeUnit = -1;
+        for(int i = 0; i < textures.length; i++) textures[i] = -1;
+        this.arrayBuffer = -1;
+        this.framebuffer = -1;
+        this.blendSrc = -1;
+        this.blendDst = -1;
+        for(int i = 0; i < viewport.length; i++) viewport[i] = -1;
+        this.maxAnisotropy = -1;
+    }
+
+    public void resetCounters() {
+        this.issued = 0;
+        this.elided = 0;
+    }
+
+    public void useProgram(int program) {
+        if(this.program == program) {elided++; return;}
+        RenderBackend.getActiveBackend().useProgram(program);
+        this.program = program;
+        issued++;
+    }
+
+    public void activeTexture(int unit) {
+        if(this.activeUnit == unit) {elided++; return;}
+        RenderBackend.getActiveBackend().activeTexture(GL_TEXTURE0 + unit);
+        this.activeUnit = unit;
+        issued++;
+    }
+
+    public void bindTexture(int unit, int handle) {
+        if(this.textures[unit] == handle) {elided++; return;}
+        this.activeTexture(unit);
+        RenderBackend.getActiveBackend().bindTexture(GL_TEXTURE_2D, handle);
+        this.textures[unit] = handle;
+        textureBinds++;
+        issued++;
+    }
+
+    //Call when a texture is deleted so a recycled handle isn't assumed bound.
+    public void forgetTexture(int handle) {
+        for(int i = 0; i < textures.length; i++) {
+            if(textures[i] == handle) textures[i] = -1;
+        }
+    }
+
+    public void bindArrayBuffer(int buffer) {
+        if(this.arrayBuffer == buffer) {elided++; return;}
+        RenderBackend.getActiveBackend().bindBuffer(GL_ARRAY_BUFFER, buffer);
+        this.arrayBuffer = buffer;
+        issued++;
+    }
+
+    public void bindFramebuffer(int framebuffer) {
+        if(this.framebuffer == framebuffer) {elided++; return;}
+        RenderBackend.getActiveBackend().bindFramebuffer(GL_FRAMEBUFFER_EXT, framebuffer);
+        this.framebuffer = framebuffer;
+        issued++;
+    }
+
+    public void blendFunc(int src, int dst) {
+        if(this.blendSrc == src && this.blendDst == dst) {elided++; return;}
+        RenderBackend.getActiveBackend().blendFunc(src, dst);
+        this.blendSrc = src;
+        this.blendDst = dst;
+        issued++;
+    }
+
+    public void viewport(int x, int y, int width, int height) {
+        if(viewport[0] == x && viewport[1] == y && viewport[2] == width && viewport[3] == height) {elided++; return;}
+        RenderBackend.getActiveBackend().viewport(x, y, width, height);
+        viewport[0] = x;
+        viewport[1] = y;
+        viewport[2] = width;
+        viewport[3] = height;
+        issued++;
+    }
+}
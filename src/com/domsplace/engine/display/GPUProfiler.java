@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display;
+
+import com.domsplace.engine.display.backend.RenderBackend;
+import com.domsplace.engine.display.batch.SpriteBatch;
+import com.domsplace.engine.game.GameInfo;
+import java.util.Arrays;
+import static org.lwjgl.opengl.GL11.GL_FALSE;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.GL_TIME_ELAPSED;
+
+/**
+ * Times each pass of DisplayManager.update() on the GPU with GL_TIME_ELAPSED
+ * queries. Passes run back to back, begin() ends whatever pass was open, since
+ * timer queries can't nest.
+ *
+ * Every pass has a query per frame slot and there are QUERY_FRAMES slots, so
+ * a frame's results are only read once the GPU has had a whole frame to
+ * finish them. If they still aren't ready the frame goes unprofiled instead of
+ * stalling.
+ *
+ * Finished times go into a SAMPLES long window per pass for averages and
+ * percentiles. Runs when enabled, or when DynamicResolution needs the times.
+ *
+ * Configured from gameinfo.txt:
+ *  gpu_profiler    true to always profile (default false)
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class GPUProfiler {
+    //Constants
+    public static final int UPLOAD = 0;
+    public static final int SCENE = 1;
+    public static final int GUI = 2;
+    public static final int POST = 3;
+    public static final int PRESENT = 4;
+    public static final int OVERLAY = 5;
+    public static final int PASS_COUNT = 6;
+
+    public static final int QUERY_FRAMES = 2;
+    public static final int SAMPLES = 120;
+
+    private static final String[] PASS_NAMES = new String[] {"Upload", "Scene", "GUI", "Post", "Present", "Overlay"};
+
+    private static final GPUProfiler INSTANCE = new GPUProfiler();
+    public static GPUProfiler getInstance() {return INSTANCE;}
+
+    public static String getPassName(int pass) {return PASS_NAMES[pass];}
+
+    //Instance
+    private boolean configured = false;
+    private boolean enabled;
+
+    private final int[][] queries = new int[QUERY_FRAMES][PASS_COUNT];
+    private final boolean[][] issued = new boolean[QUERY_FRAMES][PASS_COUNT];
+    private int slot = 0;
+    private boolean profiling = false;//This frame
+    private int current = -1;
+
+    private final long[][] samples = new long[PASS_COUNT][SAMPLES];
+    private final int[] sampleCount = new int[PASS_COUNT];
+    private final int[] sampleIndex = new int[PASS_COUNT];
+    private final long[] frameNanos = new long[PASS_COUNT];
+    private final long[] scratch = new long[SAMPLES];
+    private long completedFrames = 0;
+    private long skippedFrames = 0;
+
+    private GPUProfiler() {}
+
+    private void configure() {
+        if(this.configured) return;
+        this.configured = true;
+        this.enabled = GameInfo.getGameInfo().getBooleanValue("gpu_profiler", false);
+    }
+
+    public boolean isEnabled() {this.configure(); return this.enabled;}
+    public void setEnabled(boolean enabled) {this.configure(); this.enabled = enabled;}
+    public boolean isSupported() {return RenderBackend.getActiveBackend().isTimerQuerySupported();}
+
+    public boolean isActive() {
+        return (this.isEnabled() || DynamicResolution.getInstance().isEnabled()) && this.isSupported();
+    }
+
+    //Frames whose results have been read, and ones dropped because they weren't ready
+    public long getCompletedFrames() {return this.completedFrames;}
+    public long getSkippedFrames() {return this.skippedFrames;}
+
+    /**
+     * Starts a frame, reading back whatever the slot about to be reused
+     * measured QUERY_FRAMES frames ago.
+     */
+    public void beginFrame() {
+        this.current = -1;
+        this.profiling = this.isActive();
+        if(!this.profiling) return;
+        if(!this.collect(this.slot)) {
+            this.profiling = false;
+            this.skippedFrames++;
+        }
+    }
+
+    /**
+     * Ends the open pass (if any) and starts timing pass. Whatever the main
+     * SpriteBatch has queued is flushed first so it counts towards the pass it
+     * was drawn in. A pass timed already this frame isn't timed again.
+     */
+    public void begin(int pass) {
+        if(!this.profiling) return;
+        SpriteBatch.getInstance().flush();
+        this.end();
+        if(this.issued[this.slot][pass]) return;
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        if(this.queries[this.slot][pass] == 0) this.queries[this.slot][pass] = gl.genQuery();
+        gl.beginQuery(GL_TIME_ELAPSED, this.queries[this.slot][pass]);
+        this.issued[this.slot][pass] = true;
+        this.current = pass;
+    }
+
+    public void end() {
+        if(this.current < 0) return;
+        RenderBackend.getActiveBackend().endQuery(GL_TIME_ELAPSED);
+        this.current = -1;
+    }
+
+    public void endFrame() {
+        if(!this.profiling) return;
+        this.end();
+        this.profiling = false;
+        this.slot = (this.slot + 1) % QUERY_FRAMES;
+    }
+
+    //False if something issued from the slot isn't finished yet
+    private boolean collect(int slot) {
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        boolean any = false;
+        for(int i = 0; i < PASS_COUNT; i++) {
+            if(!this.issued[slot][i]) continue;
+            if(gl.getQueryObjecti(this.queries[slot][i], GL_QUERY_RESULT_AVAILABLE) == GL_FALSE) return false;
+            any = true;
+        }
+        if(!any) return true;
+
+        for(int i = 0; i < PASS_COUNT; i++) {
+            if(!this.issued[slot][i]) {
+                this.frameNanos[i] = 0;
+                continue;
+            }
+            this.issued[slot][i] = false;
+            long nanos = gl.getQueryObjectui64(this.queries[slot][i], GL_QUERY_RESULT);
+            this.frameNanos[i] = nanos;
+            this.samples[i][this.sampleIndex[i]] = nanos;
+            this.sampleIndex[i] = (this.sampleIndex[i] + 1) % SAMPLES;
+            if(this.sampleCount[i] < SAMPLES) this.sampleCount[i]++;
+        }
+        this.completedFrames++;
+        return true;
+    }
+
+    //Time the pass took in the most recently completed frame, 0 if it didn't run
+    public long getFrameNanos(int pass) {return this.frameNanos[pass];}
+
+    public long getFrameNanos() {
+        long total = 0;
+        for(int i = 0; i < PASS_COUNT; i++) total += this.frameNanos[i];
+        return total;
+    }
+
+    public int getSampleCount(int pass) {return this.sampleCount[pass];}
+
+    public long getLastNanos(int pass) {
+        if(this.sampleCount[pass] == 0) return 0;
+        return this.samples[pass][(this.sampleIndex[pass] + SAMPLES - 1) % SAMPLES];
+    }
+
+    public double getAverageNanos(int pass) {
+        int count = this.sampleCount[pass];
+        if(count == 0) return 0;
+        long total = 0;
+        for(int i = 0; i < count; i++) total += this.samples[pass][i];
+        return (double)total / count;
+    }
+
+    /**
+     * Nearest rank percentile of the pass's sample window, 0 to 100.
+     */
+    public long getPercentileNanos(int pass, double percentile) {
+        int count = this.sampleCount[pass];
+        if(count == 0) return 0;
+        System.arraycopy(this.samples[pass], 0, this.scratch, 0, count);
+        Arrays.sort(this.scratch, 0, count);
+        int rank = (int)Math.ceil(Math.max(0, Math.min(100, percentile)) / 100d * count) - 1;
+        return this.scratch[Math.max(0, rank)];
+    }
+
+    public void reset() {
+        for(int i = 0; i < PASS_COUNT; i++) {
+            this.sampleCount[i] = 0;
+            this.sampleIndex[i] = 0;
+            this.frameNanos[i] = 0;
+        }
+        this.completedFrames = 0;
+        this.skippedFrames = 0;
+    }
+
+    public void dispose() {
+        this.end();
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        for(int s = 0; s < QUERY_FRAMES; s++) {
+            for(int i = 0; i < PASS_COUNT; i++) {
+                if(this.queries[s][i] != 0) gl.deleteQuery(this.queries[s][i]);
+                this.queries[s][i] = 0;
+                this.issued[s][i] = false;
+            }
+        }
+        this.profiling = false;
+        this.slot = 0;
+        this.reset();
+    }
+}
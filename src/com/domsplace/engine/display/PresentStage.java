@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display;
+
+import com.domsplace.engine.display.backend.RenderBackend;
+import com.domsplace.engine.game.GameInfo;
+import java.awt.Color;
+import static org.lwjgl.opengl.EXTFramebufferBlit.*;
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * Gets the scene FBO onto the window. The letterboxed rect is only worked out
+ * when the window (or scene) size changes, then each frame is a single
+ * glBlitFramebuffer straight from the FBO. Drivers without framebuffer blit
+ * fall back to drawing the scene texture over a quad like we used to.
+ *
+ * Configured from gameinfo.txt:
+ *  present_filter  nearest or linear (default linear)
+ *  integer_scale   true to only scale by whole numbers (default false), for
+ *                  crisp pixel art, anything left over is black bars
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class PresentStage {
+    private static final PresentStage INSTANCE = new PresentStage();
+    public static PresentStage getInstance() {return INSTANCE;}
+
+    //Instance
+    private boolean configured = false;
+    private int filter;
+    private boolean integerScale;
+
+    //Letterbox, in window pixels from the top left
+    private int windowWidth;
+    private int windowHeight;
+    private int sceneWidth;
+    private int sceneHeight;
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+    private boolean covers;//Rect fills the window, no bars to clear
+
+    private PresentStage() {}
+
+    private void configure() {
+        if(this.configured) return;
+        this.configured = true;
+        GameInfo info = GameInfo.getGameInfo();
+        this.filter = info.getValue("present_filter", "linear").trim().equalsIgnoreCase("nearest") ? GL_NEAREST : GL_LINEAR;
+        this.integerScale = info.getBooleanValue("integer_scale", false);
+    }
+
+    public int getFilter() {this.configure(); return this.filter;}
+    public boolean isIntegerScale() {this.configure(); return this.integerScale;}
+    public int getX() {return this.x;}
+    public int getY() {return this.y;}
+    public int getWidth() {return this.width;}
+    public int getHeight() {return this.height;}
+
+    public boolean isBlitSupported() {return RenderBackend.getActiveBackend().isFramebufferBlitSupported();}
+
+    public void setFilter(int filter) {this.configure(); this.filter = filter;}
+    public void setIntegerScale(boolean integerScale) {
+        this.configure();
+        this.integerScale = integerScale;
+        this.resize(this.windowWidth, this.windowHeight, this.sceneWidth, this.sceneHeight);
+    }
+
+    /**
+     * Works out the letterbox for a window and scene size, call whenever
+     * either changes.
+     */
+    public void resize(int windowWidth, int windowHeight, int sceneWidth, int sceneHeight) {
+        this.configure();
+        this.windowWidth = windowWidth;
+        this.windowHeight = windowHeight;
+        this.sceneWidth = sceneWidth;
+        this.sceneHeight = sceneHeight;
+        if(windowWidth <= 0 || windowHeight <= 0 || sceneWidth <= 0 || sceneHeight <= 0) {
+            //Minimized
+            this.x = this.y = this.width = this.height = 0;
+            this.covers = false;
+            return;
+        }
+
+        float fit = Math.min(windowWidth / (float)sceneWidth, windowHeight / (float)sceneHeight);
+        if(this.integerScale && fit >= 1) fit = (float)Math.floor(fit);
+        this.width = Math.max(1, Math.round(sceneWidth * fit));
+        this.height = Math.max(1, Math.round(sceneHeight * fit));
+        this.x = (windowWidth - this.width) / 2;
+        this.y = (windowHeight - this.height) / 2;
+        this.covers = this.width == windowWidth && this.height == windowHeight;
+    }
+
+    //Window pixels to scene units, through the letterbox
+    public double toSceneX(double windowX) {
+        if(this.width <= 0) return 0;
+        return (windowX - this.x) * this.sceneWidth / (double)this.width;
+    }
+
+    public double toSceneY(double windowY) {
+        if(this.height <= 0) return 0;
+        return (windowY - this.y) * this.sceneHeight / (double)this.height;
+    }
+
+    /**
+     * Presents the bottom left sourceWidth x sourceHeight of the framebuffer
+     * (or texture, for the fallback) into the letterbox. Leaves the window's
+     * framebuffer bound.
+     */
+    public void present(int framebuffer, int texture, int sourceWidth, int sourceHeight) {
+        this.configure();
+        GLStateCache cache = GLStateCache.getInstance();
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        cache.bindFramebuffer(0);
+        cache.viewport(0, 0, this.windowWidth, this.windowHeight);
+        if(!this.covers) {
+            gl.clearColor(0, 0, 0, 1);
+            gl.clear(GL_COLOR_BUFFER_BIT);
+        }
+        if(this.width <= 0 || this.height <= 0) return;
+
+        if(this.isBlitSupported()) {
+            //Window space is bottom up for the blit
+            int bottom = this.windowHeight - this.y - this.height;
+            gl.bindFramebuffer(GL_READ_FRAMEBUFFER_EXT, framebuffer);
+            gl.blitFramebuffer(
+                0, 0, sourceWidth, sourceHeight,
+                this.x, bottom, this.x + this.width, bottom + this.height,
+                GL_COLOR_BUFFER_BIT, this.filter
+            );
+            gl.bindFramebuffer(GL_READ_FRAMEBUFFER_EXT, 0);
+            return;
+        }
+
+        //No blit, draw it the old way
+        DisplayManager display = DisplayManager.getInstance();
+        cache.bindTexture(0, texture);
+        cache.activeTexture(0);//In case the bind was elided with another unit active
+        //Every frame, the texture alternates with post processing's output and
+        //gets recreated on resize, and this path is rare enough not to matter
+        gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, this.filter);
+        gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, this.filter);
+        gl.matrixMode(GL_PROJECTION);
+        gl.loadIdentity();
+        gl.ortho(0, this.windowWidth, this.windowHeight, 0, -1.0, 10.0);
+        display.simpleQuad(this.x, this.y, this.width, this.height, Color.white, sourceWidth / (float)this.sceneWidth, sourceHeight / (float)this.sceneHeight);
+    }
+}
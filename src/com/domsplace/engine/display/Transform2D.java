@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display;
+
+/**
+ * CPU side replacement for the glPushMatrix/glTranslate/glScale stack. Holds 2D
+ * affine matrices as {a, b, c, d, tx, ty} where
+ *  x' = a*x + c*y + tx
+ *  y' = b*x + d*y + ty
+ *
+ * The stack is a flat preallocated array so pushing and popping never
+ * allocates.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class Transform2D {
+    //Constants
+    public static final int MAX_DEPTH = 64;
+    private static final int SIZE = 6;
+
+    //Instance
+    private final float[] stack = new float[MAX_DEPTH * SIZE];
+    private int top = 0;//Offset of the current matrix in stack
+
+    public Transform2D() {
+        this.identity();
+    }
+
+    public int getDepth() {return this.top / SIZE;}
+    public float getA() {return stack[top];}
+    public float getB() {return stack[top+1];}
+    public float getC() {return stack[top+2];}
+    public float getD() {return stack[top+3];}
+    public float getTranslateX() {return stack[top+4];}
+    public float getTranslateY() {return stack[top+5];}
+
+    public float transformX(float x, float y) {return stack[top]*x + stack[top+2]*y + stack[top+4];}
+    public float transformY(float x, float y) {return stack[top+1]*x + stack[top+3]*y + stack[top+5];}
+
+    public void identity() {
+        stack[top] = 1;
+        stack[top+1] = 0;
+        stack[top+2] = 0;
+        stack[top+3] = 1;
+        stack[top+4] = 0;
+        stack[top+5] = 0;
+    }
+
+    public void set(float a, float b, float c, float d, float tx, float ty) {
+        stack[top] = a;
+        stack[top+1] = b;
+        stack[top+2] = c;
+        stack[top+3] = d;
+        stack[top+4] = tx;
+        stack[top+5] = ty;
+    }
+
+    //Copies the current matrix of other into the current matrix of this.
+    public void set(Transform2D other) {
+        System.arraycopy(other.stack, other.top, stack, top, SIZE);
+    }
+
+    //Drops everything back to a single identity matrix.
+    public void reset() {
+        this.top = 0;
+        this.identity();
+    }
+
+    public void push() {
+        if(top + SIZE >= stack.length) throw new IllegalStateException("Transform2D stack overflow.");
+        System.arraycopy(stack, top, stack, top + SIZE, SIZE);
+        top += SIZE;
+    }
+
+    public void pop() {
+        if(top == 0) throw new IllegalStateException("Transform2D stack underflow.");
+        top -= SIZE;
+    }
+
+    public void translate(float x, float y) {
+        stack[top+4] += stack[top]*x + stack[top+2]*y;
+        stack[top+5] += stack[top+1]*x + stack[top+3]*y;
+    }
+
+    public void scale(float sx, float sy) {
+        stack[top] *= sx;
+        stack[top+1] *= sx;
+        stack[top+2] *= sy;
+        stack[top+3] *= sy;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.backend;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import static org.lwjgl.opengl.EXTFramebufferBlit.glBlitFramebufferEXT;
+import static org.lwjgl.opengl.EXTFramebufferObject.*;
+import static org.lwjgl.opengl.EXTTextureFilterAnisotropic.GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.glBeginTransformFeedback;
+import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL30.glEndTransformFeedback;
+import static org.lwjgl.opengl.GL30.glGenerateMipmap;
+import static org.lwjgl.opengl.GL30.glMapBufferRange;
+import static org.lwjgl.opengl.GL30.glTransformFeedbackVaryings;
+import static org.lwjgl.opengl.GL31.glDrawArraysInstanced;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL33.glGetQueryObjectui64;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
+import static org.lwjgl.opengl.GL44.glBufferStorage;
+
+/**
+ * The real thing, straight through to LWJGL on the current context.
+ * Framebuffers use EXT_framebuffer_object like the rest of the engine always
+ * has.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public class LWJGLRenderBackend extends RenderBackend {
+    private float maxAnisotropy = -1;
+
+    //Capabilities
+    @Override public boolean isInstancingSupported() {return GL.getCapabilities().OpenGL33;}
+    @Override public boolean isFramebufferBlitSupported() {return GL.getCapabilities().GL_EXT_framebuffer_blit;}
+
+    @Override
+    public boolean isBufferStorageSupported() {
+        GLCapabilities caps = GL.getCapabilities();
+        return (caps.OpenGL44 || caps.GL_ARB_buffer_storage) && (caps.OpenGL32 || caps.GL_ARB_sync);
+    }
+
+    @Override
+    public boolean isTimerQuerySupported() {
+        GLCapabilities caps = GL.getCapabilities();
+        return caps.OpenGL33 || caps.GL_ARB_timer_query;
+    }
+
+    @Override public boolean isTransformFeedbackSupported() {return GL.getCapabilities().OpenGL30;}
+
+    @Override
+    public float getMaxAnisotropy() {
+        if(this.maxAnisotropy >= 0) return this.maxAnisotropy;
+        if(GL.getCapabilities().GL_EXT_texture_filter_anisotropic) {
+            this.maxAnisotropy = glGetFloat(GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT);
+        } else {
+            this.maxAnisotropy = 0;
+        }
+        return this.maxAnisotropy;
+    }
+
+    //Fixed state
+    @Override public void enable(int capability) {glEnable(capability);}
+    @Override public void hint(int target, int mode) {glHint(target, mode);}
+    @Override public void disable(int capability) {glDisable(capability);}
+    @Override public void blendFunc(int src, int dst) {glBlendFunc(src, dst);}
+    @Override public void viewport(int x, int y, int width, int height) {glViewport(x, y, width, height);}
+    @Override public void clearColor(float r, float g, float b, float a) {glClearColor(r, g, b, a);}
+    @Override public void clear(int mask) {glClear(mask);}
+    @Override public void pixelStorei(int name, int value) {glPixelStorei(name, value);}
+    @Override public void finish() {glFinish();}
+    @Override public void readPixels(int x, int y, int width, int height, int format, int type, ByteBuffer pixels) {glReadPixels(x, y, width, height, format, type, pixels);}
+
+    //Matrices
+    @Override public void matrixMode(int mode) {glMatrixMode(mode);}
+    @Override public void loadIdentity() {glLoadIdentity();}
+    @Override public void ortho(double left, double right, double bottom, double top, double near, double far) {glOrtho(left, right, bottom, top, near, far);}
+    @Override public void loadMatrix(float[] matrix) {glLoadMatrixf(matrix);}
+
+    //Immediate mode
+    @Override public void begin(int mode) {glBegin(mode);}
+    @Override public void end() {glEnd();}
+    @Override public void vertex2f(float x, float y) {glVertex2f(x, y);}
+    @Override public void texCoord2f(float s, float t) {glTexCoord2f(s, t);}
+    @Override public void color4f(float r, float g, float b, float a) {glColor4f(r, g, b, a);}
+
+    //Client arrays
+    @Override public void enableClientState(int array) {glEnableClientState(array);}
+    @Override public void disableClientState(int array) {glDisableClientState(array);}
+    @Override public void clientActiveTexture(int texture) {glClientActiveTexture(texture);}
+    @Override public void vertexPointer(int size, int type, int stride, long offset) {glVertexPointer(size, type, stride, offset);}
+    @Override public void texCoordPointer(int size, int type, int stride, long offset) {glTexCoordPointer(size, type, stride, offset);}
+    @Override public void colorPointer(int size, int type, int stride, long offset) {glColorPointer(size, type, stride, offset);}
+
+    //Generic attributes
+    @Override public void enableVertexAttribArray(int index) {glEnableVertexAttribArray(index);}
+    @Override public void disableVertexAttribArray(int index) {glDisableVertexAttribArray(index);}
+    @Override public void vertexAttribPointer(int index, int size, int type, boolean normalized, int stride, long offset) {glVertexAttribPointer(index, size, type, normalized, stride, offset);}
+    @Override public void vertexAttribDivisor(int index, int divisor) {glVertexAttribDivisor(index, divisor);}
+
+    //Drawing
+    @Override public void drawArrays(int mode, int first, int count) {glDrawArrays(mode, first, count);}
+    @Override public void drawArraysInstanced(int mode, int first, int count, int instances) {glDrawArraysInstanced(mode, first, count, instances);}
+
+    //Buffers
+    @Override public int genBuffer() {return glGenBuffers();}
+    @Override public void deleteBuffer(int buffer) {glDeleteBuffers(buffer);}
+    @Override public void bindBuffer(int target, int buffer) {glBindBuffer(target, buffer);}
+    @Override public void bufferData(int target, long size, int usage) {glBufferData(target, size, usage);}
+    @Override public void bufferData(int target, float[] data, int usage) {glBufferData(target, data, usage);}
+    @Override public void bufferSubData(int target, long offset, ByteBuffer data) {glBufferSubData(target, offset, data);}
+    @Override public void bufferStorage(int target, long size, int flags) {glBufferStorage(target, size, flags);}
+    @Override public ByteBuffer mapBufferRange(int target, long offset, long length, int access) {return glMapBufferRange(target, offset, length, access);}
+    @Override public void unmapBuffer(int target) {glUnmapBuffer(target);}
+
+    //Sync
+    @Override public long fenceSync() {return glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);}
+    @Override public int clientWaitSync(long sync, int flags, long timeout) {return glClientWaitSync(sync, flags, timeout);}
+    @Override public void deleteSync(long sync) {glDeleteSync(sync);}
+
+    //Shaders
+    @Override public int createShader(int type) {return glCreateShader(type);}
+    @Override public void shaderSource(int shader, String source) {glShaderSource(shader, source);}
+    @Override public void compileShader(int shader) {glCompileShader(shader);}
+    @Override public int getShaderi(int shader, int name) {return glGetShaderi(shader, name);}
+    @Override public String getShaderInfoLog(int shader) {return glGetShaderInfoLog(shader, glGetShaderi(shader, GL_INFO_LOG_LENGTH));}
+    @Override public void deleteShader(int shader) {glDeleteShader(shader);}
+    @Override public int createProgram() {return glCreateProgram();}
+    @Override public void attachShader(int program, int shader) {glAttachShader(program, shader);}
+    @Override public void linkProgram(int program) {glLinkProgram(program);}
+    @Override public void validateProgram(int program) {glValidateProgram(program);}
+    @Override public int getProgrami(int program, int name) {return glGetProgrami(program, name);}
+    @Override public String getProgramInfoLog(int program) {return glGetProgramInfoLog(program, glGetProgrami(program, GL_INFO_LOG_LENGTH));}
+    @Override public void useProgram(int program) {glUseProgram(program);}
+    @Override public int getUniformLocation(int program, String name) {return glGetUniformLocation(program, name);}
+    @Override public int getAttribLocation(int program, String name) {return glGetAttribLocation(program, name);}
+    @Override public void uniform1i(int location, int value) {glUniform1i(location, value);}
+    @Override public void uniform1f(int location, float value) {glUniform1f(location, value);}
+    @Override public void uniform2f(int location, float x, float y) {glUniform2f(location, x, y);}
+    @Override public void uniform3f(int location, float x, float y, float z) {glUniform3f(location, x, y, z);}
+    @Override public void uniform4f(int location, float x, float y, float z, float w) {glUniform4f(location, x, y, z, w);}
+
+    @Override
+    public void uniformfv(int location, int components, FloatBuffer values) {
+        switch(components) {
+            case 1: glUniform1fv(location, values); break;
+            case 2: glUniform2fv(location, values); break;
+            case 3: glUniform3fv(location, values); break;
+            case 4: glUniform4fv(location, values); break;
+            default: throw new IllegalArgumentException("Uniforms have 1 to 4 components, not " + components);
+        }
+    }
+
+    //Textures
+    @Override public int genTexture() {return glGenTextures();}
+    @Override public void deleteTexture(int texture) {glDeleteTextures(texture);}
+    @Override public void activeTexture(int texture) {glActiveTexture(texture);}
+    @Override public void bindTexture(int target, int texture) {glBindTexture(target, texture);}
+    @Override public void texParameteri(int target, int name, int value) {glTexParameteri(target, name, value);}
+    @Override public void texParameterf(int target, int name, float value) {glTexParameterf(target, name, value);}
+    @Override public void texImage2D(int target, int level, int internalFormat, int width, int height, int border, int format, int type, ByteBuffer pixels) {glTexImage2D(target, level, internalFormat, width, height, border, format, type, pixels);}
+    @Override public void texSubImage2D(int target, int level, int x, int y, int width, int height, int format, int type, ByteBuffer pixels) {glTexSubImage2D(target, level, x, y, width, height, format, type, pixels);}
+    @Override public void generateMipmap(int target) {glGenerateMipmap(target);}
+
+    //Framebuffers
+    @Override public int genFramebuffer() {return glGenFramebuffersEXT();}
+    @Override public void deleteFramebuffer(int framebuffer) {glDeleteFramebuffersEXT(framebuffer);}
+    @Override public void bindFramebuffer(int target, int framebuffer) {glBindFramebufferEXT(target, framebuffer);}
+    @Override public void framebufferTexture2D(int target, int attachment, int textureTarget, int texture, int level) {glFramebufferTexture2DEXT(target, attachment, textureTarget, texture, level);}
+    @Override public int genRenderbuffer() {return glGenRenderbuffersEXT();}
+    @Override public void bindRenderbuffer(int target, int renderbuffer) {glBindRenderbufferEXT(target, renderbuffer);}
+    @Override public void renderbufferStorage(int target, int format, int width, int height) {glRenderbufferStorageEXT(target, format, width, height);}
+    @Override public void framebufferRenderbuffer(int target, int attachment, int renderbufferTarget, int renderbuffer) {glFramebufferRenderbufferEXT(target, attachment, renderbufferTarget, renderbuffer);}
+    @Override public void blitFramebuffer(int srcX0, int srcY0, int srcX1, int srcY1, int dstX0, int dstY0, int dstX1, int dstY1, int mask, int filter) {glBlitFramebufferEXT(srcX0, srcY0, srcX1, srcY1, dstX0, dstY0, dstX1, dstY1, mask, filter);}
+
+    //Queries
+    @Override public int genQuery() {return glGenQueries();}
+    @Override public void deleteQuery(int query) {glDeleteQueries(query);}
+    @Override public void beginQuery(int target, int query) {glBeginQuery(target, query);}
+    @Override public void endQuery(int target) {glEndQuery(target);}
+    @Override public int getQueryObjecti(int query, int name) {return glGetQueryObjecti(query, name);}
+    @Override public long getQueryObjectui64(int query, int name) {return glGetQueryObjectui64(query, name);}
+
+    //Transform feedback
+    @Override public void transformFeedbackVaryings(int program, String[] varyings, int bufferMode) {glTransformFeedbackVaryings(program, varyings, bufferMode);}
+    @Override public void bindBufferBase(int target, int index, int buffer) {glBindBufferBase(target, index, buffer);}
+    @Override public void beginTransformFeedback(int primitiveMode) {glBeginTransformFeedback(primitiveMode);}
+    @Override public void endTransformFeedback() {glEndTransformFeedback();}
+}
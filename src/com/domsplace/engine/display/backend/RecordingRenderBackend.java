@@ -0,0 +1,312 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.backend;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.lwjgl.opengl.GL11.GL_TRUE;
+import static org.lwjgl.opengl.GL32.GL_ALREADY_SIGNALED;
+
+/**
+ * Pretends to be GL without needing a context. Nothing is drawn, every call
+ * is counted instead so the cost of rendering a scene can be checked from a
+ * plain unit test:
+ *
+ *  RecordingRenderBackend backend = new RecordingRenderBackend();
+ *  RenderBackend.setActiveBackend(backend);
+ *  GLStateCache.getInstance().invalidate();
+ *  ...render a frame...
+ *  assertEquals(1, backend.getDrawCalls());
+ *
+ * Handles are handed out from a counter, shaders always compile, queries are
+ * always ready (and took no time). Capabilities can be switched on and off
+ * to exercise the fallback paths; by default it has instancing and blit but
+ * no buffer storage, timer queries, transform feedback or anisotropy.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public class RecordingRenderBackend extends RenderBackend {
+    //Capabilities
+    private boolean instancing = true;
+    private boolean bufferStorage = false;
+    private boolean blit = true;
+    private boolean timerQuery = false;
+    private boolean transformFeedback = false;
+    private float maxAnisotropy = 0;
+
+    //Handles
+    private int nextHandle = 1;
+    private final Map<String, Integer> locations = new HashMap<String, Integer>();
+
+    //Counters
+    private final Map<String, long[]> calls = new HashMap<String, long[]>();
+    private long drawCalls;
+    private long vertices;
+    private long instances;
+    private long stateChanges;
+    private long uniformUpdates;
+    private long bytesUploaded;
+    private boolean logging = false;
+    private final List<String> log = new ArrayList<String>();
+
+    public RecordingRenderBackend() {}
+
+    public void setInstancingSupported(boolean supported) {this.instancing = supported;}
+    public void setBufferStorageSupported(boolean supported) {this.bufferStorage = supported;}
+    public void setFramebufferBlitSupported(boolean supported) {this.blit = supported;}
+    public void setTimerQuerySupported(boolean supported) {this.timerQuery = supported;}
+    public void setTransformFeedbackSupported(boolean supported) {this.transformFeedback = supported;}
+    public void setMaxAnisotropy(float anisotropy) {this.maxAnisotropy = anisotropy;}
+
+    //Keep a line per call in getLog(), off by default
+    public void setLogging(boolean logging) {this.logging = logging;}
+
+    public long getDrawCalls() {return this.drawCalls;}//Including immediate mode begin/end pairs
+    public long getVertices() {return this.vertices;}//Every instance counts its vertices
+    public long getInstances() {return this.instances;}
+    public long getStateChanges() {return this.stateChanges;}
+    public long getUniformUpdates() {return this.uniformUpdates;}
+    public long getBytesUploaded() {return this.bytesUploaded;}//Buffer and texture data
+    public List<String> getLog() {return new ArrayList<String>(this.log);}
+
+    //How many times a method (by name, e.g. "bindTexture") was called
+    public long getCallCount(String method) {
+        long[] count = this.calls.get(method);
+        return count == null ? 0 : count[0];
+    }
+
+    //Zeros every counter and the log, handles and capabilities are kept
+    public void reset() {
+        this.calls.clear();
+        this.drawCalls = 0;
+        this.vertices = 0;
+        this.instances = 0;
+        this.stateChanges = 0;
+        this.uniformUpdates = 0;
+        this.bytesUploaded = 0;
+        this.log.clear();
+    }
+
+    private void call(String method, String detail) {
+        long[] count = this.calls.get(method);
+        if(count == null) this.calls.put(method, count = new long[1]);
+        count[0]++;
+        if(this.logging) this.log.add(detail == null ? method : method + "(" + detail + ")");
+    }
+
+    private void state(String method, String detail) {
+        this.call(method, detail);
+        this.stateChanges++;
+    }
+
+    private void uniform(String method, int location) {
+        this.call(method, this.logging ? String.valueOf(location) : null);
+        this.uniformUpdates++;
+    }
+
+    private void upload(String method, long bytes) {
+        this.call(method, this.logging ? bytes + " bytes" : null);
+        this.bytesUploaded += bytes;
+    }
+
+    private int handle(String method) {
+        this.call(method, null);
+        return this.nextHandle++;
+    }
+
+    private String args(int a, int b) {return this.logging ? a + ", " + b : null;}
+
+    private int location(int program, String name) {
+        String key = program + ":" + name;
+        Integer location = this.locations.get(key);
+        if(location == null) {
+            location = this.locations.size();
+            this.locations.put(key, location);
+        }
+        return location;
+    }
+
+    //Capabilities
+    @Override public boolean isInstancingSupported() {return this.instancing;}
+    @Override public boolean isBufferStorageSupported() {return this.bufferStorage;}
+    @Override public boolean isFramebufferBlitSupported() {return this.blit;}
+    @Override public boolean isTimerQuerySupported() {return this.timerQuery;}
+    @Override public boolean isTransformFeedbackSupported() {return this.transformFeedback;}
+    @Override public float getMaxAnisotropy() {return this.maxAnisotropy;}
+
+    //Fixed state
+    @Override public void enable(int capability) {this.state("enable", this.args(capability, 1));}
+    @Override public void hint(int target, int mode) {this.state("hint", this.args(target, mode));}
+    @Override public void disable(int capability) {this.state("disable", this.args(capability, 0));}
+    @Override public void blendFunc(int src, int dst) {this.state("blendFunc", this.args(src, dst));}
+    @Override public void viewport(int x, int y, int width, int height) {this.state("viewport", this.args(width, height));}
+    @Override public void clearColor(float r, float g, float b, float a) {this.state("clearColor", null);}
+    @Override public void clear(int mask) {this.call("clear", null);}
+    @Override public void pixelStorei(int name, int value) {this.state("pixelStorei", this.args(name, value));}
+    @Override public void finish() {this.call("finish", null);}
+
+    @Override
+    public void readPixels(int x, int y, int width, int height, int format, int type, ByteBuffer pixels) {
+        this.call("readPixels", this.args(width, height));
+        for(int i = pixels.position(); i < pixels.limit(); i++) pixels.put(i, (byte)0);
+    }
+
+    //Matrices
+    @Override public void matrixMode(int mode) {this.state("matrixMode", null);}
+    @Override public void loadIdentity() {this.state("loadIdentity", null);}
+    @Override public void ortho(double left, double right, double bottom, double top, double near, double far) {this.state("ortho", null);}
+    @Override public void loadMatrix(float[] matrix) {this.state("loadMatrix", null);}
+
+    //Immediate mode, a begin/end pair is a draw of however many vertices
+    @Override public void begin(int mode) {this.call("begin", null);}
+    @Override public void vertex2f(float x, float y) {this.vertices++;}
+    @Override public void texCoord2f(float s, float t) {}
+    @Override public void color4f(float r, float g, float b, float a) {this.state("color4f", null);}
+
+    @Override
+    public void end() {
+        this.call("end", null);
+        this.drawCalls++;
+    }
+
+    //Client arrays
+    @Override public void enableClientState(int array) {this.state("enableClientState", null);}
+    @Override public void disableClientState(int array) {this.state("disableClientState", null);}
+    @Override public void clientActiveTexture(int texture) {this.state("clientActiveTexture", null);}
+    @Override public void vertexPointer(int size, int type, int stride, long offset) {this.state("vertexPointer", null);}
+    @Override public void texCoordPointer(int size, int type, int stride, long offset) {this.state("texCoordPointer", null);}
+    @Override public void colorPointer(int size, int type, int stride, long offset) {this.state("colorPointer", null);}
+
+    //Generic attributes
+    @Override public void enableVertexAttribArray(int index) {this.state("enableVertexAttribArray", null);}
+    @Override public void disableVertexAttribArray(int index) {this.state("disableVertexAttribArray", null);}
+    @Override public void vertexAttribPointer(int index, int size, int type, boolean normalized, int stride, long offset) {this.state("vertexAttribPointer", null);}
+    @Override public void vertexAttribDivisor(int index, int divisor) {this.state("vertexAttribDivisor", null);}
+
+    //Drawing
+    @Override
+    public void drawArrays(int mode, int first, int count) {
+        this.call("drawArrays", this.args(mode, count));
+        this.drawCalls++;
+        this.vertices += count;
+    }
+
+    @Override
+    public void drawArraysInstanced(int mode, int first, int count, int instances) {
+        this.call("drawArraysInstanced", this.args(count, instances));
+        this.drawCalls++;
+        this.vertices += (long)count * instances;
+        this.instances += instances;
+    }
+
+    //Buffers
+    @Override public int genBuffer() {return this.handle("genBuffer");}
+    @Override public void deleteBuffer(int buffer) {this.call("deleteBuffer", null);}
+    @Override public void bindBuffer(int target, int buffer) {this.state("bindBuffer", this.args(target, buffer));}
+    @Override public void bufferData(int target, long size, int usage) {this.call("bufferData", null);}//Just storage, nothing uploaded
+    @Override public void bufferData(int target, float[] data, int usage) {this.upload("bufferData", data.length * 4L);}
+    @Override public void bufferSubData(int target, long offset, ByteBuffer data) {this.upload("bufferSubData", data.remaining());}
+    @Override public void bufferStorage(int target, long size, int flags) {this.call("bufferStorage", null);}
+    @Override public void unmapBuffer(int target) {this.call("unmapBuffer", null);}
+
+    @Override
+    public ByteBuffer mapBufferRange(int target, long offset, long length, int access) {
+        this.call("mapBufferRange", null);
+        return ByteBuffer.allocateDirect((int)length).order(ByteOrder.nativeOrder());
+    }
+
+    //Sync
+    @Override public long fenceSync() {return this.handle("fenceSync");}
+    @Override public int clientWaitSync(long sync, int flags, long timeout) {this.call("clientWaitSync", null); return GL_ALREADY_SIGNALED;}
+    @Override public void deleteSync(long sync) {this.call("deleteSync", null);}
+
+    //Shaders, always compile and link
+    @Override public int createShader(int type) {return this.handle("createShader");}
+    @Override public void shaderSource(int shader, String source) {this.call("shaderSource", null);}
+    @Override public void compileShader(int shader) {this.call("compileShader", null);}
+    @Override public int getShaderi(int shader, int name) {this.call("getShaderi", null); return GL_TRUE;}
+    @Override public String getShaderInfoLog(int shader) {this.call("getShaderInfoLog", null); return "";}
+    @Override public void deleteShader(int shader) {this.call("deleteShader", null);}
+    @Override public int createProgram() {return this.handle("createProgram");}
+    @Override public void attachShader(int program, int shader) {this.call("attachShader", null);}
+    @Override public void linkProgram(int program) {this.call("linkProgram", null);}
+    @Override public void validateProgram(int program) {this.call("validateProgram", null);}
+    @Override public int getProgrami(int program, int name) {this.call("getProgrami", null); return GL_TRUE;}
+    @Override public String getProgramInfoLog(int program) {this.call("getProgramInfoLog", null); return "";}
+    @Override public void useProgram(int program) {this.state("useProgram", this.args(program, 0));}
+    @Override public int getUniformLocation(int program, String name) {this.call("getUniformLocation", null); return this.location(program, name);}
+    @Override public int getAttribLocation(int program, String name) {this.call("getAttribLocation", null); return this.location(program, name);}
+    @Override public void uniform1i(int location, int value) {this.uniform("uniform1i", location);}
+    @Override public void uniform1f(int location, float value) {this.uniform("uniform1f", location);}
+    @Override public void uniform2f(int location, float x, float y) {this.uniform("uniform2f", location);}
+    @Override public void uniform3f(int location, float x, float y, float z) {this.uniform("uniform3f", location);}
+    @Override public void uniform4f(int location, float x, float y, float z, float w) {this.uniform("uniform4f", location);}
+    @Override public void uniformfv(int location, int components, FloatBuffer values) {this.uniform("uniformfv", location);}
+
+    //Textures
+    @Override public int genTexture() {return this.handle("genTexture");}
+    @Override public void deleteTexture(int texture) {this.call("deleteTexture", null);}
+    @Override public void activeTexture(int texture) {this.state("activeTexture", this.args(texture, 0));}
+    @Override public void bindTexture(int target, int texture) {this.state("bindTexture", this.args(target, texture));}
+    @Override public void texParameteri(int target, int name, int value) {this.state("texParameteri", null);}
+    @Override public void texParameterf(int target, int name, float value) {this.state("texParameterf", null);}
+    @Override public void generateMipmap(int target) {this.call("generateMipmap", null);}
+
+    @Override
+    public void texImage2D(int target, int level, int internalFormat, int width, int height, int border, int format, int type, ByteBuffer pixels) {
+        this.upload("texImage2D", pixels == null ? 0 : pixels.remaining());
+    }
+
+    @Override
+    public void texSubImage2D(int target, int level, int x, int y, int width, int height, int format, int type, ByteBuffer pixels) {
+        this.upload("texSubImage2D", pixels == null ? 0 : pixels.remaining());
+    }
+
+    //Framebuffers
+    @Override public int genFramebuffer() {return this.handle("genFramebuffer");}
+    @Override public void deleteFramebuffer(int framebuffer) {this.call("deleteFramebuffer", null);}
+    @Override public void bindFramebuffer(int target, int framebuffer) {this.state("bindFramebuffer", this.args(target, framebuffer));}
+    @Override public void framebufferTexture2D(int target, int attachment, int textureTarget, int texture, int level) {this.call("framebufferTexture2D", null);}
+    @Override public int genRenderbuffer() {return this.handle("genRenderbuffer");}
+    @Override public void bindRenderbuffer(int target, int renderbuffer) {this.state("bindRenderbuffer", null);}
+    @Override public void renderbufferStorage(int target, int format, int width, int height) {this.call("renderbufferStorage", null);}
+    @Override public void framebufferRenderbuffer(int target, int attachment, int renderbufferTarget, int renderbuffer) {this.call("framebufferRenderbuffer", null);}
+
+    @Override
+    public void blitFramebuffer(int srcX0, int srcY0, int srcX1, int srcY1, int dstX0, int dstY0, int dstX1, int dstY1, int mask, int filter) {
+        this.call("blitFramebuffer", this.args(dstX1 - dstX0, dstY1 - dstY0));
+        this.drawCalls++;
+    }
+
+    //Queries, always ready and always free
+    @Override public int genQuery() {return this.handle("genQuery");}
+    @Override public void deleteQuery(int query) {this.call("deleteQuery", null);}
+    @Override public void beginQuery(int target, int query) {this.call("beginQuery", null);}
+    @Override public void endQuery(int target) {this.call("endQuery", null);}
+    @Override public int getQueryObjecti(int query, int name) {this.call("getQueryObjecti", null); return GL_TRUE;}
+    @Override public long getQueryObjectui64(int query, int name) {this.call("getQueryObjectui64", null); return 0;}
+
+    //Transform feedback, nothing is captured
+    @Override public void transformFeedbackVaryings(int program, String[] varyings, int bufferMode) {this.call("transformFeedbackVaryings", null);}
+    @Override public void bindBufferBase(int target, int index, int buffer) {this.state("bindBufferBase", this.args(index, buffer));}
+    @Override public void beginTransformFeedback(int primitiveMode) {this.call("beginTransformFeedback", null);}
+    @Override public void endTransformFeedback() {this.call("endTransformFeedback", null);}
+}
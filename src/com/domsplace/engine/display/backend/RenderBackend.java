@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.backend;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Every GL call the engine makes once a context exists goes through here, so
+ * the renderer can be pointed at something other than a real driver. The
+ * methods mirror the GL functions they stand for (same arguments, same GL
+ * enums) minus the gl prefix.
+ *
+ * LWJGLRenderBackend is the default and just forwards to LWJGL.
+ * RecordingRenderBackend needs no context at all and counts (optionally logs)
+ * what would have been drawn, for tests and tools.
+ *
+ * Creating the window and context itself is still LWJGL/GLFW only, see
+ * DisplayManager.setup().
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public abstract class RenderBackend {
+    private static RenderBackend ACTIVE_BACKEND = new LWJGLRenderBackend();
+
+    public static RenderBackend getActiveBackend() {return ACTIVE_BACKEND;}
+
+    /**
+     * Swaps the backend. Anything created through the old one (textures,
+     * shaders, buffers) means nothing to the new one, so do this before any
+     * rendering, and GLStateCache.invalidate() afterwards.
+     */
+    public static void setActiveBackend(RenderBackend backend) {
+        if(!(backend instanceof RenderBackend)) throw new IllegalArgumentException("Backend cannot be null.");
+        ACTIVE_BACKEND = backend;
+    }
+
+    //Capabilities
+    public abstract boolean isInstancingSupported();//GL 3.3 divisors + instanced draws
+    public abstract boolean isBufferStorageSupported();//Persistent mapping and fences
+    public abstract boolean isFramebufferBlitSupported();
+    public abstract boolean isTimerQuerySupported();
+    public abstract boolean isTransformFeedbackSupported();//GL 3.0
+    public abstract float getMaxAnisotropy();//0 if unsupported
+
+    //Fixed state
+    public abstract void enable(int capability);
+    public abstract void hint(int target, int mode);
+    public abstract void disable(int capability);
+    public abstract void blendFunc(int src, int dst);
+    public abstract void viewport(int x, int y, int width, int height);
+    public abstract void clearColor(float r, float g, float b, float a);
+    public abstract void clear(int mask);
+    public abstract void pixelStorei(int name, int value);
+    public abstract void finish();
+    public abstract void readPixels(int x, int y, int width, int height, int format, int type, ByteBuffer pixels);
+
+    //Matrices
+    public abstract void matrixMode(int mode);
+    public abstract void loadIdentity();
+    public abstract void ortho(double left, double right, double bottom, double top, double near, double far);
+    public abstract void loadMatrix(float[] matrix);//16 floats, column major
+
+    //Immediate mode
+    public abstract void begin(int mode);
+    public abstract void end();
+    public abstract void vertex2f(float x, float y);
+    public abstract void texCoord2f(float s, float t);
+    public abstract void color4f(float r, float g, float b, float a);
+
+    //Client arrays (fixed function attributes)
+    public abstract void enableClientState(int array);
+    public abstract void disableClientState(int array);
+    public abstract void clientActiveTexture(int texture);
+    public abstract void vertexPointer(int size, int type, int stride, long offset);
+    public abstract void texCoordPointer(int size, int type, int stride, long offset);
+    public abstract void colorPointer(int size, int type, int stride, long offset);
+
+    //Generic attributes
+    public abstract void enableVertexAttribArray(int index);
+    public abstract void disableVertexAttribArray(int index);
+    public abstract void vertexAttribPointer(int index, int size, int type, boolean normalized, int stride, long offset);
+    public abstract void vertexAttribDivisor(int index, int divisor);
+
+    //Drawing
+    public abstract void drawArrays(int mode, int first, int count);
+    public abstract void drawArraysInstanced(int mode, int first, int count, int instances);
+
+    //Buffers
+    public abstract int genBuffer();
+    public abstract void deleteBuffer(int buffer);
+    public abstract void bindBuffer(int target, int buffer);
+    public abstract void bufferData(int target, long size, int usage);
+    public abstract void bufferData(int target, float[] data, int usage);
+    public abstract void bufferSubData(int target, long offset, ByteBuffer data);
+    public abstract void bufferStorage(int target, long size, int flags);
+    public abstract ByteBuffer mapBufferRange(int target, long offset, long length, int access);
+    public abstract void unmapBuffer(int target);
+
+    //Sync
+    public abstract long fenceSync();
+    public abstract int clientWaitSync(long sync, int flags, long timeout);
+    public abstract void deleteSync(long sync);
+
+    //Shaders
+    public abstract int createShader(int type);
+    public abstract void shaderSource(int shader, String source);
+    public abstract void compileShader(int shader);
+    public abstract int getShaderi(int shader, int name);
+    public abstract String getShaderInfoLog(int shader);
+    public abstract void deleteShader(int shader);
+    public abstract int createProgram();
+    public abstract void attachShader(int program, int shader);
+    public abstract void linkProgram(int program);
+    public abstract void validateProgram(int program);
+    public abstract int getProgrami(int program, int name);
+    public abstract String getProgramInfoLog(int program);
+    public abstract void useProgram(int program);
+    public abstract int getUniformLocation(int program, String name);
+    public abstract int getAttribLocation(int program, String name);
+    public abstract void uniform1i(int location, int value);
+    public abstract void uniform1f(int location, float value);
+    public abstract void uniform2f(int location, float x, float y);
+    public abstract void uniform3f(int location, float x, float y, float z);
+    public abstract void uniform4f(int location, float x, float y, float z, float w);
+    public abstract void uniformfv(int location, int components, FloatBuffer values);//components is 1 to 4
+
+    //Textures
+    public abstract int genTexture();
+    public abstract void deleteTexture(int texture);
+    public abstract void activeTexture(int texture);
+    public abstract void bindTexture(int target, int texture);
+    public abstract void texParameteri(int target, int name, int value);
+    public abstract void texParameterf(int target, int name, float value);
+    public abstract void texImage2D(int target, int level, int internalFormat, int width, int height, int border, int format, int type, ByteBuffer pixels);
+    public abstract void texSubImage2D(int target, int level, int x, int y, int width, int height, int format, int type, ByteBuffer pixels);
+    public abstract void generateMipmap(int target);
+
+    //Framebuffers
+    public abstract int genFramebuffer();
+    public abstract void deleteFramebuffer(int framebuffer);
+    public abstract void bindFramebuffer(int target, int framebuffer);
+    public abstract void framebufferTexture2D(int target, int attachment, int textureTarget, int texture, int level);
+    public abstract int genRenderbuffer();
+    public abstract void bindRenderbuffer(int target, int renderbuffer);
+    public abstract void renderbufferStorage(int target, int format, int width, int height);
+    public abstract void framebufferRenderbuffer(int target, int attachment, int renderbufferTarget, int renderbuffer);
+    public abstract void blitFramebuffer(int srcX0, int srcY0, int srcX1, int srcY1, int dstX0, int dstY0, int dstX1, int dstY1, int mask, int filter);
+
+    //Queries
+    public abstract int genQuery();
+    public abstract void deleteQuery(int query);
+    public abstract void beginQuery(int target, int query);
+    public abstract void endQuery(int target);
+    public abstract int getQueryObjecti(int query, int name);
+    public abstract long getQueryObjectui64(int query, int name);
+
+    //Transform feedback
+    public abstract void transformFeedbackVaryings(int program, String[] varyings, int bufferMode);//Before linking
+    public abstract void bindBufferBase(int target, int index, int buffer);
+    public abstract void beginTransformFeedback(int primitiveMode);
+    public abstract void endTransformFeedback();
+}
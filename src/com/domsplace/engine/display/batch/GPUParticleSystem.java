@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.batch;
+
+import com.domsplace.engine.display.GLStateCache;
+import com.domsplace.engine.display.backend.RenderBackend;
+import com.domsplace.engine.display.shader.ShaderProgram;
+import com.domsplace.engine.disposable.IDisposable;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import org.lwjgl.BufferUtils;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.GL_RASTERIZER_DISCARD;
+import static org.lwjgl.opengl.GL30.GL_TRANSFORM_FEEDBACK_BUFFER;
+
+/**
+ * Particle state kept entirely in GL buffers and stepped by a vertex shader
+ * with transform feedback, for effects too big to simulate on the CPU. There
+ * are two state buffers, each step reads one and captures into the other.
+ * ParticleRenderer then draws straight from whichever holds the latest state.
+ *
+ * Particles are 12 floats: x, y, vx, vy, then age, life, size, frame, then
+ * r, g, b, a. Slots are a ring, new particles overwrite the oldest slot, and
+ * dead ones just stay in their slot with zero size until then. New particles
+ * are staged in memory (from any thread, such as a tick worker) and uploaded
+ * with the next step(). A staged particle starts with a negative age, the
+ * time that was already waiting for that step when it spawned, so the step
+ * only moves it for the time it has actually been alive.
+ *
+ * Needs GL 3.0 transform feedback and GL 3.3 instancing, see
+ * ParticleRenderer.isFeedbackAvailable(). Nothing beyond that, so Mesa's
+ * llvmpipe runs it too.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class GPUParticleSystem implements IDisposable {
+    //Constants
+    public static final int FLOATS_PER_PARTICLE = 12;
+    public static final int PARTICLE_STRIDE = FLOATS_PER_PARTICLE * 4;
+    public static final int MAX_SPAWNS = 16384;//Per step, more are dropped
+    public static final float MAX_STEP = 0.1f;//Longer steps are split up
+    public static final int MAX_SUBSTEPS = 8;//Past this the steps just get longer
+
+    public static final String UPDATE_SHADER =
+        "#version 130\n" +
+        "in vec4 motion;\n" +
+        "in vec4 state;\n" +
+        "in vec4 tint;\n" +
+        "uniform float delta;\n" +
+        "uniform float damping;\n" +
+        "uniform vec2 acceleration;\n" +
+        "out vec4 nextMotion;\n" +
+        "out vec4 nextState;\n" +
+        "out vec4 nextTint;\n" +
+        "void main() {\n" +
+        "    float live = clamp(state.x + delta, 0.0, delta);\n" +
+        "    vec2 velocity = motion.zw * exp(damping * live) + acceleration * live;\n" +
+        "    nextMotion = vec4(motion.xy + velocity * live, velocity);\n" +
+        "    nextState = vec4(state.x + delta, state.yzw);\n" +
+        "    nextTint = tint;\n" +
+        "    gl_Position = vec4(0.0);\n" +
+        "}\n";
+
+    public static final String[] UPDATE_VARYINGS = {"nextMotion", "nextState", "nextTint"};
+    private static final String[] UPDATE_ATTRIBUTES = {"motion", "state", "tint"};
+
+    public static ShaderProgram getUpdateShader() {
+        return ShaderProgram.getFeedbackShader("engine/particle_update", UPDATE_SHADER, UPDATE_VARYINGS);
+    }
+
+    //Instance
+    private final int capacity;
+    private final int[] buffers = new int[]{-1, -1};
+    private int current = 0;//Holds the latest state
+    private long spawned = 0;
+    private int cursor = 0;//Next slot to overwrite
+    private boolean disposed = false;
+
+    private final ByteBuffer staging;
+    private final FloatBuffer stagingFloats;
+    private int pending = 0;
+    private int pendingStart = 0;
+    private float pendingTime = 0;
+
+    public GPUParticleSystem(int capacity) {
+        if(capacity <= 0) throw new IllegalArgumentException("Particle capacity must be positive.");
+        this.capacity = capacity;
+        this.staging = BufferUtils.createByteBuffer(Math.min(capacity, MAX_SPAWNS) * PARTICLE_STRIDE);
+        this.stagingFloats = this.staging.asFloatBuffer();
+    }
+
+    @Override public boolean isDisposed() {return this.disposed;}
+    public int getCapacity() {return this.capacity;}
+    public int getBufferID() {return this.buffers[this.current];}
+
+    //Slots that have ever held a particle, what gets stepped and drawn
+    public int getSlotCount() {return (int)Math.min(this.capacity, this.spawned);}
+
+    /**
+     * Stages a particle for the next step().
+     * @return false if this step's staging is full.
+     */
+    public boolean spawn(float x, float y, float vx, float vy, float life, float size, float r, float g, float b, float a, float frame) {
+        if(this.pending * FLOATS_PER_PARTICLE >= this.stagingFloats.capacity()) return false;
+        if(this.pending == 0) this.pendingStart = this.cursor;
+        FloatBuffer f = this.stagingFloats;
+        int o = this.pending * FLOATS_PER_PARTICLE;
+        f.put(o, x).put(o + 1, y).put(o + 2, vx).put(o + 3, vy);
+        f.put(o + 4, -this.pendingTime).put(o + 5, life).put(o + 6, size).put(o + 7, frame);
+        f.put(o + 8, r).put(o + 9, g).put(o + 10, b).put(o + 11, a);
+        this.pending++;
+        this.cursor = (this.cursor + 1) % this.capacity;
+        this.spawned++;
+        return true;
+    }
+
+    //Time for the next step() to simulate
+    public void addTime(float seconds) {this.pendingTime += seconds;}
+
+    private void create() {
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        GLStateCache cache = GLStateCache.getInstance();
+        for(int i = 0; i < this.buffers.length; i++) {
+            this.buffers[i] = gl.genBuffer();
+            cache.bindArrayBuffer(this.buffers[i]);
+            gl.bufferData(GL_ARRAY_BUFFER, (long)this.capacity * PARTICLE_STRIDE, GL_DYNAMIC_COPY);
+        }
+    }
+
+    /**
+     * Uploads staged particles then steps everything by the time added since
+     * the last step. Main thread.
+     * @param damping velocity kept per second, 1 for none
+     */
+    public void step(float ax, float ay, float damping) {
+        if(this.disposed) throw new IllegalStateException("GPUParticleSystem is disposed.");
+        if(this.buffers[0] == -1) this.create();
+        this.upload();
+
+        int slots = this.getSlotCount();
+        float delta = this.pendingTime;
+        this.pendingTime = 0;
+        if(slots == 0 || delta <= 0) return;
+
+        //Long gaps (say the emitter wasn't drawn for a while) go in a few shorter steps
+        int steps = Math.max(1, Math.min(MAX_SUBSTEPS, (int)Math.ceil(delta / MAX_STEP)));
+        float substep = delta / steps;
+
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        GLStateCache cache = GLStateCache.getInstance();
+        ShaderProgram shader = getUpdateShader();
+        shader.bind();
+        shader.setVariable("delta", substep);
+        shader.setVariable("damping", (float)Math.log(Math.max(damping, 0.000001f)));//Kept is e^(damping * t)
+        gl.uniform2f(shader.getVariableID("acceleration"), ax, ay);
+
+        for(int i = 0; i < UPDATE_ATTRIBUTES.length; i++) gl.enableVertexAttribArray(shader.getAttributeID(UPDATE_ATTRIBUTES[i]));
+        gl.enable(GL_RASTERIZER_DISCARD);
+        for(int step = 0; step < steps; step++) {
+            cache.bindArrayBuffer(this.buffers[this.current]);
+            for(int i = 0; i < UPDATE_ATTRIBUTES.length; i++) {
+                gl.vertexAttribPointer(shader.getAttributeID(UPDATE_ATTRIBUTES[i]), 4, GL_FLOAT, false, PARTICLE_STRIDE, i * 16);
+            }
+            int next = 1 - this.current;
+            gl.bindBufferBase(GL_TRANSFORM_FEEDBACK_BUFFER, 0, this.buffers[next]);
+            gl.beginTransformFeedback(GL_POINTS);
+            gl.drawArrays(GL_POINTS, 0, slots);
+            gl.endTransformFeedback();
+            this.current = next;
+        }
+        gl.bindBufferBase(GL_TRANSFORM_FEEDBACK_BUFFER, 0, 0);
+        gl.disable(GL_RASTERIZER_DISCARD);
+        for(int i = 0; i < UPDATE_ATTRIBUTES.length; i++) gl.disableVertexAttribArray(shader.getAttributeID(UPDATE_ATTRIBUTES[i]));
+    }
+
+    //Staged particles into their ring slots, in up to two pieces if they wrap
+    private void upload() {
+        if(this.pending == 0) return;
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        GLStateCache.getInstance().bindArrayBuffer(this.buffers[this.current]);
+        int first = Math.min(this.pending, this.capacity - this.pendingStart);
+        ByteBuffer data = this.staging.duplicate();
+        data.position(0).limit(first * PARTICLE_STRIDE);
+        gl.bufferSubData(GL_ARRAY_BUFFER, (long)this.pendingStart * PARTICLE_STRIDE, data);
+        if(first < this.pending) {
+            data.limit(this.pending * PARTICLE_STRIDE).position(first * PARTICLE_STRIDE);
+            gl.bufferSubData(GL_ARRAY_BUFFER, 0, data);
+        }
+        this.pending = 0;
+    }
+
+    /**
+     * Forgets every particle. Staging isn't thread safe against a spawn()
+     * running at the same time.
+     */
+    public void clear() {
+        this.spawned = 0;
+        this.cursor = 0;
+        this.pending = 0;
+        this.pendingTime = 0;
+    }
+
+    @Override
+    public void dispose() {
+        if(this.disposed) return;
+        this.disposed = true;
+        GLStateCache cache = GLStateCache.getInstance();
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        for(int i = 0; i < this.buffers.length; i++) {
+            if(this.buffers[i] == -1) continue;
+            if(cache.getArrayBuffer() == this.buffers[i]) cache.bindArrayBuffer(0);
+            gl.deleteBuffer(this.buffers[i]);
+            this.buffers[i] = -1;
+        }
+        this.clear();
+    }
+}
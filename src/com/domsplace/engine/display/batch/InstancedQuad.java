@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.batch;
+
+import com.domsplace.engine.display.GLStateCache;
+import com.domsplace.engine.display.Transform2D;
+import com.domsplace.engine.display.backend.RenderBackend;
+import com.domsplace.engine.display.shader.ShaderProgram;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+
+/**
+ * What InstancedSpriteRenderer and ParticleRenderer share: the unit quad
+ * (two triangles of "corner" attributes) every instance is expanded from, the
+ * attribute setup around an instanced draw and the batch transform uniforms.
+ * Nothing here allocates once the quad exists.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+final class InstancedQuad {
+    private static final InstancedQuad INSTANCE = new InstancedQuad();
+    static InstancedQuad getInstance() {return INSTANCE;}
+
+    //Instance
+    private int cornerBuffer = -1;
+
+    private InstancedQuad() {}
+
+    /**
+     * Points "corner" at the quad and enables the per instance attributes
+     * with a divisor of 1, their pointers are up to the caller.
+     */
+    void setup(ShaderProgram shader, String[] instanceAttributes) {
+        GLStateCache cache = GLStateCache.getInstance();
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        if(this.cornerBuffer == -1) {
+            this.cornerBuffer = gl.genBuffer();
+            cache.bindArrayBuffer(this.cornerBuffer);
+            gl.bufferData(GL_ARRAY_BUFFER, new float[]{0,0, 1,0, 1,1, 0,0, 1,1, 0,1}, GL_STATIC_DRAW);
+        }
+
+        int corner = shader.getAttributeID("corner");
+        cache.bindArrayBuffer(this.cornerBuffer);
+        gl.enableVertexAttribArray(corner);
+        gl.vertexAttribPointer(corner, 2, GL_FLOAT, false, 0, 0);
+
+        for(int i = 0; i < instanceAttributes.length; i++) {
+            int attribute = shader.getAttributeID(instanceAttributes[i]);
+            gl.enableVertexAttribArray(attribute);
+            gl.vertexAttribDivisor(attribute, 1);
+        }
+    }
+
+    void teardown(ShaderProgram shader, String[] instanceAttributes) {
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        gl.disableVertexAttribArray(shader.getAttributeID("corner"));
+        for(int i = 0; i < instanceAttributes.length; i++) {
+            int attribute = shader.getAttributeID(instanceAttributes[i]);
+            gl.vertexAttribDivisor(attribute, 0);
+            gl.disableVertexAttribArray(attribute);
+        }
+    }
+
+    //The 2x2 part of the transform as "transform" and its translation as "offset"
+    void setTransform(ShaderProgram shader, Transform2D m) {
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        gl.uniform4f(shader.getVariableID("transform"), m.getA(), m.getB(), m.getC(), m.getD());
+        gl.uniform2f(shader.getVariableID("offset"), m.getTranslateX(), m.getTranslateY());
+    }
+
+    void dispose() {
+        if(this.cornerBuffer == -1) return;
+        GLStateCache cache = GLStateCache.getInstance();
+        if(cache.getArrayBuffer() == this.cornerBuffer) cache.bindArrayBuffer(0);
+        RenderBackend.getActiveBackend().deleteBuffer(this.cornerBuffer);
+        this.cornerBuffer = -1;
+    }
+}
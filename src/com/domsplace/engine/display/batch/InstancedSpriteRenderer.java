@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.batch;
+
+import com.domsplace.engine.display.GLStateCache;
+import com.domsplace.engine.display.backend.RenderBackend;
+import com.domsplace.engine.display.shader.ShaderProgram;
+import com.domsplace.engine.display.texture.Texture;
+import com.domsplace.engine.scene.gameobject.GameObject;
+import java.awt.Color;
+import java.nio.FloatBuffer;
+import java.util.List;
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * Draws runs of plain GameObjects that share a texture with one
+ * glDrawArraysInstanced call. Each object becomes 12 floats (rect, uvs and
+ * tint) instead of six full vertices.
+ *
+ * Needs GL 3.3, when that's missing isAvailable() is false and the scene
+ * just keeps going through the SpriteBatch.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class InstancedSpriteRenderer {
+    //Constants
+    public static final int MAX_INSTANCES = 16384;
+    public static final int MIN_INSTANCES = 16;//Shorter runs aren't worth the switch
+    public static final int FLOATS_PER_INSTANCE = 12;
+    public static final int INSTANCE_STRIDE = FLOATS_PER_INSTANCE * 4;
+    public static final int MAX_BYTES = MAX_INSTANCES * INSTANCE_STRIDE;
+
+    public static final String VERTEX_SHADER =
+        "#version 130\n" +
+        "in vec2 corner;\n" +
+        "in vec4 rect;\n" +
+        "in vec4 uvs;\n" +
+        "in vec4 tint;\n" +
+        "uniform vec4 transform;\n" +
+        "uniform vec2 offset;\n" +
+        "out vec2 uv;\n" +
+        "out vec4 color;\n" +
+        "void main() {\n" +
+        "    vec2 pos = mat2(transform.xy, transform.zw) * (rect.xy + corner * rect.zw) + offset;\n" +
+        "    gl_Position = gl_ProjectionMatrix * vec4(pos, 0.0, 1.0);\n" +
+        "    uv = mix(uvs.xy, uvs.zw, corner);\n" +
+        "    color = tint;\n" +
+        "}\n";
+
+    public static final String FRAGMENT_SHADER =
+        "#version 130\n" +
+        "uniform sampler2D tex;\n" +
+        "in vec2 uv;\n" +
+        "in vec4 color;\n" +
+        "void main() {\n" +
+        "    gl_FragColor = color * texture(tex, uv);\n" +
+        "}\n";
+
+    private static final String[] INSTANCE_ATTRIBUTES = {"rect", "uvs", "tint"};
+
+    private static final InstancedSpriteRenderer INSTANCE = new InstancedSpriteRenderer();
+    public static InstancedSpriteRenderer getInstance() {return INSTANCE;}
+
+    //Instance
+    private FloatBuffer instances;//Open StreamBuffer allocation
+    private Boolean available;
+
+    //Stats
+    private int drawCalls = 0;
+    private int instanceCount = 0;
+    private int lastDrawCalls = 0;
+    private int lastInstanceCount = 0;
+
+    private InstancedSpriteRenderer() {}
+
+    public int getDrawCalls() {return this.lastDrawCalls;}
+    public int getInstanceCount() {return this.lastInstanceCount;}
+
+    public ShaderProgram getShader() {
+        return ShaderProgram.getSourceShader("engine/instanced_sprite", VERTEX_SHADER, FRAGMENT_SHADER);
+    }
+
+    public boolean isAvailable() {
+        if(this.available instanceof Boolean) return this.available;
+        this.available = RenderBackend.getActiveBackend().isInstancingSupported() && this.getShader() instanceof ShaderProgram;
+        return this.available;
+    }
+
+    public void begin() {
+        this.drawCalls = 0;
+        this.instanceCount = 0;
+    }
+
+    public void end() {
+        this.lastDrawCalls = this.drawCalls;
+        this.lastInstanceCount = this.instanceCount;
+    }
+
+    /**
+     * Draws objects[from, to) which must all be instanceable and share a
+     * binding texture. Anything already in the SpriteBatch is flushed first so
+     * draw order holds.
+     */
+    public void render(List<GameObject> objects, int from, int to) {
+        SpriteBatch batch = SpriteBatch.getInstance();
+        batch.flush();
+
+        ShaderProgram shader = this.getShader();
+        Texture texture = objects.get(from).getTexture();
+        shader.bind();
+        texture.bind();
+        shader.setVariable("tex", 0);
+        InstancedQuad quad = InstancedQuad.getInstance();
+        quad.setTransform(shader, batch.getTransform());
+        //The batch only applies its blend when it flushes, whatever drew last may have left another
+        GLStateCache.getInstance().blendFunc(batch.getBlendSrc(), batch.getBlendDst());
+
+        quad.setup(shader, INSTANCE_ATTRIBUTES);
+
+        StreamBuffer stream = StreamBuffer.getInstance();
+        this.instances = stream.allocate(INSTANCE_STRIDE, MAX_BYTES).asFloatBuffer();
+        for(int i = from; i < to; i++) {
+            GameObject go = objects.get(i);
+            double[] c = go.getRenderCoordinates();
+            Color color = go.color;
+            instances.put((float)go.getRenderX()).put((float)go.getRenderY()).put((float)go.width).put((float)go.height);
+            instances.put((float)c[0]).put((float)c[1]).put((float)c[2]).put((float)c[3]);
+            instances.put(color.getRed()/255f).put(color.getGreen()/255f).put(color.getBlue()/255f).put(go.alpha);
+            if(instances.remaining() < FLOATS_PER_INSTANCE && i + 1 < to) {
+                this.flush(shader);
+                this.instances = stream.allocate(INSTANCE_STRIDE, MAX_BYTES).asFloatBuffer();
+            }
+        }
+        this.flush(shader);
+
+        quad.teardown(shader, INSTANCE_ATTRIBUTES);
+    }
+
+    private void flush(ShaderProgram shader) {
+        int count = instances.position() / FLOATS_PER_INSTANCE;
+        StreamBuffer stream = StreamBuffer.getInstance();
+        long offset = stream.commit(count * INSTANCE_STRIDE);
+        this.instances = null;
+        if(count == 0) return;
+
+        //Instance attribs read from wherever this chunk landed in the ring
+        GLStateCache.getInstance().bindArrayBuffer(stream.getBufferID());
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        for(int i = 0; i < INSTANCE_ATTRIBUTES.length; i++) {
+            gl.vertexAttribPointer(shader.getAttributeID(INSTANCE_ATTRIBUTES[i]), 4, GL_FLOAT, false, INSTANCE_STRIDE, offset + i * 4 * 4);
+        }
+        gl.drawArraysInstanced(GL_TRIANGLES, 0, 6, count);
+        this.drawCalls++;
+        this.instanceCount += count;
+    }
+
+    public void dispose() {
+        InstancedQuad.getInstance().dispose();
+        this.available = null;
+    }
+}
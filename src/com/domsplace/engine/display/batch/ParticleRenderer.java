@@ -0,0 +1,318 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.batch;
+
+import com.domsplace.engine.display.GLStateCache;
+import com.domsplace.engine.display.backend.RenderBackend;
+import com.domsplace.engine.display.shader.ShaderProgram;
+import com.domsplace.engine.display.texture.GameTexture;
+import com.domsplace.engine.display.texture.Texture;
+import com.domsplace.engine.scene.gameobject.particle.GPUParticleEmitter;
+import com.domsplace.engine.scene.gameobject.particle.ParticleBuffer;
+import com.domsplace.engine.scene.gameobject.particle.ParticleEmitter;
+import java.nio.ByteBuffer;
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * Draws every live particle of a ParticleEmitter with one
+ * glDrawArraysInstanced call. Each particle is 20 bytes (position, size,
+ * frame and a byte colour), the quad corners, frame uvs and transform are all
+ * worked out in the shader.
+ *
+ * Same requirements as InstancedSpriteRenderer, without GL 3.3 particles are
+ * drawn as ordinary SpriteBatch quads instead. GPUParticleEmitters are drawn
+ * from their GPUParticleSystem's state buffer, same single draw.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class ParticleRenderer {
+    //Constants
+    public static final int WORDS_PER_PARTICLE = 5;
+    public static final int PARTICLE_STRIDE = WORDS_PER_PARTICLE * 4;
+
+    public static final String VERTEX_SHADER =
+        "#version 130\n" +
+        "in vec2 corner;\n" +
+        "in vec4 particle;\n" +
+        "in vec4 tint;\n" +
+        "uniform vec4 transform;\n" +
+        "uniform vec2 offset;\n" +
+        "uniform vec4 cell;\n" +
+        "uniform vec3 grid;\n" +
+        "out vec2 uv;\n" +
+        "out vec4 color;\n" +
+        "void main() {\n" +
+        "    vec2 pos = mat2(transform.xy, transform.zw) * (particle.xy + (corner - 0.5) * particle.z) + offset;\n" +
+        "    gl_Position = gl_ProjectionMatrix * vec4(pos, 0.0, 1.0);\n" +
+        "    vec2 frame = vec2(mod(particle.w, grid.z), floor(particle.w / grid.z));\n" +
+        "    uv = mix(cell.xy, cell.zw, corner) + frame * grid.xy;\n" +
+        "    color = tint;\n" +
+        "}\n";
+
+    public static final String FRAGMENT_SHADER =
+        "#version 130\n" +
+        "uniform sampler2D tex;\n" +
+        "uniform float textured;\n" +
+        "in vec2 uv;\n" +
+        "in vec4 color;\n" +
+        "void main() {\n" +
+        "    gl_FragColor = color * mix(vec4(1.0), texture(tex, uv), textured);\n" +
+        "}\n";
+
+    //Instances straight from a GPUParticleSystem's state buffer
+    public static final String FEEDBACK_VERTEX_SHADER =
+        "#version 130\n" +
+        "in vec2 corner;\n" +
+        "in vec4 motion;\n" +
+        "in vec4 state;\n" +
+        "in vec4 tint;\n" +
+        "uniform vec4 transform;\n" +
+        "uniform vec2 offset;\n" +
+        "uniform vec4 cell;\n" +
+        "uniform vec3 grid;\n" +
+        "uniform vec3 animation;\n" +
+        "uniform float lag;\n" +
+        "out vec2 uv;\n" +
+        "out vec4 color;\n" +
+        "void main() {\n" +
+        "    float size = state.x < state.y ? state.z : 0.0;\n" +
+        "    vec2 centre = motion.xy - motion.zw * lag;\n" +
+        "    vec2 pos = mat2(transform.xy, transform.zw) * (centre + (corner - 0.5) * size) + offset;\n" +
+        "    gl_Position = gl_ProjectionMatrix * vec4(pos, 0.0, 1.0);\n" +
+        "    float index = state.w;\n" +
+        "    if(animation.x > 0.0 && animation.y > 1.0) index = mod(floor(state.w) + floor(state.x * animation.x), animation.y);\n" +
+        "    vec2 frame = vec2(mod(index, grid.z), floor(index / grid.z));\n" +
+        "    uv = mix(cell.xy, cell.zw, corner) + frame * grid.xy;\n" +
+        "    color = tint;\n" +
+        "    if(animation.z > 0.0) color.a *= clamp(1.0 - state.x / max(state.y, 0.0001), 0.0, 1.0);\n" +
+        "}\n";
+
+    private static final String[] PARTICLE_ATTRIBUTES = {"particle", "tint"};
+    private static final String[] FEEDBACK_ATTRIBUTES = {"motion", "state", "tint"};
+
+    private static final ParticleRenderer INSTANCE = new ParticleRenderer();
+    public static ParticleRenderer getInstance() {return INSTANCE;}
+
+    //Instance
+    private final float[] frameCell = new float[4];//Frame 0's s, t, ss, ts
+    private final float[] frameGrid = new float[3];//Step s, step t, columns
+    private Boolean available;
+    private Boolean feedbackAvailable;
+
+    //Stats
+    private int drawCalls = 0;
+    private int particleCount = 0;
+    private int lastDrawCalls = 0;
+    private int lastParticleCount = 0;
+
+    private ParticleRenderer() {}
+
+    public int getDrawCalls() {return this.lastDrawCalls;}
+    public int getParticleCount() {return this.lastParticleCount;}
+
+    public ShaderProgram getShader() {
+        return ShaderProgram.getSourceShader("engine/particle", VERTEX_SHADER, FRAGMENT_SHADER);
+    }
+
+    public boolean isAvailable() {
+        if(this.available instanceof Boolean) return this.available;
+        this.available = RenderBackend.getActiveBackend().isInstancingSupported() && this.getShader() instanceof ShaderProgram;
+        return this.available;
+    }
+
+    public ShaderProgram getFeedbackShader() {
+        return ShaderProgram.getSourceShader("engine/particle_feedback", FEEDBACK_VERTEX_SHADER, FRAGMENT_SHADER);
+    }
+
+    /**
+     * Whether GPUParticleSystems can run here: transform feedback, instancing
+     * and both shaders. Main thread.
+     */
+    public boolean isFeedbackAvailable() {
+        if(this.feedbackAvailable instanceof Boolean) return this.feedbackAvailable;
+        this.feedbackAvailable = RenderBackend.getActiveBackend().isTransformFeedbackSupported() && this.isAvailable()
+            && GPUParticleSystem.getUpdateShader() instanceof ShaderProgram && this.getFeedbackShader() instanceof ShaderProgram;
+        return this.feedbackAvailable;
+    }
+
+    public void begin() {
+        this.drawCalls = 0;
+        this.particleCount = 0;
+    }
+
+    public void end() {
+        this.lastDrawCalls = this.drawCalls;
+        this.lastParticleCount = this.particleCount;
+    }
+
+    //Frame 0's uvs and the step between frames, mapped into the atlas
+    private void updateFrameGrid(Texture texture) {
+        float[] c = this.frameCell;
+        float[] g = this.frameGrid;
+        if(!(texture instanceof GameTexture) || !texture.isUploaded()) {
+            c[0] = texture instanceof Texture ? (float)texture.mapS(0) : 0;
+            c[1] = texture instanceof Texture ? (float)texture.mapT(0) : 0;
+            c[2] = texture instanceof Texture ? (float)texture.mapS(1) : 1;
+            c[3] = texture instanceof Texture ? (float)texture.mapT(1) : 1;
+            g[0] = 0;
+            g[1] = 0;
+            g[2] = 1;
+            return;
+        }
+        GameTexture tileset = (GameTexture)texture;
+        double[] first = tileset.getCoordinates(0, 0);
+        c[0] = (float)tileset.mapS(first[0]);
+        c[1] = (float)tileset.mapT(first[1]);
+        c[2] = (float)tileset.mapS(first[2]);
+        c[3] = (float)tileset.mapT(first[3]);
+        g[0] = tileset.getColumns() > 1 ? (float)tileset.mapS(tileset.getCoordinates(1, 0)[0]) - c[0] : 0;
+        g[1] = tileset.getRows() > 1 ? (float)tileset.mapT(tileset.getCoordinates(0, 1)[1]) - c[1] : 0;
+        g[2] = Math.max(1, (int)tileset.getColumns());
+    }
+
+    /**
+     * Draws the emitter's particles through the batch's current transform and
+     * blend. Anything already in the SpriteBatch is flushed first so draw
+     * order holds.
+     */
+    public void render(ParticleEmitter emitter) {
+        if(emitter instanceof GPUParticleEmitter && ((GPUParticleEmitter)emitter).getSystem() instanceof GPUParticleSystem) {
+            this.renderFeedback(emitter, ((GPUParticleEmitter)emitter).getSystem());
+            return;
+        }
+        ParticleBuffer particles = emitter.getParticles();
+        int count = particles.getCount();
+        if(count == 0) return;
+
+        SpriteBatch batch = SpriteBatch.getInstance();
+        batch.flush();
+        this.updateFrameGrid(emitter.getTexture());
+        if(!this.isAvailable()) {
+            this.renderQuads(emitter, batch);
+            return;
+        }
+
+        ShaderProgram shader = this.getShader();
+        this.bindShader(shader, emitter, batch);
+        InstancedQuad.getInstance().setup(shader, PARTICLE_ATTRIBUTES);
+
+        //All in one go unless there's more than a whole stream segment's worth
+        StreamBuffer stream = StreamBuffer.getInstance();
+        float lag = emitter.getInterpolationLag();
+        for(int from = 0; from < count;) {
+            int wanted = (int)Math.min((long)(count - from) * PARTICLE_STRIDE, stream.getSegmentSize() / PARTICLE_STRIDE * PARTICLE_STRIDE);
+            ByteBuffer data = stream.allocate(wanted, wanted);
+            int to = Math.min(count, from + data.remaining() / PARTICLE_STRIDE);
+            emitter.pack(from, to, data.asFloatBuffer(), data.asIntBuffer(), lag);
+            this.flush(shader, to - from);
+            from = to;
+        }
+
+        InstancedQuad.getInstance().teardown(shader, PARTICLE_ATTRIBUTES);
+    }
+
+    /**
+     * Steps a GPU emitter's system and draws every slot it has used straight
+     * from the state buffer, dead particles come out zero sized.
+     */
+    private void renderFeedback(ParticleEmitter emitter, GPUParticleSystem system) {
+        SpriteBatch batch = SpriteBatch.getInstance();
+        batch.flush();
+        system.step(emitter.gravityX, emitter.gravityY, emitter.damping);
+        int slots = system.getSlotCount();
+        if(slots == 0) return;
+
+        this.updateFrameGrid(emitter.getTexture());
+        ShaderProgram shader = this.getFeedbackShader();
+        this.bindShader(shader, emitter, batch);
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        gl.uniform3f(shader.getVariableID("animation"), emitter.frameRate, emitter.frameCount, emitter.fadeOut ? 1f : 0f);
+        shader.setVariable("lag", emitter.getInterpolationLag());
+
+        InstancedQuad quad = InstancedQuad.getInstance();
+        quad.setup(shader, FEEDBACK_ATTRIBUTES);
+        GLStateCache.getInstance().bindArrayBuffer(system.getBufferID());
+        for(int i = 0; i < FEEDBACK_ATTRIBUTES.length; i++) {
+            gl.vertexAttribPointer(shader.getAttributeID(FEEDBACK_ATTRIBUTES[i]), 4, GL_FLOAT, false, GPUParticleSystem.PARTICLE_STRIDE, i * 16);
+        }
+        gl.drawArraysInstanced(GL_TRIANGLES, 0, 6, slots);
+        this.drawCalls++;
+        this.particleCount += slots;
+        quad.teardown(shader, FEEDBACK_ATTRIBUTES);
+    }
+
+    //Shader, texture, transform, frame grid and the batch's blend
+    private void bindShader(ShaderProgram shader, ParticleEmitter emitter, SpriteBatch batch) {
+        Texture texture = emitter.getTexture();
+        shader.bind();
+        if(texture instanceof Texture) texture.bind();
+        shader.setVariable("tex", 0);
+        shader.setVariable("textured", texture instanceof Texture ? 1f : 0f);
+        InstancedQuad.getInstance().setTransform(shader, batch.getTransform());
+        float[] c = this.frameCell;
+        float[] g = this.frameGrid;
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        gl.uniform4f(shader.getVariableID("cell"), c[0], c[1], c[2], c[3]);
+        gl.uniform3f(shader.getVariableID("grid"), g[0], g[1], g[2]);
+        GLStateCache.getInstance().blendFunc(batch.getBlendSrc(), batch.getBlendDst());
+    }
+
+    private void flush(ShaderProgram shader, int count) {
+        StreamBuffer stream = StreamBuffer.getInstance();
+        long offset = stream.commit(count * PARTICLE_STRIDE);
+        if(count == 0) return;
+
+        GLStateCache.getInstance().bindArrayBuffer(stream.getBufferID());
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        gl.vertexAttribPointer(shader.getAttributeID("particle"), 4, GL_FLOAT, false, PARTICLE_STRIDE, offset);
+        gl.vertexAttribPointer(shader.getAttributeID("tint"), 4, GL_UNSIGNED_BYTE, true, PARTICLE_STRIDE, offset + 16);
+        gl.drawArraysInstanced(GL_TRIANGLES, 0, 6, count);
+        this.drawCalls++;
+        this.particleCount += count;
+    }
+
+    //Fallback, a quad each through the SpriteBatch (which counts them)
+    private void renderQuads(ParticleEmitter emitter, SpriteBatch batch) {
+        ParticleBuffer p = emitter.getParticles();
+        float[] c = this.frameCell;
+        float[] g = this.frameGrid;
+        int columns = (int)g[2];
+        float lag = emitter.getInterpolationLag();
+
+        batch.setShader(ShaderProgram.getDefaultShader());
+        batch.setTexture(emitter.getTexture());
+        for(int i = 0; i < p.getCount(); i++) {
+            int frame = (int)emitter.getFrame(i);
+            float s = c[0] + (frame % columns) * g[0];
+            float t = c[1] + (frame / columns) * g[1];
+            int color = emitter.getColor(i);
+            batch.setColor(
+                ParticleBuffer.getChannel(color, 0) / 255f, ParticleBuffer.getChannel(color, 1) / 255f,
+                ParticleBuffer.getChannel(color, 2) / 255f, ParticleBuffer.getChannel(color, 3) / 255f
+            );
+            float half = p.size[i] / 2f;
+            float x = p.x[i] - p.vx[i] * lag;
+            float y = p.y[i] - p.vy[i] * lag;
+            batch.quad(x - half, y - half, x + half, y + half, s, t, s + c[2] - c[0], t + c[3] - c[1]);
+        }
+    }
+
+    public void dispose() {
+        InstancedQuad.getInstance().dispose();
+        this.available = null;
+        this.feedbackAvailable = null;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.batch;
+
+import com.domsplace.engine.display.shader.ShaderProgram;
+import com.domsplace.engine.display.texture.Texture;
+import com.domsplace.engine.scene.gameobject.GameObject;
+import com.domsplace.engine.scene.gameobject.particle.ParticleEmitter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recorded frame (or part of one) with no GL in it: state changes, fully
+ * transformed quads, instanced runs, static batches and particle emitters.
+ * Filled by a recording SpriteBatch on any thread, then replayed by
+ * SpriteBatch.submit() on the main thread.
+ *
+ * Everything is packed into growable primitive arrays that are kept between
+ * frames, so recording doesn't allocate once the arrays are big enough.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class RenderCommandList {
+    //Opcodes
+    public static final int SHADER = 0;//ref
+    public static final int TEXTURE = 1;//ref
+    public static final int BLEND = 2;//int src, int dst
+    public static final int OUTLINE = 3;//float thickness
+    public static final int QUAD = 4;//16 floats, 4 corners, uvs, colour
+    public static final int OUTLINE_QUAD = 5;//22 floats, QUAD plus bounds and radius
+    public static final int INSTANCES = 6;//int from, int to, 6 float matrix
+    public static final int STATIC = 7;//ref, 6 float matrix
+    public static final int PARTICLES = 8;//ref, 6 float matrix
+
+    public static final int QUAD_FLOATS = 16;
+    public static final int OUTLINE_QUAD_FLOATS = 22;
+
+    //Instance
+    private int[] ops = new int[256];
+    private int opCount = 0;
+    private float[] floats = new float[1024];
+    private int floatCount = 0;
+    private Object[] refs = new Object[64];
+    private int refCount = 0;
+    private final List<GameObject> objects = new ArrayList<GameObject>();
+
+    public int getOpCount() {return this.opCount;}
+    public boolean isEmpty() {return this.opCount == 0;}
+
+    public void clear() {
+        for(int i = 0; i < refCount; i++) refs[i] = null;
+        this.opCount = 0;
+        this.floatCount = 0;
+        this.refCount = 0;
+        this.objects.clear();
+    }
+
+    public void shader(ShaderProgram shader) {
+        this.op(SHADER);
+        this.ref(shader);
+    }
+
+    public void texture(Texture texture) {
+        this.op(TEXTURE);
+        this.ref(texture);
+    }
+
+    public void blend(int src, int dst) {
+        this.op(BLEND);
+        this.op(src);
+        this.op(dst);
+    }
+
+    public void outline(float thickness) {
+        this.op(OUTLINE);
+        this.floats(1)[floatCount++] = thickness;
+    }
+
+    /**
+     * Corners are top left, top right, bottom right, bottom left and already
+     * transformed.
+     */
+    public void quad(float[] corners, float s, float t, float ss, float ts, float r, float g, float b, float a) {
+        this.op(QUAD);
+        this.putQuad(corners, s, t, ss, ts, r, g, b, a);
+    }
+
+    public void outlineQuad(float[] corners, float s, float t, float ss, float ts, float r, float g, float b, float a, float[] outline) {
+        this.op(OUTLINE_QUAD);
+        this.putQuad(corners, s, t, ss, ts, r, g, b, a);
+        float[] f = this.floats(6);
+        System.arraycopy(outline, 0, f, floatCount, 6);
+        floatCount += 6;
+    }
+
+    //objects[from, to) are copied, the matrix is the transform they're drawn with
+    public void instances(List<GameObject> objects, int from, int to, float[] matrix) {
+        this.op(INSTANCES);
+        this.op(this.objects.size());
+        for(int i = from; i < to; i++) this.objects.add(objects.get(i));
+        this.op(this.objects.size());
+        float[] f = this.floats(6);
+        System.arraycopy(matrix, 0, f, floatCount, 6);
+        floatCount += 6;
+    }
+
+    //A StaticBatch drawn with the given transform
+    public void staticBatch(StaticBatch batch, float[] matrix) {
+        this.op(STATIC);
+        this.ref(batch);
+        float[] f = this.floats(6);
+        System.arraycopy(matrix, 0, f, floatCount, 6);
+        floatCount += 6;
+    }
+
+    //A ParticleEmitter drawn with the given transform
+    public void particles(ParticleEmitter emitter, float[] matrix) {
+        this.op(PARTICLES);
+        this.ref(emitter);
+        float[] f = this.floats(6);
+        System.arraycopy(matrix, 0, f, floatCount, 6);
+        floatCount += 6;
+    }
+
+    private void putQuad(float[] corners, float s, float t, float ss, float ts, float r, float g, float b, float a) {
+        float[] f = this.floats(QUAD_FLOATS);
+        System.arraycopy(corners, 0, f, floatCount, 8);
+        int i = floatCount + 8;
+        f[i++] = s;
+        f[i++] = t;
+        f[i++] = ss;
+        f[i++] = ts;
+        f[i++] = r;
+        f[i++] = g;
+        f[i++] = b;
+        f[i++] = a;
+        floatCount = i;
+    }
+
+    private void op(int value) {
+        if(opCount == ops.length) {
+            int[] bigger = new int[ops.length * 2];
+            System.arraycopy(ops, 0, bigger, 0, opCount);
+            ops = bigger;
+        }
+        ops[opCount++] = value;
+    }
+
+    private void ref(Object value) {
+        if(refCount == refs.length) {
+            Object[] bigger = new Object[refs.length * 2];
+            System.arraycopy(refs, 0, bigger, 0, refCount);
+            refs = bigger;
+        }
+        refs[refCount++] = value;
+    }
+
+    //Makes sure there's room for count more floats and returns the array
+    private float[] floats(int count) {
+        if(floatCount + count > floats.length) {
+            float[] bigger = new float[Math.max(floats.length * 2, floatCount + count)];
+            System.arraycopy(floats, 0, bigger, 0, floatCount);
+            floats = bigger;
+        }
+        return floats;
+    }
+
+    /**
+     * Replays everything into the given (main thread) batch in order.
+     */
+    void replay(SpriteBatch batch) {
+        int f = 0;
+        int r = 0;
+        for(int i = 0; i < opCount;) {
+            switch(ops[i++]) {
+                case SHADER:
+                    batch.setShader((ShaderProgram)refs[r++]);
+                    break;
+                case TEXTURE:
+                    batch.setTexture((Texture)refs[r++]);
+                    break;
+                case BLEND:
+                    batch.setBlendFunc(ops[i], ops[i+1]);
+                    i += 2;
+                    break;
+                case OUTLINE:
+                    batch.setOutline(floats[f++]);
+                    break;
+                case QUAD:
+                    batch.emitQuad(floats, f, false);
+                    f += QUAD_FLOATS;
+                    break;
+                case OUTLINE_QUAD:
+                    batch.emitQuad(floats, f, true);
+                    f += OUTLINE_QUAD_FLOATS;
+                    break;
+                case INSTANCES:
+                    batch.emitInstances(this.objects, ops[i], ops[i+1], floats, f);
+                    i += 2;
+                    f += 6;
+                    break;
+                case STATIC:
+                    batch.emitStatic((StaticBatch)refs[r++], floats, f);
+                    f += 6;
+                    break;
+                case PARTICLES:
+                    batch.emitParticles((ParticleEmitter)refs[r++], floats, f);
+                    f += 6;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown render command " + ops[i-1]);
+            }
+        }
+    }
+
+    /**
+     * Walks the quads in order for a StaticBatch to keep, the state ops
+     * become its chunk boundaries. Instanced runs and other static batches
+     * can't be baked.
+     */
+    void bake(StaticBatch into) {
+        int f = 0;
+        int r = 0;
+        for(int i = 0; i < opCount;) {
+            switch(ops[i++]) {
+                case SHADER:
+                    into.setShader((ShaderProgram)refs[r++]);
+                    break;
+                case TEXTURE:
+                    into.setTexture((Texture)refs[r++]);
+                    break;
+                case BLEND:
+                    into.setBlendFunc(ops[i], ops[i+1]);
+                    i += 2;
+                    break;
+                case OUTLINE:
+                    into.setOutline(floats[f++]);
+                    break;
+                case QUAD:
+                    into.quad(floats, f, false);
+                    f += QUAD_FLOATS;
+                    break;
+                case OUTLINE_QUAD:
+                    into.quad(floats, f, true);
+                    f += OUTLINE_QUAD_FLOATS;
+                    break;
+                case INSTANCES:
+                case STATIC:
+                case PARTICLES:
+                    throw new IllegalStateException("Instanced, static and particle geometry can't be baked.");
+                default:
+                    throw new IllegalStateException("Unknown render command " + ops[i-1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.batch;
+
+import com.domsplace.engine.display.shader.ShaderProgram;
+import com.domsplace.engine.game.GameInfo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Thread pool and recorders used to build RenderCommandLists in parallel.
+ *
+ * Off unless gameinfo.txt sets render_threads (a count, or "auto" for one less
+ * than the number of cores), since any render() override that touches GL
+ * directly or shares state between objects isn't safe to run off the main
+ * thread.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class RenderWorkers {
+    //Constants
+    public static final int MIN_OBJECTS_PER_CHUNK = 512;
+
+    private static final RenderWorkers INSTANCE = new RenderWorkers();
+    public static RenderWorkers getInstance() {return INSTANCE;}
+
+    //Instance
+    private int threads = -1;
+    private ExecutorService pool;
+    private final List<SpriteBatch> recorders = new ArrayList<SpriteBatch>();
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    private RenderWorkers() {}
+
+    public int getThreadCount() {
+        if(this.threads >= 0) return this.threads;
+        String value = GameInfo.getGameInfo().getValue("render_threads", "0");
+        if(value.trim().equalsIgnoreCase("auto")) {
+            this.threads = Math.max(0, Runtime.getRuntime().availableProcessors() - 1);
+        } else {
+            this.threads = Math.max(0, GameInfo.getGameInfo().getIntValue("render_threads", 0));
+        }
+        return this.threads;
+    }
+
+    public boolean isEnabled() {return this.getThreadCount() > 0;}
+    public void setThreadCount(int threads) {this.dispose(); this.threads = Math.max(0, threads);}
+
+    /**
+     * How many chunks a list of count objects should be split into, at most
+     * one per worker plus one for the main thread.
+     */
+    public int getChunkCount(int count) {
+        if(!this.isEnabled()) return 1;
+        return Math.max(1, Math.min(this.threads + 1, count / MIN_OBJECTS_PER_CHUNK));
+    }
+
+    public SpriteBatch getRecorder(int slot) {
+        while(this.recorders.size() <= slot) this.recorders.add(SpriteBatch.createRecorder());
+        return this.recorders.get(slot);
+    }
+
+    /**
+     * Loads anything recording might lazily create on first use (shaders and
+     * capability checks), that has to happen here on the main thread.
+     */
+    public void prepare() {
+        ShaderProgram.getDefaultShader();
+        ShaderProgram.getOutlineShader();
+        SpriteBatch.getInstance().getOutlineShader();
+        InstancedSpriteRenderer.getInstance().isAvailable();
+        ParticleRenderer.getInstance().isAvailable();
+        ParticleRenderer.getInstance().isFeedbackAvailable();
+    }
+
+    /**
+     * Runs tasks[0, count), the first on the calling thread and the rest on
+     * the pool, and returns once they've all finished.
+     */
+    public void execute(Runnable[] tasks, int count) {
+        if(count <= 0) return;
+        if(this.pool == null && count > 1) {
+            this.pool = Executors.newFixedThreadPool(Math.max(1, this.getThreadCount()), new ThreadFactory() {
+                private int created = 0;
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Render Worker " + (created++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        this.futures.clear();
+        for(int i = 1; i < count; i++) this.futures.add(this.pool.submit(tasks[i]));
+        RuntimeException failure = null;
+        try {
+            tasks[0].run();
+        } catch(RuntimeException e) {
+            failure = e;
+        }
+        for(int i = 0; i < this.futures.size(); i++) {
+            try {
+                this.futures.get(i).get();
+            } catch(ExecutionException e) {
+                if(failure == null) failure = new RuntimeException("Render worker failed.", e.getCause());
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if(failure == null) failure = new RuntimeException("Interrupted waiting on render workers.", e);
+            }
+        }
+        this.futures.clear();
+        if(failure != null) throw failure;
+    }
+
+    public void dispose() {
+        if(this.pool instanceof ExecutorService) this.pool.shutdownNow();
+        this.pool = null;
+        this.recorders.clear();
+    }
+}
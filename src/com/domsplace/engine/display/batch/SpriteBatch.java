@@ -0,0 +1,551 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.batch;
+
+import com.domsplace.engine.display.GLStateCache;
+import com.domsplace.engine.display.Transform2D;
+import com.domsplace.engine.display.backend.RenderBackend;
+import com.domsplace.engine.display.shader.ShaderProgram;
+import com.domsplace.engine.display.texture.Texture;
+import com.domsplace.engine.scene.gameobject.GameObject;
+import com.domsplace.engine.scene.gameobject.particle.ParticleEmitter;
+import java.nio.FloatBuffer;
+import java.util.List;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+
+/**
+ * Collects textured quads into one streamed vertex buffer and only issues a
+ * draw when the texture, shader or blend state changes (or the buffer fills).
+ *
+ * Vertices are interleaved as x, y, s, t, r, g, b, a, written straight into
+ * the StreamBuffer and fed through the fixed function client arrays so the
+ * existing shaders keep working as-is.
+ *
+ * While an outline is set quads are grown by the thickness and also carry
+ * their uv bounds (texcoord 1) and the kernel radius in uv space (texcoord 2),
+ * so the outline shader can draw any thickness in a single pass without
+ * sampling outside the quad's own region of the texture.
+ *
+ * Recorders (see createRecorder) have the same API but write into a
+ * RenderCommandList instead of GL, so scene and GUI traversal can run on other
+ * threads. While a recorder is recording, getInstance() on that thread
+ * returns it. The lists are then replayed on the main thread with submit().
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class SpriteBatch {
+    //Constants
+    public static final int MAX_QUADS = 4096;
+    public static final int VERTICES_PER_QUAD = 6;
+    public static final int FLOATS_PER_VERTEX = 8;
+    public static final int VERTEX_STRIDE = FLOATS_PER_VERTEX * 4;
+    public static final int QUAD_BYTES = VERTICES_PER_QUAD * VERTEX_STRIDE;
+    public static final int OUTLINE_FLOATS_PER_VERTEX = 14;
+    public static final int OUTLINE_VERTEX_STRIDE = OUTLINE_FLOATS_PER_VERTEX * 4;
+    public static final int OUTLINE_QUAD_BYTES = VERTICES_PER_QUAD * OUTLINE_VERTEX_STRIDE;
+
+    public static final String OUTLINE_VERTEX_SHADER =
+        "#version 120\n" +
+        "void main() {\n" +
+        "    gl_Position = gl_ModelViewProjectionMatrix * gl_Vertex;\n" +
+        "    gl_TexCoord[0] = gl_MultiTexCoord0;\n" +
+        "    gl_TexCoord[1] = gl_MultiTexCoord1;\n" +
+        "    gl_TexCoord[2] = gl_MultiTexCoord2;\n" +
+        "    gl_FrontColor = gl_Color;\n" +
+        "}\n";
+
+    //Max alpha over concentric rings out to the radius, at most OUTLINE_RINGS
+    //rings of OUTLINE_ANGLES taps so the cost is bounded whatever the
+    //thickness. Rings and angles are about a texel apart up to a radius of
+    //OUTLINE_RINGS texels, thicker outlines spread the same taps out. Anything
+    //outside the quad's uv bounds is empty.
+    public static final int OUTLINE_RINGS = 4;
+    public static final int OUTLINE_ANGLES = 24;
+    public static final String OUTLINE_FRAGMENT_SHADER =
+        "#version 120\n" +
+        "uniform sampler2D tex;\n" +
+        "uniform vec2 texel;\n" +
+        "float sample(vec2 p, vec4 b) {\n" +
+        "    if(p.x < b.x || p.y < b.y || p.x > b.z || p.y > b.w) return 0.0;\n" +
+        "    return texture2D(tex, p).a;\n" +
+        "}\n" +
+        "void main() {\n" +
+        "    vec2 uv = gl_TexCoord[0].st;\n" +
+        "    vec4 bounds = gl_TexCoord[1];\n" +
+        "    vec2 radius = gl_TexCoord[2].st;\n" +
+        "    vec2 texels = radius / texel;\n" +
+        "    float size = max(texels.x, texels.y);\n" +
+        "    float rings = clamp(ceil(size - 0.001), 1.0, " + OUTLINE_RINGS + ".0);\n" +
+        "    float a = sample(uv, bounds);\n" +
+        "    for(int k = 1; k <= " + OUTLINE_RINGS + "; k++) {\n" +
+        "        float ring = float(k) / rings;\n" +
+        "        if(ring > 1.0 || a >= 1.0) break;\n" +
+        "        float angles = clamp(ceil(6.2831853 * size * ring), 4.0, " + OUTLINE_ANGLES + ".0);\n" +
+        "        float spacing = 6.2831853 / angles;\n" +
+        "        float start = mod(float(k), 2.0) * spacing * 0.5;\n" +
+        "        for(int i = 0; i < " + OUTLINE_ANGLES + "; i++) {\n" +
+        "            if(float(i) >= angles) break;\n" +
+        "            float angle = start + float(i) * spacing;\n" +
+        "            a = max(a, sample(uv + vec2(cos(angle), sin(angle)) * radius * ring, bounds));\n" +
+        "        }\n" +
+        "    }\n" +
+        "    gl_FragColor = vec4(gl_Color.rgb, gl_Color.a * a);\n" +
+        "}\n";
+
+    private static final SpriteBatch INSTANCE = new SpriteBatch(null);
+    private static final ThreadLocal<SpriteBatch> RECORDING = new ThreadLocal<SpriteBatch>();
+    public static SpriteBatch getInstance() {
+        SpriteBatch recorder = RECORDING.get();
+        return recorder instanceof SpriteBatch ? recorder : INSTANCE;
+    }
+
+    public static SpriteBatch createRecorder() {return new SpriteBatch(new RenderCommandList());}
+
+    //Instance
+    private final RenderCommandList commands;//Only set for recorders
+    private final float[] corners = new float[8];
+    private final float[] outlineData = new float[6];
+    private final float[] matrix = new float[6];
+    private final float[] modelView = new float[16];
+    private SpriteBatch previous;//Whatever was recording on this thread before us
+    private FloatBuffer vertices;//Open StreamBuffer allocation, null between flushes
+    private int vertexCount = 0;
+
+    //Pending State (what the next quad needs)
+    private ShaderProgram shader;
+    private Texture texture;
+    private int blendSrc = GL_SRC_ALPHA;
+    private int blendDst = GL_ONE_MINUS_SRC_ALPHA;
+
+    private float r = 1f, g = 1f, b = 1f, a = 1f;
+    private float outline = 0;
+    private float boundS, boundT, boundSS, boundTS, radiusS, radiusT;//Current outline quad
+    private final Transform2D transform = new Transform2D();
+
+    //Stats
+    private int drawCalls = 0;
+    private int quadCount = 0;
+    private int lastDrawCalls = 0;
+    private int lastQuadCount = 0;
+
+    private SpriteBatch(RenderCommandList commands) {
+        this.commands = commands;
+    }
+
+    public boolean isRecorder() {return this.commands instanceof RenderCommandList;}
+    public RenderCommandList getCommands() {return this.commands;}
+
+    public ShaderProgram getShader() {return this.shader;}
+    public Texture getTexture() {return this.texture;}
+    public int getBlendSrc() {return this.blendSrc;}
+    public int getBlendDst() {return this.blendDst;}
+    public int getDrawCalls() {return this.lastDrawCalls;}
+    public int getQuadCount() {return this.lastQuadCount;}
+    //Everything queued is baked through this, it replaces the GL modelview.
+    public Transform2D getTransform() {return this.transform;}
+    public float getOutline() {return this.outline;}
+
+    public ShaderProgram getOutlineShader() {
+        return ShaderProgram.getSourceShader("engine/outline", OUTLINE_VERTEX_SHADER, OUTLINE_FRAGMENT_SHADER);
+    }
+
+    public void setShader(ShaderProgram shader) {
+        if(shader == this.shader) return;
+        this.flush();
+        this.shader = shader;
+        if(this.commands instanceof RenderCommandList) this.commands.shader(shader);
+    }
+
+    public void setTexture(Texture texture) {
+        //Atlased textures share a page, so compare what actually gets bound
+        if(texture instanceof Texture) texture = texture.getBindingTexture();
+        if(texture == this.texture) return;
+        this.flush();
+        this.texture = texture;
+        if(this.commands instanceof RenderCommandList) this.commands.texture(texture);
+    }
+
+    public void setBlendFunc(int src, int dst) {
+        if(src == this.blendSrc && dst == this.blendDst) return;
+        this.flush();
+        this.blendSrc = src;
+        this.blendDst = dst;
+        if(this.commands instanceof RenderCommandList) this.commands.blend(src, dst);
+    }
+
+    /**
+     * Makes every following quad an outline of the given thickness (in local
+     * units) drawn with the outline shader, 0 goes back to normal quads.
+     * @return false if the outline shader isn't available, nothing changes.
+     */
+    public boolean setOutline(float thickness) {
+        thickness = Math.max(0, thickness);
+        if(thickness == this.outline) return true;
+        if(thickness > 0 && this.getOutlineShader() == null) return false;
+        this.flush();
+        this.outline = thickness;
+        if(this.commands instanceof RenderCommandList) this.commands.outline(thickness);
+        return true;
+    }
+
+    //Colour is baked into each vertex so changing it never breaks the batch.
+    public void setColor(float r, float g, float b, float a) {
+        this.r = r;
+        this.g = g;
+        this.b = b;
+        this.a = a;
+    }
+
+    /**
+     * Resets the per frame counters, call before anything is drawn.
+     */
+    public void begin() {
+        this.shader = null;
+        this.texture = null;
+        this.outline = 0;
+        this.transform.reset();
+        this.drawCalls = 0;
+        this.quadCount = 0;
+    }
+
+    /**
+     * Flushes whatever is left, call once everything in the frame is drawn.
+     */
+    public void end() {
+        this.flush();
+        this.lastDrawCalls = this.drawCalls;
+        this.lastQuadCount = this.quadCount;
+    }
+
+    /**
+     * Starts recording into this recorder's command list from a clean state,
+     * getInstance() returns this recorder on the calling thread until
+     * stopRecording().
+     * @param base the transform everything recorded starts from.
+     */
+    public void startRecording(Transform2D base) {
+        if(!this.isRecorder()) throw new IllegalStateException("Only recorders can record.");
+        this.commands.clear();
+        this.shader = null;
+        this.texture = null;
+        this.blendSrc = GL_SRC_ALPHA;
+        this.blendDst = GL_ONE_MINUS_SRC_ALPHA;
+        this.outline = 0;
+        this.setColor(1f, 1f, 1f, 1f);
+        this.transform.reset();
+        this.transform.set(base);
+        this.quadCount = 0;
+        this.previous = RECORDING.get();
+        RECORDING.set(this);
+    }
+
+    //Recording can nest (a StaticBatch baking mid frame), the outer one resumes
+    public void stopRecording() {
+        if(this.previous instanceof SpriteBatch) {
+            RECORDING.set(this.previous);
+        } else {
+            RECORDING.remove();
+        }
+        this.previous = null;
+    }
+
+    /**
+     * Replays a recorded list, main thread only. The list starts from the same
+     * clean state it was recorded from.
+     */
+    public void submit(RenderCommandList list) {
+        if(this.isRecorder()) throw new IllegalStateException("Recorders can't submit.");
+        this.flush();
+        this.shader = null;
+        this.texture = null;
+        this.blendSrc = GL_SRC_ALPHA;
+        this.blendDst = GL_ONE_MINUS_SRC_ALPHA;
+        this.outline = 0;
+        list.replay(this);
+    }
+
+    /**
+     * Draws objects[from, to) through the InstancedSpriteRenderer with the
+     * current transform, or records them if this is a recorder.
+     */
+    public void instances(List<GameObject> objects, int from, int to) {
+        if(this.commands instanceof RenderCommandList) {
+            Transform2D m = this.transform;
+            matrix[0] = m.getA();
+            matrix[1] = m.getB();
+            matrix[2] = m.getC();
+            matrix[3] = m.getD();
+            matrix[4] = m.getTranslateX();
+            matrix[5] = m.getTranslateY();
+            this.commands.instances(objects, from, to, matrix);
+            return;
+        }
+        InstancedSpriteRenderer.getInstance().render(objects, from, to);
+    }
+
+    /**
+     * Queues a quad through the current transform using the current colour.
+     * Vertex order matches the old immediate mode triangles.
+     */
+    public void quad(double x0, double y0, double x1, double y1, double s, double t, double ss, double ts) {
+        Transform2D m = this.transform;
+        float lx0 = (float)x0, ly0 = (float)y0, lx1 = (float)x1, ly1 = (float)y1;
+        if(this.outline > 0) {
+            //Bounds are taken before growing so samples stay in this quad's region
+            this.boundS = (float)Math.min(s, ss);
+            this.boundT = (float)Math.min(t, ts);
+            this.boundSS = (float)Math.max(s, ss);
+            this.boundTS = (float)Math.max(t, ts);
+
+            double du = lx1 == lx0 ? 0 : (ss - s) / (lx1 - lx0) * outline;
+            double dv = ly1 == ly0 ? 0 : (ts - t) / (ly1 - ly0) * outline;
+            this.radiusS = (float)Math.abs(du);
+            this.radiusT = (float)Math.abs(dv);
+            s -= du;
+            ss += du;
+            t -= dv;
+            ts += dv;
+
+            float grow = Math.signum(lx1 - lx0) * outline;
+            lx0 -= grow;
+            lx1 += grow;
+            grow = Math.signum(ly1 - ly0) * outline;
+            ly0 -= grow;
+            ly1 += grow;
+        }
+        float[] c = this.corners;
+        c[0] = m.transformX(lx0, ly0); c[1] = m.transformY(lx0, ly0);//Top Left
+        c[2] = m.transformX(lx1, ly0); c[3] = m.transformY(lx1, ly0);//Top Right
+        c[4] = m.transformX(lx1, ly1); c[5] = m.transformY(lx1, ly1);//Bottom Right
+        c[6] = m.transformX(lx0, ly1); c[7] = m.transformY(lx0, ly1);//Bottom Left
+        this.quadCount++;
+
+        if(this.commands instanceof RenderCommandList) {
+            if(this.outline > 0) {
+                float[] o = this.outlineData;
+                o[0] = boundS; o[1] = boundT; o[2] = boundSS; o[3] = boundTS; o[4] = radiusS; o[5] = radiusT;
+                this.commands.outlineQuad(c, (float)s, (float)t, (float)ss, (float)ts, r, g, b, a, o);
+            } else {
+                this.commands.quad(c, (float)s, (float)t, (float)ss, (float)ts, r, g, b, a);
+            }
+            return;
+        }
+        this.writeQuad(c, 0, (float)s, (float)t, (float)ss, (float)ts);
+    }
+
+    //Replays a recorded quad, see RenderCommandList for the layout
+    void emitQuad(float[] f, int o, boolean outlined) {
+        this.setColor(f[o+12], f[o+13], f[o+14], f[o+15]);
+        if(outlined) {
+            this.boundS = f[o+16];
+            this.boundT = f[o+17];
+            this.boundSS = f[o+18];
+            this.boundTS = f[o+19];
+            this.radiusS = f[o+20];
+            this.radiusT = f[o+21];
+        }
+        this.writeQuad(f, o, f[o+8], f[o+9], f[o+10], f[o+11]);
+        this.quadCount++;
+    }
+
+    void emitInstances(List<GameObject> objects, int from, int to, float[] f, int o) {
+        this.transform.push();
+        this.transform.set(f[o], f[o+1], f[o+2], f[o+3], f[o+4], f[o+5]);
+        InstancedSpriteRenderer.getInstance().render(objects, from, to);
+        this.transform.pop();
+    }
+
+    /**
+     * Draws a baked StaticBatch through the current transform, or records it
+     * if this is a recorder. State is back to what it was afterwards.
+     */
+    public void drawStatic(StaticBatch batch) {
+        if(this.commands instanceof RenderCommandList) {
+            Transform2D m = this.transform;
+            this.matrix[0] = m.getA(); this.matrix[1] = m.getB();
+            this.matrix[2] = m.getC(); this.matrix[3] = m.getD();
+            this.matrix[4] = m.getTranslateX(); this.matrix[5] = m.getTranslateY();
+            this.commands.staticBatch(batch, this.matrix);
+            return;
+        }
+        if(batch.isEmpty()) return;
+        this.flush();
+        batch.upload();
+
+        //Baked vertices are untransformed, this is the one place the modelview isn't identity
+        Transform2D m = this.transform;
+        float[] mv = this.modelView;
+        mv[0] = m.getA(); mv[1] = m.getB(); mv[4] = m.getC(); mv[5] = m.getD();
+        mv[10] = 1; mv[12] = m.getTranslateX(); mv[13] = m.getTranslateY(); mv[15] = 1;
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        gl.matrixMode(GL_MODELVIEW);
+        gl.loadMatrix(mv);
+
+        ShaderProgram shader = this.shader;
+        Texture texture = this.texture;
+        int blendSrc = this.blendSrc;
+        int blendDst = this.blendDst;
+        float outline = this.outline;
+        for(int i = 0; i < batch.getChunkCount(); i++) {
+            this.shader = batch.getChunkShader(i);
+            this.texture = batch.getChunkTexture(i);
+            this.blendSrc = batch.getChunkBlendSrc(i);
+            this.blendDst = batch.getChunkBlendDst(i);
+            this.outline = batch.getChunkOutline(i);
+            int count = batch.getChunkVertexCount(i);
+            this.draw(batch.getBufferID(), batch.getChunkOffset(i), count);
+            this.quadCount += count / VERTICES_PER_QUAD;
+        }
+        this.shader = shader;
+        this.texture = texture;
+        this.blendSrc = blendSrc;
+        this.blendDst = blendDst;
+        this.outline = outline;
+
+        gl.loadIdentity();
+        gl.matrixMode(GL_PROJECTION);
+    }
+
+    void emitStatic(StaticBatch batch, float[] f, int o) {
+        this.transform.push();
+        this.transform.set(f[o], f[o+1], f[o+2], f[o+3], f[o+4], f[o+5]);
+        this.drawStatic(batch);
+        this.transform.pop();
+    }
+
+    /**
+     * Draws all of an emitter's live particles through the current transform
+     * and blend, or records it if this is a recorder. Particles are read when
+     * the list is replayed, so don't tick the emitter in between.
+     */
+    public void drawParticles(ParticleEmitter emitter) {
+        if(this.commands instanceof RenderCommandList) {
+            Transform2D m = this.transform;
+            this.matrix[0] = m.getA(); this.matrix[1] = m.getB();
+            this.matrix[2] = m.getC(); this.matrix[3] = m.getD();
+            this.matrix[4] = m.getTranslateX(); this.matrix[5] = m.getTranslateY();
+            this.commands.particles(emitter, this.matrix);
+            return;
+        }
+        ParticleRenderer.getInstance().render(emitter);
+    }
+
+    void emitParticles(ParticleEmitter emitter, float[] f, int o) {
+        this.transform.push();
+        this.transform.set(f[o], f[o+1], f[o+2], f[o+3], f[o+4], f[o+5]);
+        ParticleRenderer.getInstance().render(emitter);
+        this.transform.pop();
+    }
+
+    //Corners are 8 floats at c[o], already transformed.
+    private void writeQuad(float[] c, int o, float s, float t, float ss, float ts) {
+        int quadBytes = this.outline > 0 ? OUTLINE_QUAD_BYTES : QUAD_BYTES;
+        if(this.vertices instanceof FloatBuffer && this.vertices.remaining() * 4 < quadBytes) this.flush();
+        if(this.vertices == null) {
+            this.vertices = StreamBuffer.getInstance().allocate(quadBytes, MAX_QUADS * quadBytes).asFloatBuffer();
+        }
+
+        //First Triangle
+        this.vertex(c[o], c[o+1], s, t);
+        this.vertex(c[o+2], c[o+3], ss, t);
+        this.vertex(c[o+4], c[o+5], ss, ts);
+
+        //Second Triangle
+        this.vertex(c[o], c[o+1], s, t);
+        this.vertex(c[o+4], c[o+5], ss, ts);
+        this.vertex(c[o+6], c[o+7], s, ts);
+    }
+
+    private void vertex(float x, float y, float s, float t) {
+        this.vertices.put(x).put(y).put(s).put(t).put(r).put(g).put(b).put(a);
+        if(this.outline > 0) {
+            this.vertices.put(boundS).put(boundT).put(boundSS).put(boundTS).put(radiusS).put(radiusT);
+        }
+        this.vertexCount++;
+    }
+
+    /**
+     * Submits everything queued so far in a single draw.
+     */
+    public void flush() {
+        if(this.vertexCount == 0) return;
+
+        StreamBuffer stream = StreamBuffer.getInstance();
+        int stride = this.outline > 0 ? OUTLINE_VERTEX_STRIDE : VERTEX_STRIDE;
+        long offset = stream.commit(this.vertexCount * stride);
+        this.draw(stream.getBufferID(), offset, this.vertexCount);
+
+        this.vertices = null;
+        this.vertexCount = 0;
+    }
+
+    //Draws count vertices at offset in buffer with the current state
+    private void draw(int buffer, long offset, int count) {
+        boolean outlining = this.outline > 0;
+        ShaderProgram program = this.shader instanceof ShaderProgram ? this.shader : ShaderProgram.getDefaultShader();
+        if(outlining) program = this.getOutlineShader();
+        program.bind();
+        if(outlining) {
+            Texture binding = this.texture instanceof Texture ? this.texture.getBindingTexture() : null;
+            if(binding instanceof Texture) this.texture.bind();
+            program.setVariable("tex", 0);
+            float texelS = binding instanceof Texture ? 1f / Math.max(1, binding.getWidth()) : 1f;
+            float texelT = binding instanceof Texture ? 1f / Math.max(1, binding.getHeight()) : 1f;
+            RenderBackend.getActiveBackend().uniform2f(program.getVariableID("texel"), texelS, texelT);
+        } else if(this.texture instanceof Texture) {
+            this.texture.bind();
+            program.setVariable("isTextured", true);
+        } else {
+            program.setVariable("isTextured", false);
+        }
+
+        GLStateCache cache = GLStateCache.getInstance();
+        cache.blendFunc(this.blendSrc, this.blendDst);
+
+        int stride = outlining ? OUTLINE_VERTEX_STRIDE : VERTEX_STRIDE;
+        cache.bindArrayBuffer(buffer);
+
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        gl.enableClientState(GL_VERTEX_ARRAY);
+        gl.enableClientState(GL_TEXTURE_COORD_ARRAY);
+        gl.enableClientState(GL_COLOR_ARRAY);
+        gl.vertexPointer(2, GL_FLOAT, stride, offset);
+        gl.texCoordPointer(2, GL_FLOAT, stride, offset + 2 * 4);
+        gl.colorPointer(4, GL_FLOAT, stride, offset + 4 * 4);
+        if(outlining) {
+            gl.clientActiveTexture(GL_TEXTURE1);
+            gl.enableClientState(GL_TEXTURE_COORD_ARRAY);
+            gl.texCoordPointer(4, GL_FLOAT, stride, offset + 8 * 4);
+            gl.clientActiveTexture(GL_TEXTURE2);
+            gl.enableClientState(GL_TEXTURE_COORD_ARRAY);
+            gl.texCoordPointer(2, GL_FLOAT, stride, offset + 12 * 4);
+        }
+
+        gl.drawArrays(GL_TRIANGLES, 0, count);
+
+        if(outlining) {
+            gl.disableClientState(GL_TEXTURE_COORD_ARRAY);
+            gl.clientActiveTexture(GL_TEXTURE1);
+            gl.disableClientState(GL_TEXTURE_COORD_ARRAY);
+            gl.clientActiveTexture(GL_TEXTURE0);
+        }
+        gl.disableClientState(GL_COLOR_ARRAY);
+        gl.disableClientState(GL_TEXTURE_COORD_ARRAY);
+        gl.disableClientState(GL_VERTEX_ARRAY);
+        this.drawCalls++;
+    }
+}
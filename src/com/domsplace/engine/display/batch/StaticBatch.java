@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.batch;
+
+import com.domsplace.engine.display.GLStateCache;
+import com.domsplace.engine.display.Transform2D;
+import com.domsplace.engine.display.backend.RenderBackend;
+import com.domsplace.engine.display.shader.ShaderProgram;
+import com.domsplace.engine.display.texture.Texture;
+import com.domsplace.engine.disposable.IDisposable;
+import java.util.ArrayList;
+import java.util.List;
+import static org.lwjgl.opengl.GL11.GL_ONE_MINUS_SRC_ALPHA;
+import static org.lwjgl.opengl.GL11.GL_SRC_ALPHA;
+import static org.lwjgl.opengl.GL15.*;
+
+/**
+ * Quads baked once into a GL_STATIC_DRAW vertex buffer and drawn from there
+ * every frame, for things that never move. Anything drawn through
+ * SpriteBatch.getInstance() between begin() and end() is recorded instead (on
+ * any thread), then split into chunks wherever the texture, shader, blend or
+ * outline changed. Drawing is one draw call per chunk and no vertex traffic.
+ *
+ * Vertices stay in whatever space they were drawn in, SpriteBatch.drawStatic()
+ * applies the transform at draw time. Bake again (begin/end) whenever what was
+ * drawn changes, the buffer is re-uploaded on the next draw.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class StaticBatch implements IDisposable {
+    //Instance
+    private final SpriteBatch recorder = SpriteBatch.createRecorder();
+    private final Transform2D identity = new Transform2D();
+    private boolean disposed = false;
+
+    //Baked vertices, SpriteBatch's layout
+    private float[] vertices = new float[1024];
+    private int floatCount = 0;
+    private int vertexCount = 0;
+    private int bufferID = 0;
+    private boolean uploaded = false;
+
+    //Chunks
+    private final List<ShaderProgram> shaders = new ArrayList<ShaderProgram>();
+    private final List<Texture> textures = new ArrayList<Texture>();
+    private int[] blends = new int[32];//src, dst pairs
+    private float[] outlines = new float[16];
+    private long[] offsets = new long[16];//Bytes into the buffer
+    private int[] counts = new int[16];//Vertices
+    private int chunkCount = 0;
+
+    //State while baking
+    private ShaderProgram shader;
+    private Texture texture;
+    private int blendSrc, blendDst;
+    private float outline;
+    private boolean stateChanged;
+
+    @Override public boolean isDisposed() {return this.disposed;}
+    public boolean isEmpty() {return this.chunkCount == 0;}
+    public int getBufferID() {return this.bufferID;}
+    public int getChunkCount() {return this.chunkCount;}
+    public int getVertexCount() {return this.vertexCount;}
+    public ShaderProgram getChunkShader(int chunk) {return this.shaders.get(chunk);}
+    public Texture getChunkTexture(int chunk) {return this.textures.get(chunk);}
+    public int getChunkBlendSrc(int chunk) {return this.blends[chunk * 2];}
+    public int getChunkBlendDst(int chunk) {return this.blends[chunk * 2 + 1];}
+    public float getChunkOutline(int chunk) {return this.outlines[chunk];}
+    public long getChunkOffset(int chunk) {return this.offsets[chunk];}
+    public int getChunkVertexCount(int chunk) {return this.counts[chunk];}
+
+    /**
+     * Starts recording on this thread, everything drawn until end() replaces
+     * what was baked before. Starts from an identity transform.
+     */
+    public void begin() {
+        if(this.disposed) throw new IllegalStateException("StaticBatch is disposed.");
+        this.recorder.startRecording(this.identity);
+    }
+
+    public void end() {
+        this.recorder.stopRecording();
+
+        this.floatCount = 0;
+        this.vertexCount = 0;
+        this.chunkCount = 0;
+        this.shaders.clear();
+        this.textures.clear();
+        this.shader = null;
+        this.texture = null;
+        this.blendSrc = GL_SRC_ALPHA;
+        this.blendDst = GL_ONE_MINUS_SRC_ALPHA;
+        this.outline = 0;
+        this.stateChanged = true;
+        this.recorder.getCommands().bake(this);
+        this.recorder.getCommands().clear();
+        this.uploaded = false;
+    }
+
+    //Called by RenderCommandList.bake()
+    void setShader(ShaderProgram shader) {this.shader = shader; this.stateChanged = true;}
+    void setTexture(Texture texture) {this.texture = texture; this.stateChanged = true;}
+    void setBlendFunc(int src, int dst) {this.blendSrc = src; this.blendDst = dst; this.stateChanged = true;}
+    void setOutline(float thickness) {this.outline = thickness; this.stateChanged = true;}
+
+    //A recorded quad at f[o], see RenderCommandList for the layout
+    void quad(float[] f, int o, boolean outlined) {
+        if(this.stateChanged) this.startChunk();
+        int perVertex = outlined ? SpriteBatch.OUTLINE_FLOATS_PER_VERTEX : SpriteBatch.FLOATS_PER_VERTEX;
+        this.ensureCapacity(perVertex * SpriteBatch.VERTICES_PER_QUAD);
+
+        float s = f[o+8], t = f[o+9], ss = f[o+10], ts = f[o+11];
+        //Same two triangles as SpriteBatch.writeQuad()
+        this.vertex(f, o, 0, s, t, outlined);
+        this.vertex(f, o, 2, ss, t, outlined);
+        this.vertex(f, o, 4, ss, ts, outlined);
+        this.vertex(f, o, 0, s, t, outlined);
+        this.vertex(f, o, 4, ss, ts, outlined);
+        this.vertex(f, o, 6, s, ts, outlined);
+        this.counts[this.chunkCount - 1] += SpriteBatch.VERTICES_PER_QUAD;
+        this.vertexCount += SpriteBatch.VERTICES_PER_QUAD;
+    }
+
+    private void vertex(float[] f, int o, int corner, float s, float t, boolean outlined) {
+        float[] v = this.vertices;
+        int i = this.floatCount;
+        v[i++] = f[o+corner];
+        v[i++] = f[o+corner+1];
+        v[i++] = s;
+        v[i++] = t;
+        v[i++] = f[o+12];
+        v[i++] = f[o+13];
+        v[i++] = f[o+14];
+        v[i++] = f[o+15];
+        if(outlined) {
+            for(int j = 16; j < 22; j++) v[i++] = f[o+j];
+        }
+        this.floatCount = i;
+    }
+
+    private void startChunk() {
+        this.stateChanged = false;
+        int c = this.chunkCount;
+        //Nothing really changed since the last chunk, keep adding to it
+        if(c > 0 && this.shaders.get(c - 1) == this.shader && this.textures.get(c - 1) == this.texture
+                && this.blends[c * 2 - 2] == this.blendSrc && this.blends[c * 2 - 1] == this.blendDst
+                && this.outlines[c - 1] == this.outline) return;
+
+        if(c == this.counts.length) {
+            int size = c * 2;
+            int[] blends = new int[size * 2];
+            System.arraycopy(this.blends, 0, blends, 0, c * 2);
+            this.blends = blends;
+            float[] outlines = new float[size];
+            System.arraycopy(this.outlines, 0, outlines, 0, c);
+            this.outlines = outlines;
+            long[] offsets = new long[size];
+            System.arraycopy(this.offsets, 0, offsets, 0, c);
+            this.offsets = offsets;
+            int[] counts = new int[size];
+            System.arraycopy(this.counts, 0, counts, 0, c);
+            this.counts = counts;
+        }
+        this.shaders.add(this.shader);
+        this.textures.add(this.texture);
+        this.blends[c * 2] = this.blendSrc;
+        this.blends[c * 2 + 1] = this.blendDst;
+        this.outlines[c] = this.outline;
+        this.offsets[c] = this.floatCount * 4L;
+        this.counts[c] = 0;
+        this.chunkCount++;
+    }
+
+    private void ensureCapacity(int count) {
+        if(this.floatCount + count <= this.vertices.length) return;
+        float[] bigger = new float[Math.max(this.vertices.length * 2, this.floatCount + count)];
+        System.arraycopy(this.vertices, 0, bigger, 0, this.floatCount);
+        this.vertices = bigger;
+    }
+
+    /**
+     * Sends the baked vertices to GL if they changed since the last upload.
+     * Main thread only, SpriteBatch.drawStatic() calls this.
+     */
+    public void upload() {
+        if(this.uploaded) return;
+        this.uploaded = true;
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        if(this.bufferID == 0) this.bufferID = gl.genBuffer();
+        GLStateCache.getInstance().bindArrayBuffer(this.bufferID);
+        float[] data = this.vertices;
+        if(this.floatCount != data.length) {
+            data = new float[this.floatCount];
+            System.arraycopy(this.vertices, 0, data, 0, this.floatCount);
+        }
+        gl.bufferData(GL_ARRAY_BUFFER, data, GL_STATIC_DRAW);
+    }
+
+    @Override
+    public void dispose() {
+        if(this.disposed) return;
+        this.disposed = true;
+        if(this.bufferID != 0) {
+            GLStateCache cache = GLStateCache.getInstance();
+            if(cache.getArrayBuffer() == this.bufferID) cache.bindArrayBuffer(0);
+            RenderBackend.getActiveBackend().deleteBuffer(this.bufferID);
+        }
+        this.bufferID = 0;
+        this.chunkCount = 0;
+        this.floatCount = 0;
+        this.vertexCount = 0;
+        this.shaders.clear();
+        this.textures.clear();
+    }
+}
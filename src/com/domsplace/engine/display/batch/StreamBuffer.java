@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.batch;
+
+import com.domsplace.engine.display.GLStateCache;
+import com.domsplace.engine.display.backend.RenderBackend;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.lwjgl.BufferUtils;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL44.*;
+
+/**
+ * Triple buffered ring of vertex memory for data that changes every frame.
+ *
+ * With ARB_buffer_storage the whole buffer is persistently mapped and
+ * renderers write straight into it, each third is fenced when the frame that
+ * used it ends and waited on before it's written again. Without it renderers
+ * write into an off-heap staging buffer that gets uploaded with
+ * glBufferSubData, and the buffer is orphaned every time the ring wraps.
+ *
+ * Usage is allocate(), write, commit() then point attribs at the returned
+ * offset. Only one allocation can be open at a time. Main thread only.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class StreamBuffer {
+    //Constants
+    public static final int SEGMENTS = 3;
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int ALIGNMENT = 64;
+
+    private static final StreamBuffer INSTANCE = new StreamBuffer(DEFAULT_SEGMENT_SIZE);
+    public static StreamBuffer getInstance() {return INSTANCE;}
+
+    //Instance
+    private final int segmentSize;
+    private int buffer = -1;
+    private boolean persistent;
+    private ByteBuffer mapped;
+    private ByteBuffer staging;
+    private final long[] fences = new long[SEGMENTS];
+
+    private int segment = 0;
+    private int head = 0;//Offset within the current segment
+    private int openOffset = -1;
+
+    //Stats
+    private long bytesStreamed = 0;
+    private long fenceWait = 0;
+    private long lastBytesStreamed = 0;
+    private long lastFenceWait = 0;
+
+    public StreamBuffer(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public int getBufferID() {return this.buffer;}
+    public int getSegmentSize() {return this.segmentSize;}
+    public boolean isPersistent() {return this.persistent;}
+    public long getBytesStreamed() {return this.lastBytesStreamed;}//Last frame
+    public long getFenceWaitNanos() {return this.lastFenceWait;}//Last frame
+
+    private void create() {
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        this.persistent = gl.isBufferStorageSupported();
+        this.buffer = gl.genBuffer();
+        GLStateCache.getInstance().bindArrayBuffer(this.buffer);
+
+        long size = (long)segmentSize * SEGMENTS;
+        if(this.persistent) {
+            int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+            gl.bufferStorage(GL_ARRAY_BUFFER, size, flags);
+            this.mapped = gl.mapBufferRange(GL_ARRAY_BUFFER, 0, size, flags);
+            if(this.mapped == null) {
+                //Driver says it can but won't, rebuild as a plain buffer.
+                gl.deleteBuffer(this.buffer);
+                GLStateCache.getInstance().bindArrayBuffer(0);
+                this.persistent = false;
+                this.buffer = gl.genBuffer();
+                GLStateCache.getInstance().bindArrayBuffer(this.buffer);
+            }
+        }
+        if(!this.persistent) {
+            gl.bufferData(GL_ARRAY_BUFFER, size, GL_STREAM_DRAW);
+            this.staging = BufferUtils.createByteBuffer(segmentSize);
+        }
+    }
+
+    /**
+     * Opens an allocation of at least minBytes and at most maxBytes, whatever
+     * is left in the current segment. Moves to the next segment (possibly
+     * waiting on its fence) if there isn't minBytes left.
+     * @return a native order buffer to write into, starting at position 0.
+     */
+    public ByteBuffer allocate(int minBytes, int maxBytes) {
+        if(this.openOffset != -1) throw new IllegalStateException("Previous StreamBuffer allocation was never committed.");
+        if(minBytes > segmentSize) throw new IllegalArgumentException("Allocation of " + minBytes + " bytes is larger than a segment.");
+        if(this.buffer == -1) this.create();
+
+        if(segmentSize - head < minBytes) this.nextSegment();
+        int bytes = Math.min(maxBytes, segmentSize - head);
+        this.openOffset = segment * segmentSize + head;
+
+        ByteBuffer out;
+        if(this.persistent) {
+            out = this.mapped.duplicate();
+            out.position(this.openOffset);
+            out.limit(this.openOffset + bytes);
+        } else {
+            out = this.staging.duplicate();
+            out.clear();
+            out.limit(bytes);
+        }
+        return out.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Closes the open allocation, keeping the first usedBytes of it.
+     * @return the offset into getBufferID() where the data now lives.
+     */
+    public long commit(int usedBytes) {
+        if(this.openOffset == -1) throw new IllegalStateException("No StreamBuffer allocation is open.");
+        int offset = this.openOffset;
+        this.openOffset = -1;
+
+        if(!this.persistent && usedBytes > 0) {
+            ByteBuffer data = this.staging.duplicate();
+            data.clear();
+            data.limit(usedBytes);
+            GLStateCache.getInstance().bindArrayBuffer(this.buffer);
+            RenderBackend.getActiveBackend().bufferSubData(GL_ARRAY_BUFFER, offset, data);
+        }
+
+        this.head += (usedBytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        this.bytesStreamed += usedBytes;
+        return offset;
+    }
+
+    /**
+     * Fences off what this frame used and moves on, call once per frame after
+     * the last draw that reads from the buffer.
+     */
+    public void endFrame() {
+        if(this.buffer != -1 && this.head > 0) this.nextSegment();
+        this.lastBytesStreamed = this.bytesStreamed;
+        this.lastFenceWait = this.fenceWait;
+        this.bytesStreamed = 0;
+        this.fenceWait = 0;
+    }
+
+    private void nextSegment() {
+        if(this.persistent) {
+            RenderBackend gl = RenderBackend.getActiveBackend();
+            if(fences[segment] != 0) gl.deleteSync(fences[segment]);
+            fences[segment] = gl.fenceSync();
+        }
+
+        segment = (segment + 1) % SEGMENTS;
+        head = 0;
+
+        if(this.persistent) {
+            this.waitFence(segment);
+        } else if(segment == 0) {
+            //Orphan, the driver hands us fresh storage and keeps the old one alive
+            GLStateCache.getInstance().bindArrayBuffer(this.buffer);
+            RenderBackend.getActiveBackend().bufferData(GL_ARRAY_BUFFER, (long)segmentSize * SEGMENTS, GL_STREAM_DRAW);
+        }
+    }
+
+    private void waitFence(int segment) {
+        long fence = fences[segment];
+        if(fence == 0) return;
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        long start = System.nanoTime();
+        int result = gl.clientWaitSync(fence, 0, 0);
+        while(result == GL_TIMEOUT_EXPIRED) {
+            result = gl.clientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, 1000000L);
+        }
+        this.fenceWait += System.nanoTime() - start;
+        gl.deleteSync(fence);
+        fences[segment] = 0;
+    }
+
+    public void dispose() {
+        if(this.buffer == -1) return;
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        for(int i = 0; i < fences.length; i++) {
+            if(fences[i] != 0) gl.deleteSync(fences[i]);
+            fences[i] = 0;
+        }
+        GLStateCache.getInstance().bindArrayBuffer(this.buffer);
+        if(this.persistent) gl.unmapBuffer(GL_ARRAY_BUFFER);
+        GLStateCache.getInstance().bindArrayBuffer(0);
+        gl.deleteBuffer(this.buffer);
+        this.buffer = -1;
+        this.mapped = null;
+        this.staging = null;
+        this.segment = 0;
+        this.head = 0;
+        this.openOffset = -1;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.post;
+
+import com.domsplace.engine.display.shader.ShaderProgram;
+
+/**
+ * 9 tap blur, radius in source pixels. Samples its neighbours so it always
+ * gets a pass of its own (plus anything after it that doesn't).
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public class BlurEffect extends PostEffect {
+    private float radius;
+    private int radiusID = -1;
+
+    public BlurEffect() {this(1);}
+    public BlurEffect(float radius) {this.radius = radius;}
+
+    public float getRadius() {return this.radius;}
+    public void setRadius(float radius) {this.radius = radius;}
+
+    @Override public boolean needsNeighbours() {return true;}
+
+    @Override
+    public String getDeclarations() {
+        return "uniform float $radius;\n";
+    }
+
+    @Override
+    public String getBody() {
+        return
+            "    vec2 $d = texel * $radius;\n" +
+            "    vec4 $sum = color * 4.0;\n" +
+            "    $sum += (sampleSource(coord + vec2($d.x, 0.0)) + sampleSource(coord - vec2($d.x, 0.0))) * 2.0;\n" +
+            "    $sum += (sampleSource(coord + vec2(0.0, $d.y)) + sampleSource(coord - vec2(0.0, $d.y))) * 2.0;\n" +
+            "    $sum += sampleSource(coord + $d) + sampleSource(coord - $d);\n" +
+            "    $sum += sampleSource(coord + vec2($d.x, -$d.y)) + sampleSource(coord + vec2(-$d.x, $d.y));\n" +
+            "    color = $sum / 16.0;\n";
+    }
+
+    @Override
+    public void onCompile(ShaderProgram shader, String prefix) {
+        this.radiusID = shader.getVariableID(prefix + "radius");
+    }
+
+    @Override
+    public void onBind(ShaderProgram shader) {
+        shader.setVariableByID(this.radiusID, this.radius);
+    }
+}
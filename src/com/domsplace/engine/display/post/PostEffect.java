@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.post;
+
+import com.domsplace.engine.display.shader.ShaderProgram;
+
+/**
+ * A full screen effect, written as a snippet of GLSL 120 that the
+ * PostProcessor pastes into a fused fragment shader along with every other
+ * effect in the same pass.
+ *
+ * getBody() runs inside a function and changes these:
+ *  vec4 color     the pixel so far (in and out)
+ *  vec2 coord     texture coordinate of the pixel in the source
+ *  vec2 pixel     position in scene units, 0 to the scene width/height
+ * and can read the shared uniforms texel (size of one source pixel in uv),
+ * resolution (scene size) and time (seconds), or call sampleSource(vec2).
+ *
+ * Any $ in getDeclarations() or getBody() is replaced with a prefix unique to
+ * this effect, so uniforms and helpers declared as $name never clash.
+ *
+ * Only effects that say needsNeighbours() may call sampleSource(), and they
+ * always start a new pass (another ping-pong) so what they sample is the
+ * finished output of everything before them.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public abstract class PostEffect {
+    private boolean enabled = true;
+
+    public boolean isEnabled() {return this.enabled;}
+
+    //Takes effect next frame, the shaders get rebuilt.
+    public void setEnabled(boolean enabled) {
+        if(enabled == this.enabled) return;
+        this.enabled = enabled;
+        PostProcessor.getInstance().invalidate();
+    }
+
+    public boolean needsNeighbours() {return false;}
+
+    public String getDeclarations() {return "";}
+
+    public abstract String getBody();
+
+    /**
+     * Called once each time a shader containing this effect is built, look up
+     * uniform locations here (prefix + name) rather than every frame.
+     */
+    public void onCompile(ShaderProgram shader, String prefix) {}
+
+    //Called each frame with the shader bound, set uniforms here.
+    public void onBind(ShaderProgram shader) {}
+}
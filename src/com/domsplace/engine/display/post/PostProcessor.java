@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.post;
+
+import com.domsplace.engine.display.GLStateCache;
+import com.domsplace.engine.display.backend.RenderBackend;
+import com.domsplace.engine.display.shader.ShaderProgram;
+import java.util.ArrayList;
+import java.util.List;
+import static org.lwjgl.opengl.EXTFramebufferObject.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+
+/**
+ * Runs the PostEffects over the scene FBO before it's presented.
+ *
+ * Effects are fused, every effect from one that needsNeighbours() up to the
+ * next one that does is pasted into a single fragment shader, so a chain of
+ * per pixel effects costs one full screen pass no matter how long it is.
+ * Each pass reads the last one's output and writes into one of two ping-pong
+ * FBOs, only as much of them as dynamic resolution rendered into.
+ *
+ * Shaders are rebuilt (or pulled back out of the ShaderProgram cache) only
+ * when the effect list changes.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class PostProcessor {
+    //Constants
+    public static final String VERTEX_SHADER =
+        "#version 120\n" +
+        "uniform vec2 sourceMax;\n" +
+        "varying vec2 uv;\n" +
+        "void main() {\n" +
+        "    uv = gl_Vertex.xy * sourceMax;\n" +
+        "    gl_Position = vec4(gl_Vertex.xy * 2.0 - 1.0, 0.0, 1.0);\n" +
+        "}\n";
+
+    public static final String FRAGMENT_HEADER =
+        "#version 120\n" +
+        "uniform sampler2D source;\n" +
+        "uniform vec2 texel;\n" +
+        "uniform vec2 sourceMax;\n" +
+        "uniform vec2 resolution;\n" +
+        "uniform float time;\n" +
+        "varying vec2 uv;\n" +
+        "vec4 sampleSource(vec2 p) {\n" +
+        "    return texture2D(source, clamp(p, texel * 0.5, sourceMax - texel * 0.5));\n" +
+        "}\n";
+
+    private static final PostProcessor INSTANCE = new PostProcessor();
+    public static PostProcessor getInstance() {return INSTANCE;}
+
+    //Instance
+    private final List<PostEffect> effects = new ArrayList<PostEffect>();
+    private final List<Pass> passes = new ArrayList<Pass>();
+    private boolean dirty = true;
+    private final long started = System.nanoTime();
+
+    //Ping-pong targets
+    private final int[] framebuffers = new int[2];
+    private final int[] textures = new int[2];
+    private int targetWidth;
+    private int targetHeight;
+    private int output = -1;
+
+    private PostProcessor() {}
+
+    public List<PostEffect> getEffects() {return new ArrayList<PostEffect>(this.effects);}
+    public int getPassCount() {this.build(); return this.passes.size();}
+
+    public boolean isActive() {
+        for(int i = 0; i < this.effects.size(); i++) {
+            if(this.effects.get(i).isEnabled()) return true;
+        }
+        return false;
+    }
+
+    //Effects run in the order they're added
+    public void addEffect(PostEffect effect) {
+        this.effects.add(effect);
+        this.invalidate();
+    }
+
+    public void removeEffect(PostEffect effect) {
+        if(this.effects.remove(effect)) this.invalidate();
+    }
+
+    public void clearEffects() {
+        this.effects.clear();
+        this.invalidate();
+    }
+
+    //Rebuild the fused shaders before the next frame
+    public void invalidate() {this.dirty = true;}
+
+    //What process() last wrote into, -1 if nothing ran
+    public int getOutputFramebuffer() {return this.output < 0 ? -1 : this.framebuffers[this.output];}
+    public int getOutputTexture() {return this.output < 0 ? -1 : this.textures[this.output];}
+
+    private void build() {
+        if(!this.dirty) return;
+        this.dirty = false;
+        this.passes.clear();
+
+        Pass pass = null;
+        for(int i = 0; i < this.effects.size(); i++) {
+            PostEffect effect = this.effects.get(i);
+            if(!effect.isEnabled()) continue;
+            if(!(pass instanceof Pass) || effect.needsNeighbours()) {
+                pass = new Pass();
+                this.passes.add(pass);
+            }
+            pass.effects.add(effect);
+            pass.prefixes.add("fx" + i + "_");
+        }
+        for(int i = 0; i < this.passes.size(); i++) this.passes.get(i).compile();
+    }
+
+    private void createTargets(int width, int height) {
+        if(this.framebuffers[0] != 0 && width == this.targetWidth && height == this.targetHeight) return;
+        this.disposeTargets();
+        GLStateCache cache = GLStateCache.getInstance();
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        for(int i = 0; i < 2; i++) {
+            this.textures[i] = gl.genTexture();
+            this.framebuffers[i] = gl.genFramebuffer();
+            cache.bindFramebuffer(this.framebuffers[i]);
+            cache.bindTexture(0, this.textures[i]);
+            gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+            gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+            gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+            gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+            gl.texImage2D(GL_TEXTURE_2D, 0, GL_RGB, width, height, 0, GL_RGB, GL_INT, null);
+            gl.framebufferTexture2D(GL_FRAMEBUFFER_EXT, GL_COLOR_ATTACHMENT0_EXT, GL_TEXTURE_2D, this.textures[i], 0);
+        }
+        this.targetWidth = width;
+        this.targetHeight = height;
+    }
+
+    /**
+     * Runs every pass, the first reading sourceTexture. Only the bottom left
+     * renderWidth x renderHeight of the width x height source is used, and
+     * the same part of the output is written. Returns false if nothing ran,
+     * in which case the source should be presented as is.
+     */
+    public boolean process(int sourceTexture, int renderWidth, int renderHeight, int width, int height) {
+        this.output = -1;
+        if(!this.isActive()) return false;
+        this.build();
+        if(this.passes.isEmpty()) return false;
+        this.createTargets(width, height);
+
+        GLStateCache cache = GLStateCache.getInstance();
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        float time = (System.nanoTime() - this.started) / 1000000000f;
+        float maxS = renderWidth / (float)width;
+        float maxT = renderHeight / (float)height;
+        int source = sourceTexture;
+
+        gl.disable(GL_BLEND);//Passes replace, never mix
+        cache.activeTexture(0);
+        cache.viewport(0, 0, renderWidth, renderHeight);
+        for(int i = 0; i < this.passes.size(); i++) {
+            Pass pass = this.passes.get(i);
+            if(!(pass.shader instanceof ShaderProgram)) continue;//Failed to compile, skip it
+            int target = this.output == 0 ? 1 : 0;
+            cache.bindFramebuffer(this.framebuffers[target]);
+            cache.bindTexture(0, source);
+            pass.bind(maxS, maxT, width, height, time);
+            gl.begin(GL_TRIANGLES);
+            gl.vertex2f(0, 0);
+            gl.vertex2f(1, 0);
+            gl.vertex2f(1, 1);
+            gl.vertex2f(0, 0);
+            gl.vertex2f(1, 1);
+            gl.vertex2f(0, 1);
+            gl.end();
+            this.output = target;
+            source = this.textures[target];
+        }
+        gl.enable(GL_BLEND);
+        ShaderProgram.unbindProgram();
+        return this.output >= 0;
+    }
+
+    private void disposeTargets() {
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        for(int i = 0; i < 2; i++) {
+            if(this.framebuffers[i] != 0) gl.deleteFramebuffer(this.framebuffers[i]);
+            if(this.textures[i] != 0) {
+                GLStateCache.getInstance().forgetTexture(this.textures[i]);
+                gl.deleteTexture(this.textures[i]);
+            }
+            this.framebuffers[i] = 0;
+            this.textures[i] = 0;
+        }
+        this.output = -1;
+    }
+
+    public void dispose() {
+        this.disposeTargets();
+        this.passes.clear();
+        this.dirty = true;
+    }
+
+    //One fused shader and the effects pasted into it
+    private static final class Pass {
+        private final List<PostEffect> effects = new ArrayList<PostEffect>();
+        private final List<String> prefixes = new ArrayList<String>();
+        private ShaderProgram shader;
+        private int sourceID, texelID, sourceMaxID, resolutionID, timeID;
+
+        private void compile() {
+            StringBuilder fragment = new StringBuilder(FRAGMENT_HEADER);
+            for(int i = 0; i < effects.size(); i++) {
+                String prefix = prefixes.get(i);
+                PostEffect effect = effects.get(i);
+                fragment.append(effect.getDeclarations().replace("$", prefix));
+                fragment.append("vec4 ").append(prefix).append("apply(vec4 color, vec2 coord, vec2 pixel) {\n");
+                fragment.append(effect.getBody().replace("$", prefix));
+                fragment.append("    return color;\n}\n");
+            }
+            fragment.append("void main() {\n");
+            fragment.append("    vec2 pixel = uv / sourceMax * resolution;\n");
+            fragment.append("    vec4 color = texture2D(source, uv);\n");
+            for(int i = 0; i < effects.size(); i++) {
+                fragment.append("    color = ").append(prefixes.get(i)).append("apply(color, uv, pixel);\n");
+            }
+            fragment.append("    gl_FragColor = vec4(color.rgb, 1.0);\n}\n");
+
+            //Keyed by source, so the same chain comes straight back out of the cache
+            String source = fragment.toString();
+            this.shader = ShaderProgram.getSourceShader("engine/post\n" + source, VERTEX_SHADER, source);
+            if(!(this.shader instanceof ShaderProgram)) return;
+            this.sourceID = shader.getVariableID("source");
+            this.texelID = shader.getVariableID("texel");
+            this.sourceMaxID = shader.getVariableID("sourceMax");
+            this.resolutionID = shader.getVariableID("resolution");
+            this.timeID = shader.getVariableID("time");
+            for(int i = 0; i < effects.size(); i++) effects.get(i).onCompile(this.shader, prefixes.get(i));
+        }
+
+        private void bind(float maxS, float maxT, int width, int height, float time) {
+            this.shader.bind();
+            this.shader.setVariableByID(this.sourceID, 0);
+            RenderBackend gl = RenderBackend.getActiveBackend();
+            gl.uniform2f(this.texelID, 1f / width, 1f / height);
+            gl.uniform2f(this.sourceMaxID, maxS, maxT);
+            gl.uniform2f(this.resolutionID, width, height);
+            this.shader.setVariableByID(this.timeID, time);
+            for(int i = 0; i < effects.size(); i++) effects.get(i).onBind(this.shader);
+        }
+    }
+}
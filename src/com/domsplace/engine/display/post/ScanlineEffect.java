@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.post;
+
+import com.domsplace.engine.display.shader.ShaderProgram;
+
+/**
+ * Darkens every other line, the same look as gui.Scanlines but worked out per
+ * pixel in the fused post shader instead of an extra full screen sprite.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public class ScanlineEffect extends PostEffect {
+    private float spacing;
+    private float strength;
+    private int spacingID = -1;
+    private int strengthID = -1;
+
+    public ScanlineEffect() {this(2, 0.25f);}
+
+    //spacing is in scene units, strength is how dark the dark lines get 0 to 1
+    public ScanlineEffect(float spacing, float strength) {
+        this.spacing = spacing;
+        this.strength = strength;
+    }
+
+    public float getSpacing() {return this.spacing;}
+    public float getStrength() {return this.strength;}
+
+    public void setSpacing(float spacing) {this.spacing = spacing;}
+    public void setStrength(float strength) {this.strength = strength;}
+
+    @Override
+    public String getDeclarations() {
+        return
+            "uniform float $spacing;\n" +
+            "uniform float $strength;\n";
+    }
+
+    @Override
+    public String getBody() {
+        return
+            "    float $line = step(0.5, fract(pixel.y / $spacing));\n" +
+            "    color.rgb *= 1.0 - $strength * $line;\n";
+    }
+
+    @Override
+    public void onCompile(ShaderProgram shader, String prefix) {
+        this.spacingID = shader.getVariableID(prefix + "spacing");
+        this.strengthID = shader.getVariableID(prefix + "strength");
+    }
+
+    @Override
+    public void onBind(ShaderProgram shader) {
+        shader.setVariableByID(this.spacingID, Math.max(1f, this.spacing));
+        shader.setVariableByID(this.strengthID, this.strength);
+    }
+}
@@ -16,6 +16,7 @@
 package com.domsplace.engine.display.shader;
 
 import com.domsplace.engine.display.DisplayManager;
+import com.domsplace.engine.display.backend.RenderBackend;
 import java.util.logging.Level;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL20.*;
@@ -40,22 +41,22 @@ public class Shader {
     }
 
     public void compile(String code, int shaderType) throws Exception {
-        this.id = glCreateShader(shaderType);
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        this.id = gl.createShader(shaderType);
         if (this.id == 0) {
             this.id = -1;
             throw new Exception("Failed to create shader. (ID Gen Failed)");
         }
-        glShaderSource(this.id, code);
+        gl.shaderSource(this.id, code);
         
-        int len = glGetShaderi(this.id, GL_INFO_LOG_LENGTH);
-        String x = glGetShaderInfoLog(this.id, len);
+        String x = gl.getShaderInfoLog(this.id);
         
         if(x.length() > 0) {
             DisplayManager.getInstance().getLogger().log(Level.SEVERE, x);
         }
 
-        glCompileShader(this.id);
-        if (glGetShaderi(this.id, GL_COMPILE_STATUS) == GL_FALSE) {
+        gl.compileShader(this.id);
+        if (gl.getShaderi(this.id, GL_COMPILE_STATUS) == GL_FALSE) {
             this.dispose();
             throw new Exception("Failed to Compile Shader \"" + x + "\"");
         }
@@ -69,7 +70,7 @@ public class Shader {
         if (this.id == -1) {
             return;
         }
-        glDeleteShader(this.id);
+        RenderBackend.getActiveBackend().deleteShader(this.id);
         this.id = -1;
     }
 }
@@ -16,6 +16,8 @@
 package com.domsplace.engine.display.shader;
 
 import com.domsplace.engine.display.DisplayManager;
+import com.domsplace.engine.display.GLStateCache;
+import com.domsplace.engine.display.backend.RenderBackend;
 import com.domsplace.engine.utilities.FileUtilities;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
@@ -24,9 +26,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL20;
-import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL20.*;
+import org.lwjgl.opengl.GL30;
 
 /**
  *
@@ -39,19 +41,56 @@ public class ShaderProgram {
     
     public static ShaderProgram getPredefinedShader(String resource) {
         if(PREDEFINED_SHADERS.containsKey(resource)) return PREDEFINED_SHADERS.get(resource);
+        try {
+            return getSourceShader(resource, FileUtilities.getResourceAsString(resource+".vert"), FileUtilities.getResourceAsString(resource+".frag"));
+        } catch(Exception e) {
+            DisplayManager.getInstance().getLogger().log(Level.SEVERE, "Failed to load default shader", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Same as getPredefinedShader but for shaders the engine carries as source
+     * rather than as a resource, cached under name.
+     */
+    public static ShaderProgram getSourceShader(String name, String vertex, String fragment) {
+        if(PREDEFINED_SHADERS.containsKey(name)) return PREDEFINED_SHADERS.get(name);
         Shader frag = new Shader();
         Shader vert = new Shader();
         ShaderProgram shader = new ShaderProgram();
         try {
-            vert.compile(FileUtilities.getResourceAsString(resource+".vert"), GL20.GL_VERTEX_SHADER);
-            frag.compile(FileUtilities.getResourceAsString(resource+".frag"), GL20.GL_FRAGMENT_SHADER);
+            vert.compile(vertex, GL20.GL_VERTEX_SHADER);
+            frag.compile(fragment, GL20.GL_FRAGMENT_SHADER);
             shader.addShader(frag).addShader(vert);
             shader.compile();
         } catch(Exception e) {
-            DisplayManager.getInstance().getLogger().log(Level.SEVERE, "Failed to load default shader", e);
+            DisplayManager.getInstance().getLogger().log(Level.SEVERE, "Failed to load shader " + name, e);
+            PREDEFINED_SHADERS.put(name, null);//Don't retry every frame
             return null;
         }
-        PREDEFINED_SHADERS.put(resource, shader);
+        PREDEFINED_SHADERS.put(name, shader);
+        return shader;
+    }
+    
+    /**
+     * A vertex only program whose outputs (the given varyings, interleaved in
+     * that order) are captured with transform feedback, cached under name.
+     * @return null if it doesn't compile or link.
+     */
+    public static ShaderProgram getFeedbackShader(String name, String vertex, String... varyings) {
+        if(PREDEFINED_SHADERS.containsKey(name)) return PREDEFINED_SHADERS.get(name);
+        Shader vert = new Shader();
+        ShaderProgram shader = new ShaderProgram();
+        try {
+            vert.compile(vertex, GL20.GL_VERTEX_SHADER);
+            shader.addShader(vert).setFeedbackVaryings(varyings);
+            shader.compile();
+        } catch(Exception e) {
+            DisplayManager.getInstance().getLogger().log(Level.SEVERE, "Failed to load shader " + name, e);
+            PREDEFINED_SHADERS.put(name, null);
+            return null;
+        }
+        PREDEFINED_SHADERS.put(name, shader);
         return shader;
     }
     
@@ -60,7 +99,7 @@ public class ShaderProgram {
     
     public static void unbindProgram() {
         BOUND_SHADER = null;
-        glUseProgram(0);
+        GLStateCache.getInstance().useProgram(0);
     }
     
     public static ShaderProgram getBoundShader() {return BOUND_SHADER;}
@@ -69,39 +108,61 @@ public class ShaderProgram {
     private int program = -1;
     private List<Shader> shaders = new ArrayList<Shader>();
     private Map<String, Integer> variables;
+    private Map<String, Integer> attributes;
+    private String[] feedbackVaryings;
     
     public ShaderProgram() {}
     
     public int getProgramID() {return this.program;}
     public ShaderProgram addShader(Shader shader) {this.shaders.add(shader); return this;}
     
+    //Outputs to capture with transform feedback, set before compile()
+    public ShaderProgram setFeedbackVaryings(String... varyings) {this.feedbackVaryings = varyings; return this;}
+    public String[] getFeedbackVaryings() {return this.feedbackVaryings;}
+    
     public void compile() throws Exception {        
-        this.program = glCreateProgram();
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        this.program = gl.createProgram();
         if(this.program == 0) {
             this.program = -1;
             throw new Exception("Failed to create ShaderProgram (Failed to Gen ID)");
         }
         variables = new HashMap<String, Integer>();
+        attributes = new HashMap<String, Integer>();
         
         for(Shader shader : this.shaders) {
-            glAttachShader(this.program, shader.getID());
+            gl.attachShader(this.program, shader.getID());
         }
-        glLinkProgram(this.program);
-        glValidateProgram(this.program);
+        if(this.feedbackVaryings instanceof String[]) {
+            gl.transformFeedbackVaryings(this.program, this.feedbackVaryings, GL30.GL_INTERLEAVED_ATTRIBS);
+        }
+        gl.linkProgram(this.program);
+        //Feedback programs have no other way of finding out they're broken
+        if(this.feedbackVaryings instanceof String[] && gl.getProgrami(this.program, GL20.GL_LINK_STATUS) == GL11.GL_FALSE) {
+            throw new Exception("Failed to link ShaderProgram \"" + gl.getProgramInfoLog(this.program) + "\"");
+        }
+        gl.validateProgram(this.program);
     }
     
     public void bind() {
         BOUND_SHADER = this;
-        glUseProgram(this.program);
+        GLStateCache.getInstance().useProgram(this.program);
     }
     
     public int getVariableID(String variable) {
         if(variables.containsKey(variable)) return variables.get(variable);
-        int id = glGetUniformLocation(this.program, variable);
+        int id = RenderBackend.getActiveBackend().getUniformLocation(this.program, variable);
         variables.put(variable, id);
         return id;
     }
     
+    public int getAttributeID(String attribute) {
+        if(attributes.containsKey(attribute)) return attributes.get(attribute);
+        int id = RenderBackend.getActiveBackend().getAttribLocation(this.program, attribute);
+        attributes.put(attribute, id);
+        return id;
+    }
+    
     public void setVariable(String variable, float[] data) {
         FloatBuffer fb = BufferUtils.createFloatBuffer(data.length);
         fb.put(data);
@@ -127,22 +188,14 @@ public class ShaderProgram {
     
     public void setVariableByID(int id, FloatBuffer stuff) {
         int size = stuff.capacity();
-        if(size == 1) {
-            GL20.glUniform1fv(id, stuff);
-        } else if(size == 2) {
-            GL20.glUniform2fv(id, stuff);
-        } else if(size == 3) {
-            GL20.glUniform3fv(id, stuff);
-        } else if(size == 4) {
-            GL20.glUniform4fv(id, stuff);
-        }
+        if(size >= 1 && size <= 4) RenderBackend.getActiveBackend().uniformfv(id, size, stuff);
     }
     
     public void setVariableByID(int id, int stuff) {
-        GL20.glUniform1i(id, stuff);
+        RenderBackend.getActiveBackend().uniform1i(id, stuff);
     }
     
     public void setVariableByID(int id, float stuff) {
-        GL20.glUniform1f(id, stuff);
+        RenderBackend.getActiveBackend().uniform1f(id, stuff);
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.texture;
+
+import com.domsplace.engine.display.backend.RenderBackend;
+import java.nio.ByteBuffer;
+import org.lwjgl.BufferUtils;
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * A single shared texture that small GameTextures get copied into. Must only
+ * be touched from the main thread.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public class AtlasPage extends Texture {
+    //Instance
+    private final SkylinePacker packer;
+    private final int padding;
+    private int packed = 0;
+
+    public AtlasPage(int size, int padding, int filter) {
+        super();
+        this.tWidth = size;
+        this.tHeight = size;
+        this.padding = padding;
+        this.textureFilter = filter;
+        this.packer = new SkylinePacker(size, size);
+        this.loaded = true;
+    }
+
+    public SkylinePacker getPacker() {return this.packer;}
+    public int getPackedCount() {return this.packed;}
+
+    @Override
+    protected void uploadMainThread() {
+        this.genHandle();
+        this.bind();
+        RenderBackend.getActiveBackend().texImage2D(GL_TEXTURE_2D, 0, GL_RGBA, getWidth(), getHeight(), 0, GL_RGBA, GL_UNSIGNED_BYTE, null);
+    }
+
+    /**
+     * Copies the texture's decoded pixels into this page. The border pixels are
+     * extruded into the padding so linear filtering never samples a neighbour.
+     * @return {s, t, ss, ts} of the texture inside the page, or null if it
+     * didn't fit.
+     */
+    public double[] pack(Texture texture) {
+        int w = texture.getWidth();
+        int h = texture.getHeight();
+        int pw = w + padding * 2;
+        int ph = h + padding * 2;
+        int[] spot = packer.insert(pw, ph);
+        if(spot == null) return null;
+
+        if(!this.isUploaded()) this.uploadMainThread();
+
+        ByteBuffer src = texture.buff;
+        ByteBuffer dst = BufferUtils.createByteBuffer(pw * ph * 4);
+        for(int y = 0; y < ph; y++) {
+            int sy = Math.min(Math.max(y - padding, 0), h - 1);
+            for(int x = 0; x < pw; x++) {
+                int sx = Math.min(Math.max(x - padding, 0), w - 1);
+                int i = (sy * w + sx) * 4;
+                dst.put(src.get(i)).put(src.get(i+1)).put(src.get(i+2)).put(src.get(i+3));
+            }
+        }
+        dst.flip();
+
+        this.bind();
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        gl.pixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        gl.texSubImage2D(GL_TEXTURE_2D, 0, spot[0], spot[1], pw, ph, GL_RGBA, GL_UNSIGNED_BYTE, dst);
+        this.packed++;
+
+        double size = (double)getWidth();
+        double s = (spot[0] + padding) / size;
+        double t = (spot[1] + padding) / size;
+        return new double[]{
+            s, t, s + w / size, t + h / size
+        };
+    }
+}
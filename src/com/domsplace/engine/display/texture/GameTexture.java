@@ -60,10 +60,18 @@ public class GameTexture extends Texture {
     public double columns;
     public double rows;
     public int spacing = 0;
+    //Whether the TextureAtlas may take it (if it's small enough), on for resource
+    //textures. Set false before upload for repeating textures, see isRepeatable()
+    public boolean packable = false;
+    private boolean repeatWarned = false;
+    
+    private AtlasPage atlasPage;
+    private double[] atlasRegion;
     
     public GameTexture(String resource_name, double cols, double rows) throws IOException {
         this(FileUtilities.getResource(resource_name), cols, rows);
         this.resource_name = resource_name;
+        this.packable = true;
         
         RESOURCE_LOADED_TEXTURES.add(this);
     }
@@ -77,6 +85,58 @@ public class GameTexture extends Texture {
     public String getResourceName() {return this.resource_name;}
     public double getColumns() {return this.columns;}
     public double getRows() {return this.rows;}
+    public AtlasPage getAtlasPage() {return this.atlasPage;}
+    public boolean isAtlased() {return this.atlasPage instanceof AtlasPage;}
+    
+    /**
+     * Whether uvs past 0..1 wrap around this texture. Atlased textures would
+     * sample their neighbours instead, which is logged the first time.
+     */
+    public boolean isRepeatable() {
+        if(!this.isAtlased()) return true;
+        if(!this.repeatWarned) {
+            this.repeatWarned = true;
+            DisplayManager.getInstance().getLogger().log(Level.WARNING, "Texture " + this.resource_name + " is repeated but packed into the atlas, leave packable false for repeating textures.");
+        }
+        return false;
+    }
+    
+    void setAtlasRegion(AtlasPage page, double[] region) {
+        this.atlasPage = page;
+        this.atlasRegion = region;
+    }
+    
+    @Override public boolean isUploaded() {return this.isAtlased() || super.isUploaded();}
+    @Override public int getHandle() {return this.isAtlased() ? this.atlasPage.getHandle() : super.getHandle();}
+    @Override public Texture getBindingTexture() {return this.isAtlased() ? this.atlasPage : this;}
+    
+    @Override
+    public double mapS(double s) {
+        if(!this.isAtlased()) return s;
+        return atlasRegion[0] + s * (atlasRegion[2] - atlasRegion[0]);
+    }
+    
+    @Override
+    public double mapT(double t) {
+        if(!this.isAtlased()) return t;
+        return atlasRegion[1] + t * (atlasRegion[3] - atlasRegion[1]);
+    }
+    
+    @Override
+    public void bind() {
+        if(this.isAtlased()) {
+            this.atlasPage.bind();
+        } else {
+            super.bind();
+        }
+    }
+    
+    @Override
+    protected void uploadMainThread() throws IOException {
+        if(this.isAtlased()) return;
+        if(TextureAtlas.getInstance().pack(this)) return;
+        super.uploadMainThread();
+    }
     
     public double getSizeX() {
         return this.getTexturePixelWidth()*this.getAdjustedWidth();
@@ -147,6 +207,9 @@ public class GameTexture extends Texture {
     
     @Override
     public void dispose() {
+        //Space in the page isn't reclaimed, the page lives as long as the atlas.
+        this.atlasPage = null;
+        this.atlasRegion = null;
         super.dispose();
         RESOURCE_LOADED_TEXTURES.remove(this);
     }
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.texture;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bottom-left skyline rectangle packer. The skyline is a list of horizontal
+ * segments describing the top edge of everything packed so far, a new rect
+ * goes wherever it ends up lowest.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public class SkylinePacker {
+    //Instance
+    private final int width;
+    private final int height;
+    private final List<int[]> skyline;//{x, y, width}
+    private int usedArea = 0;
+
+    public SkylinePacker(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.skyline = new ArrayList<int[]>();
+        this.skyline.add(new int[]{0, 0, width});
+    }
+
+    public int getWidth() {return this.width;}
+    public int getHeight() {return this.height;}
+    public float getOccupancy() {return (float)usedArea / (float)(width*height);}
+
+    /**
+     * Finds a spot for a w by h rectangle and reserves it.
+     * @return {x, y} of the top left corner, or null if it doesn't fit.
+     */
+    public int[] insert(int w, int h) {
+        int bestIndex = -1;
+        int bestY = Integer.MAX_VALUE;
+        int bestWidth = Integer.MAX_VALUE;
+
+        for(int i = 0; i < skyline.size(); i++) {
+            int y = this.fit(i, w, h);
+            if(y < 0) continue;
+            int segWidth = skyline.get(i)[2];
+            if(y + h < bestY || (y + h == bestY && segWidth < bestWidth)) {
+                bestIndex = i;
+                bestY = y + h;
+                bestWidth = segWidth;
+            }
+        }
+        if(bestIndex == -1) return null;
+
+        int x = skyline.get(bestIndex)[0];
+        int y = bestY - h;
+        this.addLevel(bestIndex, x, y, w, h);
+        this.usedArea += w * h;
+        return new int[]{x, y};
+    }
+
+    //Returns the y the rect would sit at if placed on segment i, or -1.
+    private int fit(int i, int w, int h) {
+        int x = skyline.get(i)[0];
+        if(x + w > width) return -1;
+
+        int remaining = w;
+        int y = skyline.get(i)[1];
+        while(remaining > 0) {
+            if(i >= skyline.size()) return -1;
+            int[] seg = skyline.get(i);
+            y = Math.max(y, seg[1]);
+            if(y + h > height) return -1;
+            remaining -= seg[2];
+            i++;
+        }
+        return y;
+    }
+
+    private void addLevel(int index, int x, int y, int w, int h) {
+        skyline.add(index, new int[]{x, y + h, w});
+
+        //Trim or drop whatever the new segment now shadows
+        for(int i = index + 1; i < skyline.size(); i++) {
+            int[] prev = skyline.get(i - 1);
+            int[] seg = skyline.get(i);
+            int shrink = prev[0] + prev[2] - seg[0];
+            if(shrink <= 0) break;
+
+            seg[0] += shrink;
+            seg[2] -= shrink;
+            if(seg[2] > 0) break;
+            skyline.remove(i);
+            i--;
+        }
+
+        //Merge neighbours at the same height
+        for(int i = 0; i < skyline.size() - 1; i++) {
+            int[] seg = skyline.get(i);
+            int[] next = skyline.get(i + 1);
+            if(seg[1] != next[1]) continue;
+            seg[2] += next[2];
+            skyline.remove(i + 1);
+            i--;
+        }
+    }
+}
@@ -16,6 +16,8 @@
 package com.domsplace.engine.display.texture;
 
 import com.domsplace.engine.display.DisplayManager;
+import com.domsplace.engine.display.GLStateCache;
+import com.domsplace.engine.display.backend.RenderBackend;
 import com.domsplace.engine.disposable.IDisposable;
 import com.domsplace.engine.utilities.TimeUtilities;
 import de.matthiasmann.twl.utils.PNGDecoder;
@@ -26,30 +28,25 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
-import static org.lwjgl.opengl.EXTTextureFilterAnisotropic.GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT;
 import static org.lwjgl.opengl.EXTTextureFilterAnisotropic.GL_TEXTURE_MAX_ANISOTROPY_EXT;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL12.*;
-import static org.lwjgl.opengl.GL13.*;
-import static org.lwjgl.opengl.GL30.glGenerateMipmap;
 
 /**
  *
  * @author Dominic Masters <dominic@domsplace.com>
  */
 public class Texture implements Runnable, IDisposable {
-    private static Texture BOUND_TEXTURE = null;
-    
     private static final List<Texture> TEXTURES_TO_UPLOAD = new ArrayList<Texture>();
     public static final List<Texture> getTexturesToUpload() {return new ArrayList<Texture>(TEXTURES_TO_UPLOAD);}
+    public static final int getUploadQueueSize() {return TEXTURES_TO_UPLOAD.size();}
     
     public static final int generateTextureHandle() {
-        return glGenTextures();
+        return RenderBackend.getActiveBackend().genTexture();
     }
     
     public static void unbind() {
-        BOUND_TEXTURE = null;
-        glBindTexture(GL_TEXTURE_2D,0);
+        GLStateCache.getInstance().bindTexture(0, 0);
     }
 
     //Instance
@@ -58,6 +55,7 @@ public class Texture implements Runnable, IDisposable {
     
     private InputStream is;
     private int handle = -1;
+    private int appliedFilter = -1;
     protected int tWidth;
     protected int tHeight;
     protected ByteBuffer buff;
@@ -84,7 +82,13 @@ public class Texture implements Runnable, IDisposable {
     
     public boolean isUploaded() {return this.handle != -1;}
     @Override public boolean isDisposed() { return disposed; }
-    public boolean isBound() {return this.equals(BOUND_TEXTURE);}
+    public boolean isBound() {return this.getHandle() != -1 && GLStateCache.getInstance().getTexture(0) == this.getHandle();}
+    
+    //The texture that actually ends up bound, only differs for atlased textures.
+    public Texture getBindingTexture() {return this;}
+    //Maps local (0-1) texture coordinates into whatever is actually bound.
+    public double mapS(double s) {return s;}
+    public double mapT(double t) {return t;}
 
     public void genHandle() {
         this.handle = Texture.generateTextureHandle();
@@ -136,22 +140,44 @@ public class Texture implements Runnable, IDisposable {
         }
     }
     
-    private void uploadMainThread() throws IOException {
-        Texture.TEXTURES_TO_UPLOAD.remove(this);
+    protected void uploadMainThread() throws IOException {
         this.genHandle();
         //Put Texture on GFX card
         this.bind();
-        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
-        glTexImage2D(GL_TEXTURE_2D, 0, textureType, getWidth(), getHeight(), 0, textureType, GL_UNSIGNED_BYTE, buff);
-        glGenerateMipmap(GL_TEXTURE_2D);
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        gl.pixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        gl.texImage2D(GL_TEXTURE_2D, 0, textureType, getWidth(), getHeight(), 0, textureType, GL_UNSIGNED_BYTE, buff);
+        gl.generateMipmap(GL_TEXTURE_2D);
+    }
+    
+    /**
+     * Sets the sampling parameters on this (bound) texture. These stick to the
+     * texture object so only need doing once, or when textureFilter changes.
+     */
+    protected void applyParameters() {
+        float f = GLStateCache.getInstance().getMaxAnisotropy();
+        //Mag filter can't use mipmaps
+        int magFilter = textureFilter == GL_NEAREST || textureFilter == GL_NEAREST_MIPMAP_NEAREST ? GL_NEAREST : GL_LINEAR;
+        
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
+        gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
+        gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, textureFilter);
+        gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, magFilter);
+        if(f > 0 && textureFilter != GL_NEAREST) gl.texParameterf(GL_TEXTURE_2D, GL_TEXTURE_MAX_ANISOTROPY_EXT, f);
+        gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, 0);
+        gl.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, 0);
+        
+        this.appliedFilter = textureFilter;
     }
 
     public void upload() throws IOException {
         if(Thread.currentThread().equals(DisplayManager.getInstance().getKnownMainThread())) {
+            Texture.TEXTURES_TO_UPLOAD.remove(this);
             this.uploadMainThread();
         } else {
             if(Texture.TEXTURES_TO_UPLOAD.contains(this)) return;
-            if(this.handle != -1) return;
+            if(this.isUploaded()) return;
             Texture.TEXTURES_TO_UPLOAD.add(this);
             while(!DisplayManager.getInstance().isDisposed() && !this.isUploaded()) {
                 TimeUtilities.sleepThread(1);
@@ -160,23 +186,12 @@ public class Texture implements Runnable, IDisposable {
     }
 
     public void bind() {
-        if(this.equals(BOUND_TEXTURE)) return;
         if(this.handle == -1) return;
-        
-        float f = glGetFloat(GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT);//Texture filtering
-        
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, textureFilter);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, textureFilter);
-        if(f > 0 && textureFilter != GL_NEAREST) glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MAX_ANISOTROPY_EXT, f);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, 0);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, 0);
-        glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_WRAP_R, GL_CLAMP_TO_EDGE);
-        
-        glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, this.handle);
-        BOUND_TEXTURE = this;
+        GLStateCache cache = GLStateCache.getInstance();
+        cache.bindTexture(0, this.handle);
+        if(this.appliedFilter == this.textureFilter) return;
+        cache.activeTexture(0);//An elided bind leaves whichever unit was last active
+        this.applyParameters();
     }
 
     @Override
@@ -190,8 +205,10 @@ public class Texture implements Runnable, IDisposable {
             }
             
             //Delete the texture
-            glDeleteTextures(this.handle);
+            RenderBackend.getActiveBackend().deleteTexture(this.handle);
+            GLStateCache.getInstance().forgetTexture(this.handle);
             this.handle = -1;
+            this.appliedFilter = -1;
         }
         
         try {this.buff.clear(); }catch(Exception e) {}
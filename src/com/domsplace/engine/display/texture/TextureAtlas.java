@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.display.texture;
+
+import com.domsplace.engine.game.GameInfo;
+import java.util.ArrayList;
+import java.util.List;
+import static org.lwjgl.opengl.GL11.GL_RGBA;
+
+/**
+ * Packs small GameTextures into shared AtlasPages as they are uploaded, so
+ * sprites from different images can be drawn without a texture switch. Only
+ * textures marked packable are taken, repeating ones have to stay out.
+ *
+ * Controlled by the atlas, atlas_size, atlas_padding and atlas_max_texture
+ * values in gameinfo.txt.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class TextureAtlas {
+    //Constants
+    public static final int DEFAULT_PAGE_SIZE = 1024;
+    public static final int DEFAULT_PADDING = 2;
+    public static final int DEFAULT_MAX_TEXTURE = 256;
+
+    private static final TextureAtlas INSTANCE = new TextureAtlas();
+    public static TextureAtlas getInstance() {return INSTANCE;}
+
+    //Instance
+    private final List<AtlasPage> pages = new ArrayList<AtlasPage>();
+    private boolean configured = false;
+    private boolean enabled;
+    private int pageSize;
+    private int padding;
+    private int maxTexture;
+
+    private TextureAtlas() {}
+
+    public List<AtlasPage> getPages() {return new ArrayList<AtlasPage>(this.pages);}
+    public boolean isEnabled() {this.configure(); return this.enabled;}
+
+    public void setEnabled(boolean enabled) {this.configure(); this.enabled = enabled;}
+
+    private void configure() {
+        if(this.configured) return;
+        this.configured = true;
+        GameInfo info = GameInfo.getGameInfo();
+        this.enabled = info.getBooleanValue("atlas", true);
+        this.pageSize = info.getIntValue("atlas_size", DEFAULT_PAGE_SIZE);
+        this.padding = info.getIntValue("atlas_padding", DEFAULT_PADDING);
+        this.maxTexture = info.getIntValue("atlas_max_texture", DEFAULT_MAX_TEXTURE);
+    }
+
+    public boolean canPack(GameTexture texture) {
+        if(!this.isEnabled() || !texture.packable) return false;
+        if(texture.textureType != GL_RGBA || texture.buff == null) return false;
+        int w = texture.getWidth() + padding * 2;
+        int h = texture.getHeight() + padding * 2;
+        return w <= pageSize && h <= pageSize && texture.getWidth() <= maxTexture && texture.getHeight() <= maxTexture;
+    }
+
+    /**
+     * Packs the texture into the first page with matching filtering that has
+     * room, opening a new page if needed. Main thread only.
+     * @return true if the texture now lives in the atlas.
+     */
+    public boolean pack(GameTexture texture) {
+        if(!this.canPack(texture)) return false;
+
+        for(AtlasPage page : this.pages) {
+            if(page.textureFilter != texture.textureFilter) continue;
+            double[] region = page.pack(texture);
+            if(region == null) continue;
+            texture.setAtlasRegion(page, region);
+            return true;
+        }
+
+        AtlasPage page = new AtlasPage(pageSize, padding, texture.textureFilter);
+        this.pages.add(page);
+        double[] region = page.pack(texture);
+        if(region == null) return false;
+        texture.setAtlasRegion(page, region);
+        return true;
+    }
+
+    public void dispose() {
+        for(AtlasPage page : this.getPages()) {
+            page.dispose();
+        }
+        this.pages.clear();
+    }
+}
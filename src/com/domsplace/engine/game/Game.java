@@ -23,9 +23,21 @@ import java.util.logging.Logger;
  * @author Dominic Masters <dominic@domsplace.com>
  */
 public abstract class Game {
+    public static final int DEFAULT_TICK_RATE = 60;
+    public static final int DEFAULT_MAX_TICKS = 5;
+    
     private final Logger logger;
     private final Thread mainThread;
     
+    //Fixed timestep
+    private int tickRate = -1;
+    private int maxTicks;
+    private long tickNanos;
+    private long lastUpdate = -1;
+    private long accumulator = 0;
+    private float alpha = 1f;
+    private long ticks = 0;
+    
     public Game() {
         this.logger = Logger.getLogger(this.getClass().getName());
         this.mainThread = Thread.currentThread();
@@ -36,6 +48,32 @@ public abstract class Game {
     public File getFolder() {return new File(this.getName());}
     public Thread getMainThread() {return this.mainThread;}
     
+    //Ticks per second, 0 means one tick per rendered frame (the old behaviour)
+    public int getTickRate() {this.configureTicks(); return this.tickRate;}
+    public double getTickDelta() {return this.getTickRate() > 0 ? 1d / this.tickRate : 0d;}
+    public int getMaxTicksPerFrame() {this.configureTicks(); return this.maxTicks;}
+    public long getTickCount() {return this.ticks;}
+    
+    /**
+     * How far between the last tick and the next one this frame is being
+     * rendered, 0 to 1. Used to interpolate positions when rendering faster or
+     * slower than the tick rate.
+     */
+    public float getInterpolationAlpha() {return this.alpha;}
+    
+    public void setTickRate(int rate) {
+        this.configureTicks();
+        this.tickRate = Math.max(0, rate);
+        this.tickNanos = this.tickRate > 0 ? 1000000000L / this.tickRate : 0;
+        this.accumulator = 0;
+    }
+    
+    private void configureTicks() {
+        if(this.tickRate >= 0) return;
+        this.maxTicks = Math.max(1, GameInfo.getGameInfo().getIntValue("max_tick_steps", DEFAULT_MAX_TICKS));
+        this.setTickRate(GameInfo.getGameInfo().getIntValue("tick_rate", DEFAULT_TICK_RATE));
+    }
+    
     public abstract GameScene getStartingScene();//This method must return the scene to be attached when the game is ready to be actually started.
     
     public void start() {
@@ -148,6 +186,9 @@ public abstract class Game {
     public void run() throws Exception {
         //We need to update our KeyManager as well.
         KeyManager.getInstance().update();
+        
+        //Logic runs at a fixed rate, independent of the render rate
+        this.update();
 
         //Do the render
         DisplayManager.getInstance().update(this);
@@ -155,4 +196,39 @@ public abstract class Game {
         //Now do sounds
         SoundFactory.getFactory().update(this);
     }
+    
+    /**
+     * Runs however many fixed ticks have built up since the last frame, at
+     * most getMaxTicksPerFrame(). Anything beyond that is dropped so a long
+     * stall doesn't turn into a spiral of catching up.
+     */
+    protected void update() {
+        this.configureTicks();
+        long now = System.nanoTime();
+        if(this.lastUpdate == -1) this.lastUpdate = now;
+        long frame = now - this.lastUpdate;
+        this.lastUpdate = now;
+        
+        if(this.tickRate <= 0) {
+            this.tick();
+            this.alpha = 1f;
+            return;
+        }
+        
+        this.accumulator += frame;
+        int steps = 0;
+        while(this.accumulator >= this.tickNanos && steps < this.maxTicks) {
+            this.tick();
+            this.accumulator -= this.tickNanos;
+            steps++;
+        }
+        if(this.accumulator >= this.tickNanos) this.accumulator %= this.tickNanos;
+        this.alpha = (float)this.accumulator / (float)this.tickNanos;
+    }
+    
+    private void tick() {
+        GameScene scene = GameScene.getActiveScene();
+        if(scene instanceof GameScene) scene.tick();
+        this.ticks++;
+    }
 }
@@ -38,6 +38,33 @@ public final class GameInfo {
     
     public boolean isValueSet(String key) {return this.data.containsKey(key);}
     
+    //Typed getters, fall back to def when the key is missing or unreadable.
+    public String getValue(String key, String def) {
+        if(!(this.data instanceof Map) || !this.isValueSet(key)) return def;
+        return this.getValue(key);
+    }
+    
+    public int getIntValue(String key, int def) {
+        try {
+            return Integer.parseInt(this.getValue(key).trim());
+        } catch(Exception e) {
+            return def;
+        }
+    }
+    
+    public float getFloatValue(String key, float def) {
+        try {
+            return Float.parseFloat(this.getValue(key).trim());
+        } catch(Exception e) {
+            return def;
+        }
+    }
+    
+    public boolean getBooleanValue(String key, boolean def) {
+        if(!(this.data instanceof Map) || !this.isValueSet(key)) return def;
+        return this.getValue(key).trim().equalsIgnoreCase("true");
+    }
+    
     /**
      * Returns the default values used in the GameInfo, overridden by the game.
      * @return A new Map<,> containing the default values.
@@ -46,6 +73,7 @@ public final class GameInfo {
         Map<String,String> data = new HashMap<String,String>();
         
         data.put("fullscreen", "false");
+        data.put("atlas", "true");
         
         return data;
     }
@@ -19,8 +19,6 @@ import com.domsplace.engine.scene.gameobject.GameObject;
 import com.domsplace.engine.scene.GameScene;
 import java.util.ArrayList;
 import java.util.List;
-import static org.lwjgl.opengl.GL11.glPopMatrix;
-import static org.lwjgl.opengl.GL11.glPushMatrix;
 
 /**
  *
@@ -71,11 +69,9 @@ public class GUIBorder extends GUIObject {
     
     @Override
     public void render(GameScene scene, double frame_took) {
-        glPushMatrix();
         for(GameObject go : new ArrayList<GameObject>(BORDER_OBJECTS)) {
             go.render();
         }
-        glPopMatrix();
         super.render(scene, frame_took);
     }
 
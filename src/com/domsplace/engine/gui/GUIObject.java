@@ -15,14 +15,13 @@
  */
 package com.domsplace.engine.gui;
 
+import com.domsplace.engine.display.Transform2D;
+import com.domsplace.engine.display.batch.SpriteBatch;
 import com.domsplace.engine.disposable.IDisposable;
 import com.domsplace.engine.scene.GameScene;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
-import static org.lwjgl.opengl.GL11.glPopMatrix;
-import static org.lwjgl.opengl.GL11.glPushMatrix;
-import static org.lwjgl.opengl.GL11.glTranslated;
 
 /**
  *
@@ -76,6 +75,7 @@ public abstract class GUIObject implements IDisposable {
     }
     
     public void render(GameScene scene, double frame_took) {
+        if(this.children.isEmpty()) return;
         List<GUIObject> objs = this.getChildren();
         objs.sort(new Comparator<GUIObject>(){
             @Override
@@ -83,11 +83,12 @@ public abstract class GUIObject implements IDisposable {
                 return t.compare(t1);
             }
         });
+        Transform2D transform = SpriteBatch.getInstance().getTransform();
         for(GUIObject go : objs) {
-            glPushMatrix();
-            glTranslated(go.x, go.y, 0d);
+            transform.push();
+            transform.translate((float)go.x, (float)go.y);
             go.render(scene, frame_took);
-            glPopMatrix();
+            transform.pop();
         }
     }
     
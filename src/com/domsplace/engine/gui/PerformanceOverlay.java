@@ -0,0 +1,299 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.gui;
+
+import com.domsplace.engine.display.FrameLimiter;
+import com.domsplace.engine.display.GLStateCache;
+import com.domsplace.engine.display.GPUProfiler;
+import com.domsplace.engine.display.Transform2D;
+import com.domsplace.engine.display.backend.RenderBackend;
+import com.domsplace.engine.display.batch.InstancedSpriteRenderer;
+import com.domsplace.engine.display.batch.ParticleRenderer;
+import com.domsplace.engine.display.batch.SpriteBatch;
+import com.domsplace.engine.display.shader.ShaderProgram;
+import com.domsplace.engine.display.texture.Texture;
+import com.domsplace.engine.game.GameInfo;
+import com.domsplace.engine.gui.label.Label;
+import com.domsplace.engine.input.KeyListener;
+import com.domsplace.engine.input.KeyManager;
+import com.domsplace.engine.scene.GameScene;
+import com.domsplace.engine.sound.SoundPlayer;
+import java.awt.Color;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import static org.lwjgl.opengl.GL11.GL_PROJECTION;
+
+/**
+ * Frame times and engine counters drawn straight onto the window after the
+ * scene has been presented, so post effects and dynamic resolution don't touch
+ * it and it never shows up in the scene's own timings (the GPUProfiler times it
+ * as OVERLAY instead).
+ *
+ * Nothing here allocates once the labels exist. The text is one StringBuilder
+ * rewritten in place every REFRESH_NANOS and the graph reads the FrameLimiter
+ * directly, so it can stay in release builds. Toggled by
+ * KeyManager.BINDING_PERFORMANCE_OVERLAY.
+ *
+ * Configured from gameinfo.txt:
+ *  performance_overlay     true to start visible (default false)
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class PerformanceOverlay extends GUI implements KeyListener {
+    //Constants
+    public static final long REFRESH_NANOS = 250000000L;//4 times a second, any faster is unreadable
+    public static final int BAR_WIDTH = 2;
+    public static final int GRAPH_WIDTH = FrameLimiter.SAMPLES * BAR_WIDTH;
+    public static final int GRAPH_HEIGHT = 48;
+    public static final int PADDING = 6;
+    public static final int FONT_SIZE = 3;
+    private static final long DEFAULT_BUDGET = 1000000000L / 60;
+
+    private static final PerformanceOverlay INSTANCE = new PerformanceOverlay();
+    public static PerformanceOverlay getInstance() {return INSTANCE;}
+
+    //Instance
+    private boolean configured = false;
+    private boolean visible;
+
+    private Label label;
+    private FrameGraph graph;
+    private final StringBuilder text = new StringBuilder(512);
+    private int lines = 0;
+    private long lastRefresh = 0;
+
+    private long bindsAfterOverlay = -1;
+    private long frameBinds = 0;
+    private final List<BufferPoolMXBean> bufferPools;
+
+    private PerformanceOverlay() {
+        super(null);
+        this.bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+        KeyManager.getInstance().addListener(this);
+    }
+
+    private void configure() {
+        if(this.configured) return;
+        this.configured = true;
+        this.visible = GameInfo.getGameInfo().getBooleanValue("performance_overlay", false);
+    }
+
+    public boolean isVisible() {this.configure(); return this.visible;}
+
+    public void setVisible(boolean visible) {
+        this.configure();
+        this.visible = visible;
+        this.bindsAfterOverlay = -1;
+        this.lastRefresh = 0;
+    }
+
+    public void toggle() {this.setVisible(!this.isVisible());}
+
+    @Override public int getWidth() {return GRAPH_WIDTH + PADDING * 2;}
+
+    @Override
+    public int getHeight() {
+        return PADDING * 3 + GRAPH_HEIGHT + (int)Math.ceil((this.lines + 0.3f) * this.getLineHeight());
+    }
+
+    private float getLineHeight() {
+        return 96 * 0.8f * FONT_SIZE * 0.055f;//FontTexture bakes at 96, see GameText
+    }
+
+    //Labels need the font, which needs the context, so wait for the first draw
+    private void build() {
+        this.label = new Label(this);
+        this.label.setFontSize(FONT_SIZE);
+        this.label.setColor(Color.WHITE);
+        this.label.setLiveText(this.text);
+        this.label.x = PADDING;
+        this.label.y = PADDING;
+        this.add(this.label);
+
+        this.graph = new FrameGraph(this);
+        this.graph.x = PADDING;
+        this.add(this.graph);
+    }
+
+    /**
+     * Draws onto whatever framebuffer is bound, in width x height window
+     * pixels. Call after presenting.
+     */
+    public void draw(int width, int height) {
+        if(!this.isVisible()) return;
+        if(!(this.label instanceof Label)) this.build();
+
+        GLStateCache cache = GLStateCache.getInstance();
+        long binds = cache.getTextureBinds();
+        this.frameBinds = this.bindsAfterOverlay < 0 ? 0 : binds - this.bindsAfterOverlay;
+
+        RenderBackend gl = RenderBackend.getActiveBackend();
+        cache.viewport(0, 0, width, height);
+        gl.matrixMode(GL_PROJECTION);
+        gl.loadIdentity();
+        gl.ortho(0, width, height, 0, -1.0, 10.0);
+
+        this.render(null, 0);
+        SpriteBatch.getInstance().flush();
+        ShaderProgram.unbindProgram();
+        this.bindsAfterOverlay = cache.getTextureBinds();
+    }
+
+    @Override
+    public void render(GameScene scene, double frame_took) {
+        long now = System.nanoTime();
+        if(this.lastRefresh == 0 || now - this.lastRefresh >= REFRESH_NANOS) {
+            this.lastRefresh = now;
+            this.refresh();
+        }
+        this.graph.y = PADDING * 2 + (int)Math.ceil((this.lines + 0.3f) * this.getLineHeight());
+
+        SpriteBatch batch = SpriteBatch.getInstance();
+        Transform2D transform = batch.getTransform();
+        transform.push();
+        transform.translate((float)this.x, (float)this.y);
+
+        //Backing panel so the text reads over anything
+        batch.setShader(ShaderProgram.getDefaultShader());
+        batch.setTexture(null);
+        batch.setColor(0f, 0f, 0f, 0.6f);
+        batch.quad(0, 0, this.getWidth(), this.getHeight(), 0, 0, 1, 1);
+
+        //Children drawn by hand, GUIObject.render() copies and sorts them
+        this.renderChild(this.label, scene, frame_took);
+        this.renderChild(this.graph, scene, frame_took);
+        transform.pop();
+    }
+
+    private void renderChild(GUIObject child, GameScene scene, double frame_took) {
+        Transform2D transform = SpriteBatch.getInstance().getTransform();
+        transform.push();
+        transform.translate((float)child.x, (float)child.y);
+        child.render(scene, frame_took);
+        transform.pop();
+    }
+
+    private void refresh() {
+        StringBuilder sb = this.text;
+        sb.setLength(0);
+        this.lines = 5;
+
+        FrameLimiter limiter = FrameLimiter.getInstance();
+        sb.append("Frame ");
+        appendMillis(sb, limiter.getLastFrameNanos());
+        sb.append("  p50 ");
+        appendMillis(sb, limiter.getFrameTimePercentile(50));
+        sb.append("  p99 ");
+        appendMillis(sb, limiter.getFrameTimePercentile(99));
+        sb.append("  ").append(Math.round(limiter.getFrameRate())).append(" fps\n");
+
+        GPUProfiler profiler = GPUProfiler.getInstance();
+        if(profiler.getSampleCount(GPUProfiler.SCENE) > 0) {
+            sb.append("GPU");
+            for(int i = 0; i < GPUProfiler.PASS_COUNT; i++) {
+                if(profiler.getSampleCount(i) == 0) continue;
+                sb.append(' ').append(GPUProfiler.getPassName(i)).append(' ');
+                appendMillis(sb, (long)profiler.getAverageNanos(i));
+            }
+            sb.append('\n');
+            this.lines++;
+        }
+
+        SpriteBatch batch = SpriteBatch.getInstance();
+        InstancedSpriteRenderer instancer = InstancedSpriteRenderer.getInstance();
+        ParticleRenderer particles = ParticleRenderer.getInstance();
+        sb.append("Draws ").append(batch.getDrawCalls() + instancer.getDrawCalls() + particles.getDrawCalls());
+        sb.append("  Binds ").append(this.frameBinds);
+        sb.append("  Verts ").append((batch.getQuadCount() + instancer.getInstanceCount() + particles.getParticleCount()) * 6).append('\n');
+
+        GameScene active = GameScene.getActiveScene();
+        sb.append("Objects ").append(active instanceof GameScene ? active.getGameObjectCount() : 0);
+        if(active instanceof GameScene) sb.append(" (").append(active.getDrawnObjects()).append(" drawn)");
+        sb.append('\n');
+        sb.append("Uploads ").append(Texture.getUploadQueueSize());
+        sb.append("  Sounds ").append(SoundPlayer.getPlayingCount()).append('\n');
+
+        Runtime runtime = Runtime.getRuntime();
+        long offHeap = 0;
+        for(int i = 0; i < this.bufferPools.size(); i++) offHeap += this.bufferPools.get(i).getMemoryUsed();
+        sb.append("Heap ").append((runtime.totalMemory() - runtime.freeMemory()) >> 20);
+        sb.append('/').append(runtime.maxMemory() >> 20).append("MB");
+        sb.append("  Direct ").append(offHeap >> 20).append("MB");
+    }
+
+    //Two decimal places without going through a double to String
+    private static void appendMillis(StringBuilder sb, long nanos) {
+        long hundredths = (nanos + 5000) / 10000;
+        sb.append(hundredths / 100).append('.');
+        long fraction = hundredths % 100;
+        if(fraction < 10) sb.append('0');
+        sb.append(fraction);
+    }
+
+    @Override
+    public void onKeyPress(KeyManager manager, int KEY) {
+        if(manager.isBound(KeyManager.BINDING_PERFORMANCE_OVERLAY, KEY)) this.toggle();
+    }
+
+    @Override public void onKeyRelease(KeyManager manager, int KEY) {}
+    @Override public void onKeyRepeat(KeyManager manager, int KEY) {}
+    @Override public void onKeyDown(KeyManager manager, int KEY) {}
+
+    /**
+     * The last FrameLimiter.SAMPLES frame times, newest on the right. The
+     * line is the frame budget, bars go yellow past it and red past 1.5x.
+     */
+    private static final class FrameGraph extends GUIObject {
+        private FrameGraph(GUI gui) {
+            super(gui);
+        }
+
+        @Override public int getWidth() {return GRAPH_WIDTH;}
+        @Override public int getHeight() {return GRAPH_HEIGHT;}
+
+        @Override
+        public void render(GameScene scene, double frame_took) {
+            FrameLimiter limiter = FrameLimiter.getInstance();
+            long budget = limiter.getTargetFps() > 0 ? 1000000000L / limiter.getTargetFps() : DEFAULT_BUDGET;
+            double scale = GRAPH_HEIGHT / (budget * 2d);//Budget sits half way up
+
+            SpriteBatch batch = SpriteBatch.getInstance();
+            batch.setShader(ShaderProgram.getDefaultShader());
+            batch.setTexture(null);
+            batch.setColor(1f, 1f, 1f, 0.1f);
+            batch.quad(0, 0, GRAPH_WIDTH, GRAPH_HEIGHT, 0, 0, 1, 1);
+
+            int count = limiter.getSampleCount();
+            for(int age = 0; age < count; age++) {
+                long nanos = limiter.getFrameNanos(age);
+                double height = Math.min(GRAPH_HEIGHT, nanos * scale);
+                if(nanos > budget * 3 / 2) {
+                    batch.setColor(0.9f, 0.2f, 0.2f, 0.9f);
+                } else if(nanos > budget) {
+                    batch.setColor(0.9f, 0.8f, 0.2f, 0.9f);
+                } else {
+                    batch.setColor(0.3f, 0.8f, 0.3f, 0.9f);
+                }
+                double x1 = GRAPH_WIDTH - age * BAR_WIDTH;
+                batch.quad(x1 - BAR_WIDTH, GRAPH_HEIGHT - height, x1, GRAPH_HEIGHT, 0, 0, 1, 1);
+            }
+
+            batch.setColor(1f, 1f, 1f, 0.5f);
+            batch.quad(0, GRAPH_HEIGHT / 2 - 0.5, GRAPH_WIDTH, GRAPH_HEIGHT / 2 + 0.5, 0, 0, 1, 1);
+        }
+    }
+}
@@ -22,6 +22,9 @@ import com.domsplace.engine.scene.GameScene;
 import java.util.logging.Level;
 
 /**
+ * Full screen sprite version of the scanlines, costs a whole extra overdraw.
+ * Prefer adding a ScanlineEffect to the PostProcessor, which is fused into
+ * the post pass for free.
  *
  * @author Dominic Masters <dominic@domsplace.com>
  */
@@ -31,6 +34,7 @@ public class Scanlines extends GameObject {
         if(Scanlines.SCANLINES_TEXTURE instanceof GameTexture) return Scanlines.SCANLINES_TEXTURE;
         try {
             Scanlines.SCANLINES_TEXTURE = GameTexture.getResourceTexture("resource/hud/scanlines.png", 1, 1);
+            Scanlines.SCANLINES_TEXTURE.packable = false;//Repeats, can't live in the atlas
             Scanlines.SCANLINES_TEXTURE.load();
             Scanlines.SCANLINES_TEXTURE.upload();
         } catch(Exception e) {
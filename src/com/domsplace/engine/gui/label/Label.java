@@ -68,6 +68,13 @@ public class Label extends GUIObject {
         return "";//Needs to return string because of overridden classes.
     }
     
+    /**
+     * Shows text as it is whenever the label renders, without copying it. For
+     * text that changes every frame, rewrite one StringBuilder in place instead
+     * of building a new String each time.
+     */
+    public void setLiveText(CharSequence text) {this.text_object.setText(text);}
+    
     public void setFont(FontTexture text) {this.text_object.setFont(text);}
     public void setFontSize(int size) {this.text_object.setFontSize(size);}
     public void setOutlined(boolean b) {this.text_object.outlined = b;}
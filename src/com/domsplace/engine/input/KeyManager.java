@@ -33,6 +33,7 @@ public final class KeyManager {
     
     public static final int BINDING_EXAMPLE = 0;//Do not remove, but do not use either.
     public static final int BINDING_ACCEPT  = 1;
+    public static final int BINDING_PERFORMANCE_OVERLAY = 2;
     
     private static final KeyManager INSTANCE = new KeyManager();
     public static KeyManager getInstance() {return KeyManager.INSTANCE;}
@@ -47,6 +48,8 @@ public final class KeyManager {
         this.addBinding(BINDING_ACCEPT, GLFW.GLFW_KEY_SPACE);
         this.addBinding(BINDING_ACCEPT, GLFW.GLFW_KEY_E);
         this.addBinding(BINDING_ACCEPT, GLFW.GLFW_MOUSE_BUTTON_LEFT);
+        
+        this.addBinding(BINDING_PERFORMANCE_OVERLAY, GLFW.GLFW_KEY_F3);
     }
     
     public List<Integer> getBindings(int BINDING) {
@@ -16,21 +16,48 @@
 package com.domsplace.engine.scene;
 
 import com.domsplace.engine.scene.gameobject.GameObject;
+import com.domsplace.engine.scene.gameobject.IParallelTickable;
+import com.domsplace.engine.scene.gameobject.StaticLayer;
 import com.domsplace.engine.gui.GUI;
 import com.domsplace.engine.display.DisplayManager;
+import com.domsplace.engine.display.GPUProfiler;
+import com.domsplace.engine.display.PresentStage;
+import com.domsplace.engine.display.Transform2D;
+import com.domsplace.engine.display.batch.InstancedSpriteRenderer;
+import com.domsplace.engine.display.batch.RenderWorkers;
+import com.domsplace.engine.display.batch.SpriteBatch;
+import com.domsplace.engine.display.texture.Texture;
 import com.domsplace.engine.disposable.IDisposable;
 import com.domsplace.engine.game.Game;
+import com.domsplace.engine.game.GameInfo;
 import java.awt.Color;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
-import static org.lwjgl.opengl.GL11.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  *
  * @author Dominic Masters <dominic@domsplace.com>
  */
 public class GameScene implements IDisposable {
+    public static final float DEFAULT_CULL_MARGIN = 32f;
+    public static final int MIN_PARALLEL_TICKS = 64;//Fewer than this just tick on the main thread
+    public static final int TICKS_PER_TASK = 32;
+    
+    public static final Comparator<GameObject> Z_ORDER = new Comparator<GameObject>(){
+        @Override
+        public int compare(GameObject t, GameObject t1) {
+            return Integer.compare(t.zindex, t1.zindex);
+        }
+    };
+    
     public static GameScene ACTIVE_SCENE = null;
     public static GameScene getActiveScene() {
         if(ACTIVE_SCENE instanceof GameScene && ACTIVE_SCENE.isDisposed()) return ACTIVE_SCENE = null;
@@ -51,7 +78,14 @@ public class GameScene implements IDisposable {
     //Instance
     private final Game game;
     private final GUI gui;
-    private final List<GameObject> objects;
+    private final List<GameObject> objects;//Always kept in z order, see ensureSorted()
+    private final List<GameObject> renderList = new ArrayList<GameObject>();
+    private final List<GameObject> tickList = new ArrayList<GameObject>();
+    private final List<GameObject> parallelList = new ArrayList<GameObject>();
+    private final ConcurrentLinkedQueue<PendingChange> pendingChanges = new ConcurrentLinkedQueue<PendingChange>();
+    private volatile boolean tickingParallel = false;
+    private boolean unsorted = false;
+    private final SpatialGrid spatial;
     private Color backgroundColor;
     public float x;
     public float y;
@@ -59,30 +93,49 @@ public class GameScene implements IDisposable {
     private String title = null;
     
     public long last_frame = -1;
+    
+    //Culling, margin is in scene units on every side of the view
+    public boolean culling;
+    public float cullMargin;
+    private int culled = 0;
+    private int drawn = 0;
+    private int lastCulled = 0;
+    private int lastDrawn = 0;
+    
+    //Render passes, more than one only when recording in parallel
+    private final List<ObjectPass> passes = new ArrayList<ObjectPass>();
+    private final GUIPass guiPass = new GUIPass();
+    private Runnable[] tasks = new Runnable[0];
 
     public GameScene(Game game) {
         this.game = game;
         this.objects = new ArrayList<GameObject>();
+        this.spatial = new SpatialGrid(GameInfo.getGameInfo().getFloatValue("spatial_cell_size", (float)SpatialGrid.DEFAULT_CELL_SIZE));
         this.gui = new GUI(this);
         this.backgroundColor = Color.WHITE;
+        this.culling = GameInfo.getGameInfo().getBooleanValue("culling", true);
+        this.cullMargin = GameInfo.getGameInfo().getFloatValue("cull_margin", DEFAULT_CULL_MARGIN);
     }
 
     public final GUI getGUI() {return this.gui;}
     public final Game getGame() {return this.game;}
     public final List<GameObject> getGameObjects() {return new ArrayList<GameObject>(this.objects);}
+    public final int getGameObjectCount() {return this.objects.size();}
+    public final SpatialGrid getSpatialIndex() {return this.spatial;}
+    public final float getInterpolationAlpha() {return this.game instanceof Game ? this.game.getInterpolationAlpha() : 1f;}
     public final int getWidth() {return DisplayManager.getInstance().getWidth();}
     public final int getHeight() {return DisplayManager.getInstance().getHeight();}
     public final Color getBackgroundColor(){return this.backgroundColor;}
     public final String getTitle() {return title;}
+    public final int getCulledObjects() {return this.lastCulled;}//Last frame
+    public final int getDrawnObjects() {return this.lastDrawn;}//Last frame
     
-    //Mouse Coordinates are in Window Space, they need to be in Scene space
+    //Mouse Coordinates are in Window Space, they need to be in Scene space (minus the letterbox)
     public final double getMouseX() {
-        double mpc = DisplayManager.getInstance().getWindow().getMouseX()/(double)DisplayManager.getInstance().getWindow().getWidth();
-        return ((double)getWidth())*mpc;
+        return PresentStage.getInstance().toSceneX(DisplayManager.getInstance().getWindow().getMouseX());
     }
     public final double getMouseY() {
-        double mpc = DisplayManager.getInstance().getWindow().getMouseY()/(double)DisplayManager.getInstance().getWindow().getHeight();
-        return ((double)getHeight())*mpc;
+        return PresentStage.getInstance().toSceneY(DisplayManager.getInstance().getWindow().getMouseY());
     }
     
     @Override public final boolean isDisposed() {return this.disposed;}
@@ -90,27 +143,128 @@ public class GameScene implements IDisposable {
     public final void setBackgroundColor(Color c) {this.backgroundColor = c;}
     public final void setTitle(String title) {this.title = title;}
 
+    /**
+     * Inserts the object after everything with the same or lower zindex, so
+     * ties keep the order they were added in. O(log n) to find the spot.
+     */
     public void addGameObject(GameObject object) {
-        this.objects.add(object);
-        sortList();
+        if(this.tickingParallel) {
+            this.pendingChanges.add(new PendingChange(object, true));
+            return;
+        }
+        this.spatial.insert(object);
+        object.savePreviousPosition();
+        if(this.unsorted) {
+            this.objects.add(object);
+            return;
+        }
+        int low = 0;
+        int high = this.objects.size();
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(this.objects.get(mid).zindex <= object.zindex) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        this.objects.add(low, object);
+    }
+    
+    /**
+     * Adds many objects at once, the list is only re-sorted once (at the
+     * latest when the next frame renders).
+     */
+    public void addGameObjects(Collection<? extends GameObject> objects) {
+        if(this.tickingParallel) {
+            for(GameObject object : objects) this.pendingChanges.add(new PendingChange(object, true));
+            return;
+        }
+        for(GameObject object : objects) {
+            this.spatial.insert(object);
+            object.savePreviousPosition();
+        }
+        this.objects.addAll(objects);
+        this.unsorted = true;
     }
 
     public void removeGameObject(GameObject object) {
+        if(this.tickingParallel) {
+            this.pendingChanges.add(new PendingChange(object, false));
+            return;
+        }
         this.objects.remove(object);
-        sortList();
+        this.spatial.remove(object);
+        if(object.getStaticLayer() instanceof StaticLayer) object.getStaticLayer().remove(object);
+    }
+    
+    //Removing keeps the order, so this is a single pass whatever the count.
+    public void removeGameObjects(Collection<? extends GameObject> objects) {
+        if(this.tickingParallel) {
+            for(GameObject object : objects) this.pendingChanges.add(new PendingChange(object, false));
+            return;
+        }
+        Set<GameObject> remove = Collections.newSetFromMap(new IdentityHashMap<GameObject,Boolean>());
+        remove.addAll(objects);
+        int kept = 0;
+        for(int i = 0; i < this.objects.size(); i++) {
+            GameObject go = this.objects.get(i);
+            if(remove.contains(go)) {
+                this.spatial.remove(go);
+                if(go.getStaticLayer() instanceof StaticLayer) go.getStaticLayer().remove(go);
+                continue;
+            }
+            this.objects.set(kept++, go);
+        }
+        for(int i = this.objects.size() - 1; i >= kept; i--) this.objects.remove(i);
+    }
+    
+    /**
+     * Flags the list as needing a sort, GameObject.setZIndex calls this. The
+     * sort happens once, at the latest when the next frame renders.
+     */
+    public void markUnsorted() {this.unsorted = true;}
+    
+    /**
+     * Spatial queries, results are appended to out (nothing is allocated if it
+     * has room) in no particular order.
+     * @return how many objects were added.
+     */
+    public int getObjectsInRect(double x, double y, double width, double height, List<GameObject> out) {
+        return this.spatial.queryRect(x, y, width, height, out);
+    }
+    
+    public int getObjectsAt(double x, double y, List<GameObject> out) {
+        return this.spatial.queryPoint(x, y, out);
+    }
+    
+    public int getObjectsInRadius(double x, double y, double radius, List<GameObject> out) {
+        return this.spatial.queryRadius(x, y, radius, out);
     }
     
     /**
      * Used to sort the internal ArrayList of GameObjects by order they should
-     * be rendered in first.
+     * be rendered in first. The sort is stable.
      */
     public void sortList() {
-        this.objects.sort(new Comparator<GameObject>(){
-            @Override
-            public int compare(GameObject t, GameObject t1) {
-                return Integer.compare(t.zindex, t1.zindex);
+        this.objects.sort(Z_ORDER);
+        this.unsorted = false;
+    }
+    
+    /**
+     * Sorts only if something is out of order. zindex is a public field so
+     * writes to it aren't always seen, a linear check catches those too.
+     */
+    public void ensureSorted() {
+        if(!this.unsorted) {
+            for(int i = 1; i < this.objects.size(); i++) {
+                if(this.objects.get(i - 1).zindex > this.objects.get(i).zindex) {
+                    this.unsorted = true;
+                    break;
+                }
             }
-        });
+        }
+        if(this.unsorted) this.sortList();
     }
     
     public void render() {
@@ -123,21 +277,280 @@ public class GameScene implements IDisposable {
         last_frame = now;
         
         //In Screen Space
-        sortList();
+        this.ensureSorted();
         
-        //In World Space
-        glPushMatrix();
-        glTranslatef(-x, -y, 0f);
+        this.renderList.addAll(this.objects);
+        this.culled = 0;
+        this.drawn = 0;
+        if(RenderWorkers.getInstance().getChunkCount(this.renderList.size()) > 1) {
+            this.renderParallel(this.renderList, diff);
+        } else {
+            //In World Space
+            Transform2D transform = SpriteBatch.getInstance().getTransform();
+            transform.push();
+            transform.translate(-x, -y);
+            this.renderObjects(this.renderList);
+            transform.pop();
+            
+            GPUProfiler.getInstance().begin(GPUProfiler.GUI);
+            this.getGUI().render(this, diff);
+        }
+        this.lastCulled = this.culled;
+        this.lastDrawn = this.drawn;
+        this.renderList.clear();
+    }
+    
+    /**
+     * One fixed step of game logic, called by Game.update() at the tick rate
+     * rather than once per rendered frame.
+     */
+    public void tick() {
+        this.ensureSorted();
+        //Snapshot, objects may add or remove others while ticking
+        this.tickList.addAll(this.objects);
+        this.tickObjects(this.tickList);
+        this.tickList.clear();
+    }
+    
+    /**
+     * True while IParallelTickables are being ticked on the fork/join pool,
+     * structural changes made then are queued until it's over.
+     */
+    public final boolean isTickingInParallel() {return this.tickingParallel;}
+    
+    protected void tickObjects(List<GameObject> objects) {
+        //Parallel safe objects go first, all at once
+        for(int i = 0; i < objects.size(); i++) {
+            if(objects.get(i) instanceof IParallelTickable) this.parallelList.add(objects.get(i));
+        }
+        boolean parallel = this.parallelList.size() >= MIN_PARALLEL_TICKS;
+        if(parallel) {
+            this.tickingParallel = true;
+            try {
+                ForkJoinPool.commonPool().invoke(new TickTask(this.parallelList, 0, this.parallelList.size()));
+            } finally {
+                this.tickingParallel = false;
+                this.parallelList.clear();
+                this.applyPendingChanges();
+            }
+        }
+        this.parallelList.clear();
         
-        for(GameObject object : this.getGameObjects()) {
-            object.tick();
-            object.render();
+        for(int i = 0; i < objects.size(); i++) {
+            GameObject object = objects.get(i);
+            if(!parallel || !(object instanceof IParallelTickable)) {
+                object.savePreviousPosition();
+                object.tick();
+            }
+            this.spatial.update(object);//Catches direct writes to x/y/width/height
         }
-        glPopMatrix();
+    }
+    
+    private void applyPendingChanges() {
+        PendingChange change;
+        while((change = this.pendingChanges.poll()) != null) {
+            if(change.add) {
+                this.addGameObject(change.object);
+            } else {
+                this.removeGameObject(change.object);
+            }
+        }
+    }
+    
+    private static final class PendingChange {
+        private final GameObject object;
+        private final boolean add;
+        
+        private PendingChange(GameObject object, boolean add) {
+            this.object = object;
+            this.add = add;
+        }
+    }
+    
+    //Splits a range of objects in half until it's small enough to tick
+    private static final class TickTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<GameObject> objects;
+        private final int from;
+        private final int to;
+        
+        private TickTask(List<GameObject> objects, int from, int to) {
+            this.objects = objects;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if(this.to - this.from <= TICKS_PER_TASK) {
+                for(int i = this.from; i < this.to; i++) {
+                    GameObject object = this.objects.get(i);
+                    object.savePreviousPosition();
+                    object.tick();
+                }
+                return;
+            }
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new TickTask(this.objects, this.from, mid), new TickTask(this.objects, mid, this.to));
+        }
+    }
+    
+    /**
+     * Whether any part of the object (plus the cull margin and its outline)
+     * lies inside the visible region of the scene, at its render position.
+     */
+    public boolean isInView(GameObject object) {
+        if(!this.culling || !object.cullable) return true;
+        double margin = this.cullMargin + (object.outlined ? object.outlineThickness : 0);
+        double x = object.getRenderX(), y = object.getRenderY();
+        double x0 = object.getBoundsLeft(x);
+        double x1 = object.getBoundsRight(x);
+        double y0 = object.getBoundsTop(y);
+        double y1 = object.getBoundsBottom(y);
+        return x1 >= this.x - margin && x0 <= this.x + this.getWidth() + margin
+            && y1 >= this.y - margin && y0 <= this.y + this.getHeight() + margin;
+    }
+    
+    /**
+     * Draws the objects in order, skipping anything out of view. Consecutive
+     * runs of visible instanceable objects on the same texture are drawn as one
+     * instanced group, everything else goes through its own render().
+     */
+    protected void renderObjects(List<GameObject> objects) {
+        ObjectPass pass = this.getPass(0);
+        pass.render(objects, 0, objects.size());
+        this.culled += pass.culled;
+        this.drawn += pass.drawn;
+    }
+    
+    /**
+     * Records the objects in chunks plus the GUI on the RenderWorkers, then
+     * replays the lists here in order. The main thread records a chunk too.
+     */
+    protected void renderParallel(List<GameObject> objects, double diff) {
+        RenderWorkers workers = RenderWorkers.getInstance();
+        workers.prepare();
+        
+        SpriteBatch batch = SpriteBatch.getInstance();
+        Transform2D transform = batch.getTransform();
+        this.guiPass.base.set(transform);
+        this.guiPass.recorder = workers.getRecorder(0);
+        this.guiPass.diff = diff;
+        transform.push();
+        transform.translate(-x, -y);
+        
+        int chunks = workers.getChunkCount(objects.size());
+        if(this.tasks.length < chunks + 1) this.tasks = new Runnable[chunks + 1];
+        this.tasks[0] = this.guiPass;
+        for(int i = 0; i < chunks; i++) {
+            ObjectPass pass = this.getPass(i + 1);
+            pass.objects = objects;
+            pass.from = objects.size() * i / chunks;
+            pass.to = objects.size() * (i + 1) / chunks;
+            pass.base.set(transform);
+            pass.recorder = workers.getRecorder(i + 1);
+            this.tasks[i + 1] = pass;
+        }
+        transform.pop();
+        workers.execute(this.tasks, chunks + 1);
+        
+        for(int i = 0; i < chunks; i++) {
+            ObjectPass pass = this.getPass(i + 1);
+            batch.submit(pass.recorder.getCommands());
+            this.culled += pass.culled;
+            this.drawn += pass.drawn;
+            pass.objects = null;
+        }
+        GPUProfiler.getInstance().begin(GPUProfiler.GUI);
+        batch.submit(this.guiPass.recorder.getCommands());
+    }
+    
+    private ObjectPass getPass(int index) {
+        while(this.passes.size() <= index) this.passes.add(new ObjectPass());
+        return this.passes.get(index);
+    }
+    
+    /**
+     * Draws a range of objects into whatever SpriteBatch.getInstance() is on
+     * the thread running it. Holds its own run and counters so several can go
+     * at once.
+     */
+    private final class ObjectPass implements Runnable {
+        private final List<GameObject> run = new ArrayList<GameObject>();
+        private Texture runTexture;
+        private int culled;
+        private int drawn;
+        
+        //Only used when recording
+        private final Transform2D base = new Transform2D();
+        private SpriteBatch recorder;
+        private List<GameObject> objects;
+        private int from;
+        private int to;
         
-        glPushMatrix();
-        this.getGUI().render(this, diff);
-        glPopMatrix();
+        @Override
+        public void run() {
+            this.recorder.startRecording(this.base);
+            try {
+                this.render(this.objects, this.from, this.to);
+            } finally {
+                this.recorder.stopRecording();
+            }
+        }
+        
+        private void render(List<GameObject> objects, int from, int to) {
+            boolean instancing = InstancedSpriteRenderer.getInstance().isAvailable();
+            this.culled = 0;
+            this.drawn = 0;
+            
+            for(int i = from; i < to; i++) {
+                GameObject object = objects.get(i);
+                if(object.getStaticLayer() instanceof StaticLayer) continue;//Its layer draws it
+                if(!isInView(object)) {
+                    this.culled++;
+                    continue;
+                }
+                this.drawn++;
+                
+                //Culled objects don't break a run, they aren't drawn either way
+                if(instancing && object.isInstanceable()) {
+                    Texture binding = object.getTexture().getBindingTexture();
+                    if(binding != this.runTexture) this.flushRun();
+                    this.runTexture = binding;
+                    this.run.add(object);
+                    continue;
+                }
+                this.flushRun();
+                object.render();
+            }
+            this.flushRun();
+        }
+        
+        private void flushRun() {
+            if(this.run.size() >= InstancedSpriteRenderer.MIN_INSTANCES) {
+                SpriteBatch.getInstance().instances(this.run, 0, this.run.size());
+            } else {
+                for(int i = 0; i < this.run.size(); i++) this.run.get(i).render();
+            }
+            this.run.clear();
+            this.runTexture = null;
+        }
+    }
+    
+    private final class GUIPass implements Runnable {
+        private final Transform2D base = new Transform2D();
+        private SpriteBatch recorder;
+        private double diff;
+        
+        @Override
+        public void run() {
+            this.recorder.startRecording(this.base);
+            try {
+                getGUI().render(GameScene.this, this.diff);
+            } finally {
+                this.recorder.stopRecording();
+            }
+        }
     }
     
     @Override
@@ -147,6 +560,7 @@ public class GameScene implements IDisposable {
         for(GameObject go : this.getGameObjects()) {
             go.dispose();
         }
+        this.spatial.clear();
         if(this.equals(GameScene.ACTIVE_SCENE)) {
             GameScene.ACTIVE_SCENE = null;
         }
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.scene;
+
+import com.domsplace.engine.scene.gameobject.GameObject;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Uniform hash grid over GameObject bounds (getBoundsLeft() and friends). Cells are only created where
+ * objects actually are, so the world can be any size.
+ *
+ * Objects are re-bucketed by update() only when their bounds change, and
+ * queries append into a list the caller keeps around so they don't allocate
+ * once things have warmed up. Objects covering more than MAX_CELLS cells live
+ * in a separate list that every query checks. Cells are freed again once
+ * they're empty. Main thread only.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public class SpatialGrid {
+    //Constants
+    public static final double DEFAULT_CELL_SIZE = 128;
+    public static final int MAX_CELLS = 64;
+    private static final int MAX_SPARE_CELLS = 64;//Emptied cells kept for reuse
+
+    private static final class Entry {
+        private final GameObject object;
+        private double x0, y0, x1, y1;
+        private int cx0, cy0, cx1, cy1;
+        private boolean oversized;
+        private int stamp;
+
+        private Entry(GameObject object) {this.object = object;}
+    }
+
+    private static final class Cell {
+        private Entry[] entries = new Entry[4];
+        private int size = 0;
+
+        private void add(Entry e) {
+            if(size == entries.length) {
+                Entry[] bigger = new Entry[size * 2];
+                System.arraycopy(entries, 0, bigger, 0, size);
+                entries = bigger;
+            }
+            entries[size++] = e;
+        }
+
+        private void remove(Entry e) {
+            for(int i = 0; i < size; i++) {
+                if(entries[i] != e) continue;
+                entries[i] = entries[--size];
+                entries[size] = null;
+                return;
+            }
+        }
+    }
+
+    //Instance
+    private final double cellSize;
+    private final IdentityHashMap<GameObject, Entry> entries = new IdentityHashMap<GameObject, Entry>();
+    private final List<Entry> oversized = new ArrayList<Entry>();
+
+    //Open addressed long -> Cell map, keys are packed cell coordinates
+    private long[] keys = new long[256];
+    private Cell[] cells = new Cell[256];
+    private int cellCount = 0;
+    private final List<Cell> spare = new ArrayList<Cell>();
+
+    private int stamp = 0;
+
+    public SpatialGrid() {this(DEFAULT_CELL_SIZE);}
+
+    public SpatialGrid(double cellSize) {
+        if(cellSize <= 0) throw new IllegalArgumentException("Cell size must be positive.");
+        this.cellSize = cellSize;
+    }
+
+    public double getCellSize() {return this.cellSize;}
+    public int size() {return this.entries.size();}
+    public boolean contains(GameObject object) {return this.entries.containsKey(object);}
+
+    public void insert(GameObject object) {
+        if(this.entries.containsKey(object)) {
+            this.update(object);
+            return;
+        }
+        Entry e = new Entry(object);
+        this.entries.put(object, e);
+        this.readBounds(e);
+        this.link(e);
+    }
+
+    public void remove(GameObject object) {
+        Entry e = this.entries.remove(object);
+        if(e == null) return;
+        this.unlink(e);
+    }
+
+    public void clear() {
+        this.entries.clear();
+        this.oversized.clear();
+        this.keys = new long[256];
+        this.cells = new Cell[256];
+        this.cellCount = 0;
+        this.spare.clear();
+    }
+
+    /**
+     * Re-buckets the object if its bounds changed since it was last indexed,
+     * cheap enough to call every frame. Unknown objects are ignored.
+     */
+    public void update(GameObject object) {
+        Entry e = this.entries.get(object);
+        if(e == null) return;
+        if(e.x0 == left(object) && e.y0 == top(object) && e.x1 == right(object) && e.y1 == bottom(object)) return;
+
+        int cx0 = e.cx0, cy0 = e.cy0, cx1 = e.cx1, cy1 = e.cy1;
+        boolean wasOversized = e.oversized;
+        this.readBounds(e);
+        if(!wasOversized && !e.oversized && cx0 == e.cx0 && cy0 == e.cy0 && cx1 == e.cx1 && cy1 == e.cy1) return;
+
+        //Unlink from the old cells using the old range
+        int nx0 = e.cx0, ny0 = e.cy0, nx1 = e.cx1, ny1 = e.cy1;
+        boolean nowOversized = e.oversized;
+        e.cx0 = cx0; e.cy0 = cy0; e.cx1 = cx1; e.cy1 = cy1; e.oversized = wasOversized;
+        this.unlink(e);
+        e.cx0 = nx0; e.cy0 = ny0; e.cx1 = nx1; e.cy1 = ny1; e.oversized = nowOversized;
+        this.link(e);
+    }
+
+    /**
+     * Appends every object whose bounds overlap the rect to out.
+     * @return how many objects were added.
+     */
+    public int queryRect(double x, double y, double width, double height, List<GameObject> out) {
+        double x0 = Math.min(x, x + width), x1 = Math.max(x, x + width);
+        double y0 = Math.min(y, y + height), y1 = Math.max(y, y + height);
+        int stamp = ++this.stamp;
+        int found = 0;
+
+        int cx0 = cell(x0), cy0 = cell(y0), cx1 = cell(x1), cy1 = cell(y1);
+        for(int cx = cx0; cx <= cx1; cx++) {
+            for(int cy = cy0; cy <= cy1; cy++) {
+                Cell c = this.getCell(cx, cy, false);
+                if(c == null) continue;
+                for(int i = 0; i < c.size; i++) {
+                    Entry e = c.entries[i];
+                    if(e.stamp == stamp) continue;
+                    e.stamp = stamp;
+                    if(e.x1 < x0 || e.x0 > x1 || e.y1 < y0 || e.y0 > y1) continue;
+                    out.add(e.object);
+                    found++;
+                }
+            }
+        }
+
+        for(int i = 0; i < this.oversized.size(); i++) {
+            Entry e = this.oversized.get(i);
+            if(e.x1 < x0 || e.x0 > x1 || e.y1 < y0 || e.y0 > y1) continue;
+            out.add(e.object);
+            found++;
+        }
+        return found;
+    }
+
+    public int queryPoint(double x, double y, List<GameObject> out) {
+        return this.queryRect(x, y, 0, 0, out);
+    }
+
+    /**
+     * Appends every object whose bounds touch the circle to out.
+     * @return how many objects were added.
+     */
+    public int queryRadius(double x, double y, double radius, List<GameObject> out) {
+        int start = out.size();
+        this.queryRect(x - radius, y - radius, radius * 2, radius * 2, out);
+
+        //Drop the ones in the corners of the square but outside the circle
+        double r2 = radius * radius;
+        int kept = start;
+        for(int i = start; i < out.size(); i++) {
+            GameObject go = out.get(i);
+            double dx = x - Math.max(left(go), Math.min(x, right(go)));
+            double dy = y - Math.max(top(go), Math.min(y, bottom(go)));
+            if(dx * dx + dy * dy > r2) continue;
+            out.set(kept++, go);
+        }
+        for(int i = out.size() - 1; i >= kept; i--) out.remove(i);
+        return kept - start;
+    }
+
+    private static double left(GameObject go) {return go.getBoundsLeft(go.x);}
+    private static double right(GameObject go) {return go.getBoundsRight(go.x);}
+    private static double top(GameObject go) {return go.getBoundsTop(go.y);}
+    private static double bottom(GameObject go) {return go.getBoundsBottom(go.y);}
+
+    private int cell(double v) {return (int)Math.floor(v / cellSize);}
+
+    private void readBounds(Entry e) {
+        GameObject go = e.object;
+        e.x0 = left(go);
+        e.y0 = top(go);
+        e.x1 = right(go);
+        e.y1 = bottom(go);
+        e.cx0 = cell(e.x0);
+        e.cy0 = cell(e.y0);
+        e.cx1 = cell(e.x1);
+        e.cy1 = cell(e.y1);
+        long span = ((long)e.cx1 - e.cx0 + 1) * ((long)e.cy1 - e.cy0 + 1);
+        e.oversized = span > MAX_CELLS;
+    }
+
+    private void link(Entry e) {
+        if(e.oversized) {
+            this.oversized.add(e);
+            return;
+        }
+        for(int cx = e.cx0; cx <= e.cx1; cx++) {
+            for(int cy = e.cy0; cy <= e.cy1; cy++) {
+                this.getCell(cx, cy, true).add(e);
+            }
+        }
+    }
+
+    private void unlink(Entry e) {
+        if(e.oversized) {
+            this.oversized.remove(e);
+            return;
+        }
+        for(int cx = e.cx0; cx <= e.cx1; cx++) {
+            for(int cy = e.cy0; cy <= e.cy1; cy++) {
+                int i = this.findSlot(cx, cy);
+                if(i == -1) continue;
+                Cell c = this.cells[i];
+                c.remove(e);
+                if(c.size == 0) this.freeSlot(i);
+            }
+        }
+    }
+
+    public int getCellCount() {return this.cellCount;}//Cells holding something
+
+    //Where the cell lives in the table, -1 if it doesn't exist
+    private int findSlot(int cx, int cy) {
+        long key = ((long)cx << 32) | (cy & 0xFFFFFFFFL);
+        int mask = this.keys.length - 1;
+        int i = hash(key) & mask;
+        while(this.cells[i] != null) {
+            if(this.keys[i] == key) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private Cell getCell(int cx, int cy, boolean create) {
+        long key = ((long)cx << 32) | (cy & 0xFFFFFFFFL);
+        int mask = this.keys.length - 1;
+        int i = hash(key) & mask;
+        while(this.cells[i] != null) {
+            if(this.keys[i] == key) return this.cells[i];
+            i = (i + 1) & mask;
+        }
+        if(!create) return null;
+
+        Cell c = this.spare.isEmpty() ? new Cell() : this.spare.remove(this.spare.size() - 1);
+        this.keys[i] = key;
+        this.cells[i] = c;
+        if(++this.cellCount * 2 > this.keys.length) this.grow();
+        return c;
+    }
+
+    /**
+     * Drops an emptied cell so things moving through the world don't leave a
+     * trail of dead cells behind. Backward shift deletion: later entries of
+     * the same probe run move up into the gap, so lookups never need
+     * tombstones and the table stays as full as the live cells make it.
+     */
+    private void freeSlot(int i) {
+        if(this.spare.size() < MAX_SPARE_CELLS) this.spare.add(this.cells[i]);
+        this.cells[i] = null;
+        this.cellCount--;
+        int mask = this.keys.length - 1;
+        for(int j = (i + 1) & mask; this.cells[j] != null; j = (j + 1) & mask) {
+            int home = hash(this.keys[j]) & mask;
+            if(((j - home) & mask) < ((j - i) & mask)) continue;//Gap is before its home
+            this.keys[i] = this.keys[j];
+            this.cells[i] = this.cells[j];
+            this.cells[j] = null;
+            i = j;
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = this.keys;
+        Cell[] oldCells = this.cells;
+        this.keys = new long[oldKeys.length * 2];
+        this.cells = new Cell[oldCells.length * 2];
+        int mask = this.keys.length - 1;
+        for(int j = 0; j < oldKeys.length; j++) {
+            if(oldCells[j] == null) continue;
+            int i = hash(oldKeys[j]) & mask;
+            while(this.cells[i] != null) i = (i + 1) & mask;
+            this.keys[i] = oldKeys[j];
+            this.cells[i] = oldCells[j];
+        }
+    }
+
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int)(key ^ (key >>> 32));
+    }
+}
@@ -15,14 +15,16 @@
  */
 package com.domsplace.engine.scene.gameobject;
 
+import com.domsplace.engine.display.Transform2D;
+import com.domsplace.engine.display.batch.SpriteBatch;
 import com.domsplace.engine.display.shader.ShaderProgram;
 import com.domsplace.engine.display.texture.GameTexture;
 import com.domsplace.engine.display.texture.Texture;
 import com.domsplace.engine.disposable.IDisposable;
 import com.domsplace.engine.scene.GameScene;
-import com.domsplace.engine.utilities.ColorUtilities;
 import java.awt.Color;
-import static org.lwjgl.opengl.GL11.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -32,6 +34,8 @@ public class GameObject implements IDisposable {
 
     public static final double TRIANGLE_WIDTH = 1.0;
     public static final double TRIANGLE_HEIGHT = 1.0;
+    
+    private static final Map<Class<? extends GameObject>, Boolean> RENDER_OVERRIDES = new ConcurrentHashMap<Class<? extends GameObject>, Boolean>();
 
     //Instance
     private final GameScene scene;
@@ -58,29 +62,93 @@ public class GameObject implements IDisposable {
     public boolean outlined = false;
     public int outlineThickness = 1;
     public Color outlineColor = Color.WHITE;
+    
+    //Set false for objects that draw outside their own bounds (e.g. children)
+    public boolean cullable = true;
+    
+    //Draw between the previous and current tick position, smooths movement
+    //when the render rate doesn't match the tick rate
+    public boolean interpolated = false;
+    private double previousX;
+    private double previousY;
+    
+    //Set while a StaticLayer draws this object instead of the scene
+    private StaticLayer staticLayer;
+    
+    private final double[] renderCoordinates = new double[4];
 
     public GameObject(final GameScene scene) {
         this.scene = scene;
     }
 
     public final GameScene getScene() {return this.scene;}
+    public final StaticLayer getStaticLayer() {return this.staticLayer;}
+    final void setStaticLayer(StaticLayer layer) {this.staticLayer = layer;}
     public final Texture getTexture() {return this.texture;}
     public double getX() {return this.x;}
     public double getY() {return this.y;}
     
     @Override public final boolean isDisposed() {return this.disposed;}
 
-    public void setX(double x) {this.x = x;}
-    public void setY(double y) {this.y = y;}
+    public int getZIndex() {return this.zindex;}
+    
+    public double getRenderX() {
+        if(!this.interpolated || !(this.scene instanceof GameScene)) return this.x;
+        return this.previousX + (this.x - this.previousX) * this.scene.getInterpolationAlpha();
+    }
+    
+    public double getRenderY() {
+        if(!this.interpolated || !(this.scene instanceof GameScene)) return this.y;
+        return this.previousY + (this.y - this.previousY) * this.scene.getInterpolationAlpha();
+    }
+    
+    /**
+     * Called before every tick, call it yourself after teleporting an
+     * interpolated object so it doesn't slide to its new spot.
+     */
+    public void savePreviousPosition() {
+        this.previousX = this.x;
+        this.previousY = this.y;
+    }
+    public double getWidth() {return this.width;}
+    public double getHeight() {return this.height;}
+    
+    //Edges of what's drawn with the object at x, y in scene space, for culling
+    //and the spatial index. Override when that isn't x, y, width, height.
+    public double getBoundsLeft(double x) {return Math.min(x, x + this.width);}
+    public double getBoundsRight(double x) {return Math.max(x, x + this.width);}
+    public double getBoundsTop(double y) {return Math.min(y, y + this.height);}
+    public double getBoundsBottom(double y) {return Math.max(y, y + this.height);}
+    
+    //Setters keep the scene's spatial index current straight away, writing the
+    //fields directly is fine too but only gets picked up on the next frame.
+    public void setX(double x) {this.x = x; this.boundsChanged();}
+    public void setY(double y) {this.y = y; this.boundsChanged();}
+    public void setPosition(double x, double y) {this.x = x; this.y = y; this.boundsChanged();}
+    public void setWidth(double width) {this.width = width; this.boundsChanged();}
+    public void setHeight(double height) {this.height = height; this.boundsChanged();}
+    public void setSize(double width, double height) {this.width = width; this.height = height; this.boundsChanged();}
+    
+    public void setZIndex(int zindex) {
+        if(zindex == this.zindex) return;
+        this.zindex = zindex;
+        if(this.staticLayer instanceof StaticLayer) this.staticLayer.invalidate();
+        if(this.scene instanceof GameScene) this.scene.markUnsorted();
+    }
+    
+    private void boundsChanged() {
+        if(this.staticLayer instanceof StaticLayer) this.staticLayer.invalidate();
+        //The grid isn't thread safe, parallel ticks get picked up after the tick
+        if(!(this.scene instanceof GameScene) || this.scene.isTickingInParallel()) return;
+        this.scene.getSpatialIndex().update(this);
+    }
     
     public void resizeToTexture() {
         if(getTexture() instanceof GameTexture) {
             GameTexture gt = (GameTexture)getTexture();
-            this.width = gt.getAdjustedWidth();
-            this.height = gt.getAdjustedHeight();
+            this.setSize(gt.getAdjustedWidth(), gt.getAdjustedHeight());
         } else {
-            this.width = this.getTexture().getWidth();
-            this.height = this.getTexture().getHeight();
+            this.setSize(this.getTexture().getWidth(), this.getTexture().getHeight());
         }
     }
 
@@ -95,61 +163,88 @@ public class GameObject implements IDisposable {
     }
 
     //Changes the TextureCoordinates to repeat properly based on the object dimensions
+    //Repeating only works if the texture isn't atlased, see GameTexture.packable
     public void adjustTextureCoordinatesToDimensions() {this.adjustTextureCoordinatesToDimensions(true, true);}
     
     public void adjustTextureCoordinatesToDimensions(boolean doWidth, boolean doHeight) {
         //e.g. if you have a texture that's 16x16 but the object is 32x32, then repeat it 2x2 times
+        if(this.getTexture() instanceof GameTexture) ((GameTexture)this.getTexture()).isRepeatable();//Warns if it can't
         if(doWidth) this.ss = (double) this.width / (double) this.getTexture().getWidth();
         if(doHeight) this.ts = (double) this.height / (double) this.getTexture().getHeight();
     }
     
-    private void setTextureToShader() {
-        if (this.texture instanceof Texture) {
-            this.texture.bind();
-            ShaderProgram.getBoundShader().setVariable("isTextured", true);
-        } else {
-            ShaderProgram.getBoundShader().setVariable("isTextured", false);
-        }
-    }
-
     public void render() {
-        glPushMatrix();
-        //glTranslated(Math.round(x), Math.round(y), 0);
-        glTranslated(x, y, 0);
+        SpriteBatch batch = SpriteBatch.getInstance();
+        Transform2D transform = batch.getTransform();
+        transform.push();
+        transform.translate((float)this.getRenderX(), (float)this.getRenderY());
         
         //Render Outlines
-        if(this.outlined) {
-            for(int x = -this.outlineThickness; x <= this.outlineThickness; x++) {
-                for(int y = -this.outlineThickness; y <= this.outlineThickness; y++) {
-                    if(x == 0 && y == 0) continue;
-                    glPushMatrix();
-                    glTranslated(this.x + x, this.y + y, 0);
-                    ShaderProgram.getOutlineShader().bind();
-                    this.setTextureToShader();
-                    float[] colors = ColorUtilities.getColorAdjust(this.outlineColor);
-                    glColor4f(colors[0], colors[1], colors[2], alpha);
-                    this.renderMesh();
-                    glPopMatrix();
-                }
-            }
-        }
+        if(this.outlined && this.outlineThickness > 0) this.renderOutline();
         
         //Render
-        ShaderProgram.getDefaultShader().bind();
-        this.setTextureToShader();
-        float[] colors = ColorUtilities.getColorAdjust(this.color);
-        glColor4f(colors[0], colors[1], colors[2], alpha);
+        batch.setShader(ShaderProgram.getDefaultShader());
+        batch.setTexture(this.texture);
+        batch.setColor(this.color.getRed() / 255f, this.color.getGreen() / 255f, this.color.getBlue() / 255f, alpha);
         this.renderMesh();
         
         //Render Children
         this.renderChildren();
         
-        glPopMatrix();
+        transform.pop();
     }
     
     public void renderChildren(){}
+    
+    /**
+     * Draws the outline behind the mesh. Textured meshes go through the batch's
+     * single pass outline shader so thickness doesn't cost extra draws, plain
+     * coloured quads are just drawn bigger.
+     */
+    public void renderOutline() {
+        SpriteBatch batch = SpriteBatch.getInstance();
+        batch.setColor(this.outlineColor.getRed() / 255f, this.outlineColor.getGreen() / 255f, this.outlineColor.getBlue() / 255f, alpha);
+        
+        if(!(this.texture instanceof Texture)) {
+            batch.setShader(ShaderProgram.getDefaultShader());
+            batch.setTexture(null);
+            int t = this.outlineThickness;
+            batch.quad(-t, -t, width + t, height + t, 0, 0, 1, 1);
+            return;
+        }
+        
+        batch.setTexture(this.texture);
+        if(batch.setOutline(this.outlineThickness)) {
+            this.renderMesh();
+            batch.setOutline(0);
+            return;
+        }
+        
+        //No outline shader (GLSL 1.20 missing), draw the mesh all around itself
+        Transform2D transform = batch.getTransform();
+        batch.setShader(ShaderProgram.getOutlineShader());
+        for(int x = -this.outlineThickness; x <= this.outlineThickness; x++) {
+            for(int y = -this.outlineThickness; y <= this.outlineThickness; y++) {
+                if(x == 0 && y == 0) continue;
+                transform.push();
+                transform.translate(x, y);
+                this.renderMesh();
+                transform.pop();
+            }
+        }
+    }
 
     public void renderMesh() {
+        double[] c = this.getRenderCoordinates();
+        SpriteBatch.getInstance().quad(0, 0, width, height, c[0], c[1], c[2], c[3]);
+    }
+    
+    /**
+     * Texture coordinates as they should be sent to GL, after flipping and
+     * mapping into the atlas. The returned array is reused between calls.
+     * @return {s, t, ss, ts}
+     */
+    public final double[] getRenderCoordinates() {
         double s = this.s;
         double ss = this.ss;
         double t = this.t;
@@ -162,32 +257,42 @@ public class GameObject implements IDisposable {
             t = this.t;
             ts = this.ts;
         }
-
-        //First Triangle
-        glBegin(GL_TRIANGLES);
-        glTexCoord2d(s, t);
-        glVertex2d(0, 0);
-
-        glTexCoord2d(ss, t);
-        glVertex2d(width, 0);
-
-        glTexCoord2d(ss, ts);
-        glVertex2d(width, height);
-
-        glEnd();
-
-        //Second Triangle
-        glBegin(GL_TRIANGLES);
-        glTexCoord2d(s, t);
-        glVertex2d(0, 0);
-
-        glTexCoord2d(ss, ts);
-        glVertex2d(width, height);
-
-        glTexCoord2d(s, ts);
-        glVertex2d(0, height);
-        glEnd();
-
+        if (this.texture instanceof Texture) {
+            //Atlased textures live in a sub-region of a bigger page
+            s = this.texture.mapS(s);
+            ss = this.texture.mapS(ss);
+            t = this.texture.mapT(t);
+            ts = this.texture.mapT(ts);
+        }
+        
+        this.renderCoordinates[0] = s;
+        this.renderCoordinates[1] = t;
+        this.renderCoordinates[2] = ss;
+        this.renderCoordinates[3] = ts;
+        return this.renderCoordinates;
+    }
+    
+    /**
+     * Whether this object is a plain textured quad that the scene is allowed to
+     * draw through the instanced path instead of calling render().
+     */
+    public boolean isInstanceable() {
+        if(this.outlined || !(this.texture instanceof Texture)) return false;
+        return !overridesRendering(this.getClass());
+    }
+    
+    private static boolean overridesRendering(Class<? extends GameObject> c) {
+        Boolean overrides = RENDER_OVERRIDES.get(c);
+        if(overrides instanceof Boolean) return overrides;
+        try {
+            overrides = c.getMethod("render").getDeclaringClass() != GameObject.class
+                || c.getMethod("renderMesh").getDeclaringClass() != GameObject.class
+                || c.getMethod("renderChildren").getDeclaringClass() != GameObject.class;
+        } catch(NoSuchMethodException e) {
+            overrides = true;
+        }
+        RENDER_OVERRIDES.put(c, overrides);
+        return overrides;
     }
     
     @Override
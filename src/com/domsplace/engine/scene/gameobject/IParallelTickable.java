@@ -0,0 +1,30 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.scene.gameobject;
+
+/**
+ * Marks a GameObject whose tick() only touches its own state (or state that
+ * is already thread safe), so the scene may tick it on a worker thread at the
+ * same time as other IParallelTickables. These are ticked before the rest of
+ * the scene each step.
+ *
+ * Adding or removing scene objects from such a tick is fine, the change is
+ * applied on the main thread once the parallel ticks have finished.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public interface IParallelTickable {
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.scene.gameobject;
+
+import com.domsplace.engine.display.batch.SpriteBatch;
+import com.domsplace.engine.display.batch.StaticBatch;
+import com.domsplace.engine.scene.GameScene;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A layer of objects that don't move (background props, walls, decoration)
+ * baked into a StaticBatch, so drawing all of them costs one draw per texture
+ * and no vertex uploads. Add the layer to the scene like any other object, it
+ * draws its members at its own zindex (members keep their zindex order within
+ * the layer).
+ *
+ * Members can be in the scene too, for ticking and spatial queries, the scene
+ * just won't draw them itself. The layer re-bakes the next time it's drawn
+ * after a member is added, removed, disposed, or moved/resized/re-ordered
+ * through its setters. Anything else (writing fields directly, changing the
+ * texture or colour) needs an invalidate().
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public class StaticLayer extends GameObject {
+    private final List<GameObject> members = new ArrayList<GameObject>();
+    private final StaticBatch batch = new StaticBatch();
+    private volatile boolean dirty = true;
+
+    public StaticLayer(GameScene scene) {
+        super(scene);
+        this.cullable = false;//No bounds until the first bake
+    }
+
+    public final StaticBatch getBatch() {return this.batch;}
+    public final List<GameObject> getObjects() {return new ArrayList<GameObject>(this.members);}
+    public final int getObjectCount() {return this.members.size();}
+    public final boolean isBaked() {return !this.dirty;}
+    public boolean contains(GameObject object) {return object.getStaticLayer() == this;}
+
+    public void add(GameObject object) {
+        if(object instanceof StaticLayer) throw new IllegalArgumentException("Static layers can't be nested.");
+        if(object.getStaticLayer() == this) return;
+        if(object.getStaticLayer() instanceof StaticLayer) object.getStaticLayer().remove(object);
+        this.members.add(object);
+        object.setStaticLayer(this);
+        this.invalidate();
+    }
+
+    public void remove(GameObject object) {
+        if(object.getStaticLayer() != this) return;
+        this.members.remove(object);
+        object.setStaticLayer(null);
+        this.invalidate();
+    }
+
+    /**
+     * Re-bakes before the next draw. Bounds aren't known until then, so the
+     * layer isn't culled in the meantime.
+     */
+    public void invalidate() {
+        this.dirty = true;
+        this.cullable = false;
+    }
+
+    private void bake() {
+        this.dirty = false;//First, so an invalidate() while baking isn't lost
+        this.members.sort(GameScene.Z_ORDER);
+
+        double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE;
+        double x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+        this.batch.begin();
+        try {
+            for(int i = 0; i < this.members.size(); i++) {
+                GameObject object = this.members.get(i);
+                object.render();
+                //Same drawn bounds the scene culls by, after render() so text is measured
+                double margin = object.outlined ? object.outlineThickness : 0;
+                x0 = Math.min(x0, object.getBoundsLeft(object.x) - margin);
+                y0 = Math.min(y0, object.getBoundsTop(object.y) - margin);
+                x1 = Math.max(x1, object.getBoundsRight(object.x) + margin);
+                y1 = Math.max(y1, object.getBoundsBottom(object.y) + margin);
+            }
+        } finally {
+            this.batch.end();
+        }
+
+        //Written straight to the fields, this may be a render worker and the
+        //spatial index isn't thread safe. The next tick picks them up.
+        if(this.members.isEmpty()) return;
+        if(Double.isInfinite(x1 - x0) || Double.isInfinite(y1 - y0)) return;//A member without known bounds, never cull
+        this.x = x0;
+        this.y = y0;
+        this.width = x1 - x0;
+        this.height = y1 - y0;
+        this.cullable = true;
+    }
+
+    @Override
+    public void render() {
+        if(this.dirty) this.bake();
+        SpriteBatch.getInstance().drawStatic(this.batch);
+    }
+
+    @Override
+    public void dispose() {
+        for(int i = 0; i < this.members.size(); i++) this.members.get(i).setStaticLayer(null);
+        this.members.clear();
+        this.batch.dispose();
+        super.dispose();
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.scene.gameobject;
+
+import com.domsplace.engine.display.Transform2D;
+import com.domsplace.engine.display.batch.SpriteBatch;
+import com.domsplace.engine.display.batch.StaticBatch;
+import com.domsplace.engine.display.shader.ShaderProgram;
+import com.domsplace.engine.display.texture.GameTexture;
+import com.domsplace.engine.scene.GameScene;
+import java.awt.Color;
+import java.util.Arrays;
+
+/**
+ * A grid of tiles from one GameTexture tileset as a single scene object,
+ * instead of a GameObject per tile. Tiles are stored as indices into the
+ * tileset (column + row * tileset columns, the same cells
+ * adjustTextureCoordinatesTo() picks) in a short per tile, EMPTY for none.
+ *
+ * The map is split into chunkSize x chunkSize chunks, each baked into its own
+ * StaticBatch the first time it's drawn and again only after one of its tiles
+ * changes. Only chunks touching the view (plus the scene's cull margin) are
+ * drawn, each in a single draw. Chunks are baked relative to the map, so
+ * moving it doesn't re-bake anything.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public class TileMap extends GameObject {
+    //Constants
+    public static final int EMPTY = -1;
+    public static final int DEFAULT_CHUNK_SIZE = 16;
+
+    //Instance
+    private final GameTexture tileset;
+    private final int columns;
+    private final int rows;
+    private final double tileWidth;
+    private final double tileHeight;
+    private final short[] tiles;
+
+    private final int chunkSize;
+    private final int chunkColumns;
+    private final int chunkRows;
+    private final StaticBatch[] chunks;
+    private final boolean[] dirty;
+
+    private float[] uvs;//s, t, ss, ts per tileset cell, mapped into the atlas
+    private int drawnChunks = 0;
+
+    public TileMap(GameScene scene, GameTexture tileset, int columns, int rows, double tileWidth, double tileHeight) {
+        this(scene, tileset, columns, rows, tileWidth, tileHeight, DEFAULT_CHUNK_SIZE);
+    }
+
+    public TileMap(GameScene scene, GameTexture tileset, int columns, int rows, double tileWidth, double tileHeight, int chunkSize) {
+        super(scene);
+        if(columns <= 0 || rows <= 0) throw new IllegalArgumentException("A tile map needs at least one tile.");
+        if(chunkSize <= 0) throw new IllegalArgumentException("Chunk size must be positive.");
+        this.tileset = tileset;
+        this.texture = tileset;
+        this.columns = columns;
+        this.rows = rows;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.tiles = new short[columns * rows];
+        Arrays.fill(this.tiles, (short)EMPTY);
+
+        this.chunkSize = chunkSize;
+        this.chunkColumns = (columns + chunkSize - 1) / chunkSize;
+        this.chunkRows = (rows + chunkSize - 1) / chunkSize;
+        this.chunks = new StaticBatch[this.chunkColumns * this.chunkRows];
+        this.dirty = new boolean[this.chunks.length];
+        Arrays.fill(this.dirty, true);
+
+        this.width = columns * tileWidth;
+        this.height = rows * tileHeight;
+        this.color = Color.WHITE;
+    }
+
+    public final GameTexture getTileset() {return this.tileset;}
+    public final int getColumns() {return this.columns;}
+    public final int getRows() {return this.rows;}
+    public final double getTileWidth() {return this.tileWidth;}
+    public final double getTileHeight() {return this.tileHeight;}
+    public final int getChunkSize() {return this.chunkSize;}
+    public final int getChunkCount() {return this.chunks.length;}
+    public final int getDrawnChunks() {return this.drawnChunks;}//Last frame
+
+    //The tile index for a tileset cell
+    public int getTileIndex(int tilesetColumn, int tilesetRow) {
+        return tilesetColumn + tilesetRow * (int)this.tileset.getColumns();
+    }
+
+    public int getTile(int column, int row) {
+        this.checkBounds(column, row);
+        return this.tiles[column + row * this.columns];
+    }
+
+    //EMPTY if the point isn't on the map
+    public int getTileAt(double x, double y) {
+        int column = (int)Math.floor((x - this.x) / this.tileWidth);
+        int row = (int)Math.floor((y - this.y) / this.tileHeight);
+        if(column < 0 || row < 0 || column >= this.columns || row >= this.rows) return EMPTY;
+        return this.tiles[column + row * this.columns];
+    }
+
+    public void setTile(int column, int row, int tile) {
+        this.checkBounds(column, row);
+        if(tile < EMPTY || tile > Short.MAX_VALUE) throw new IllegalArgumentException("Invalid tile " + tile);
+        int i = column + row * this.columns;
+        if(this.tiles[i] == tile) return;
+        this.tiles[i] = (short)tile;
+        this.dirty[(column / this.chunkSize) + (row / this.chunkSize) * this.chunkColumns] = true;
+    }
+
+    public void setTile(int column, int row, int tilesetColumn, int tilesetRow) {
+        this.setTile(column, row, this.getTileIndex(tilesetColumn, tilesetRow));
+    }
+
+    public void fill(int tile) {
+        for(int row = 0; row < this.rows; row++) {
+            for(int column = 0; column < this.columns; column++) this.setTile(column, row, tile);
+        }
+    }
+
+    /**
+     * Re-bakes every chunk, for changes that aren't tile edits (the colour,
+     * alpha, or the tileset's columns/rows).
+     */
+    public void invalidate() {
+        this.uvs = null;
+        Arrays.fill(this.dirty, true);
+    }
+
+    private void checkBounds(int column, int row) {
+        if(column < 0 || row < 0 || column >= this.columns || row >= this.rows) {
+            throw new IndexOutOfBoundsException("Tile " + column + "," + row + " is outside the " + this.columns + "x" + this.rows + " map.");
+        }
+    }
+
+    //Built once the tileset has a size (and atlas region) to work from
+    private void buildCoordinates() {
+        int cells = (int)this.tileset.getColumns() * (int)this.tileset.getRows();
+        this.uvs = new float[cells * 4];
+        for(int i = 0; i < cells; i++) {
+            double[] c = this.tileset.getCoordinates(i % (int)this.tileset.getColumns(), i / (int)this.tileset.getColumns());
+            this.uvs[i * 4] = (float)this.tileset.mapS(c[0]);
+            this.uvs[i * 4 + 1] = (float)this.tileset.mapT(c[1]);
+            this.uvs[i * 4 + 2] = (float)this.tileset.mapS(c[2]);
+            this.uvs[i * 4 + 3] = (float)this.tileset.mapT(c[3]);
+        }
+    }
+
+    private void bakeChunk(int chunkX, int chunkY) {
+        int index = chunkX + chunkY * this.chunkColumns;
+        this.dirty[index] = false;
+        if(!(this.chunks[index] instanceof StaticBatch)) this.chunks[index] = new StaticBatch();
+        StaticBatch chunk = this.chunks[index];
+
+        int column0 = chunkX * this.chunkSize;
+        int row0 = chunkY * this.chunkSize;
+        int column1 = Math.min(this.columns, column0 + this.chunkSize);
+        int row1 = Math.min(this.rows, row0 + this.chunkSize);
+        int cells = this.uvs.length / 4;
+
+        chunk.begin();
+        try {
+            SpriteBatch batch = SpriteBatch.getInstance();
+            batch.setShader(ShaderProgram.getDefaultShader());
+            batch.setTexture(this.tileset);
+            batch.setColor(this.color.getRed() / 255f, this.color.getGreen() / 255f, this.color.getBlue() / 255f, this.alpha);
+            for(int row = row0; row < row1; row++) {
+                for(int column = column0; column < column1; column++) {
+                    int tile = this.tiles[column + row * this.columns];
+                    if(tile < 0 || tile >= cells) continue;
+                    double x = column * this.tileWidth;
+                    double y = row * this.tileHeight;
+                    float[] uv = this.uvs;
+                    batch.quad(x, y, x + this.tileWidth, y + this.tileHeight, uv[tile * 4], uv[tile * 4 + 1], uv[tile * 4 + 2], uv[tile * 4 + 3]);
+                }
+            }
+        } finally {
+            chunk.end();
+        }
+    }
+
+    @Override
+    public void render() {
+        this.drawnChunks = 0;
+        if(!this.tileset.isUploaded()) return;//No size to work UVs out from yet
+        if(this.uvs == null) this.buildCoordinates();
+
+        //Chunks touching the view, in map space
+        int chunkX0 = 0, chunkY0 = 0, chunkX1 = this.chunkColumns - 1, chunkY1 = this.chunkRows - 1;
+        GameScene scene = this.getScene();
+        if(scene instanceof GameScene && scene.culling && this.cullable) {
+            double margin = scene.cullMargin;
+            double chunkWidth = this.chunkSize * this.tileWidth;
+            double chunkHeight = this.chunkSize * this.tileHeight;
+            chunkX0 = Math.max(chunkX0, (int)Math.floor((scene.x - margin - this.x) / chunkWidth));
+            chunkY0 = Math.max(chunkY0, (int)Math.floor((scene.y - margin - this.y) / chunkHeight));
+            chunkX1 = Math.min(chunkX1, (int)Math.floor((scene.x + scene.getWidth() + margin - this.x) / chunkWidth));
+            chunkY1 = Math.min(chunkY1, (int)Math.floor((scene.y + scene.getHeight() + margin - this.y) / chunkHeight));
+        }
+
+        SpriteBatch batch = SpriteBatch.getInstance();
+        Transform2D transform = batch.getTransform();
+        transform.push();
+        transform.translate((float)this.x, (float)this.y);
+        for(int chunkY = chunkY0; chunkY <= chunkY1; chunkY++) {
+            for(int chunkX = chunkX0; chunkX <= chunkX1; chunkX++) {
+                int index = chunkX + chunkY * this.chunkColumns;
+                if(this.dirty[index]) this.bakeChunk(chunkX, chunkY);
+                if(this.chunks[index].isEmpty()) continue;
+                batch.drawStatic(this.chunks[index]);
+                this.drawnChunks++;
+            }
+        }
+        transform.pop();
+    }
+
+    @Override
+    public void dispose() {
+        for(int i = 0; i < this.chunks.length; i++) {
+            if(this.chunks[i] instanceof StaticBatch) this.chunks[i].dispose();
+            this.chunks[i] = null;
+        }
+        super.dispose();
+    }
+}
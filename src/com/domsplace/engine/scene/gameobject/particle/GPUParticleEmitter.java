@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.scene.gameobject.particle;
+
+import com.domsplace.engine.display.batch.GPUParticleSystem;
+import com.domsplace.engine.display.batch.ParticleRenderer;
+import com.domsplace.engine.scene.GameScene;
+
+/**
+ * A ParticleEmitter whose particles are simulated on the GPU by a
+ * GPUParticleSystem, for effects of hundreds of thousands of particles. Same
+ * settings as ParticleEmitter, ticking only stages new particles and time,
+ * the system is stepped and drawn when the emitter renders.
+ *
+ * Where transform feedback isn't available it's just a ParticleEmitter with
+ * the same capacity, see isSimulatedOnGPU(). Create it on the main thread,
+ * that's where the check happens.
+ *
+ * On the GPU particles take the oldest slot once the capacity is used, rather
+ * than being dropped, and can't be read back through getParticles().
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public class GPUParticleEmitter extends ParticleEmitter {
+    //Constants
+    public static final int DEFAULT_CAPACITY = 262144;
+
+    //Instance
+    private final GPUParticleSystem system;//null when simulating on the CPU
+
+    public GPUParticleEmitter(GameScene scene) {
+        this(scene, DEFAULT_CAPACITY);
+    }
+
+    public GPUParticleEmitter(GameScene scene, int capacity) {
+        super(scene, ParticleRenderer.getInstance().isFeedbackAvailable() ? 1 : capacity);
+        this.system = ParticleRenderer.getInstance().isFeedbackAvailable() ? new GPUParticleSystem(capacity) : null;
+    }
+
+    public final GPUParticleSystem getSystem() {return this.system;}
+    public final boolean isSimulatedOnGPU() {return this.system instanceof GPUParticleSystem;}
+
+    //On the GPU this counts used slots, dead particles included
+    @Override
+    public int getParticleCount() {
+        if(this.system instanceof GPUParticleSystem) return this.system.getSlotCount();
+        return super.getParticleCount();
+    }
+
+    @Override
+    public int getCapacity() {
+        if(this.system instanceof GPUParticleSystem) return this.system.getCapacity();
+        return super.getCapacity();
+    }
+
+    @Override
+    protected void simulate(float dt) {
+        if(this.system instanceof GPUParticleSystem) {
+            this.system.addTime(dt);
+            return;
+        }
+        super.simulate(dt);
+    }
+
+    @Override
+    protected boolean spawn(float x, float y, float vx, float vy, float life, float size, int color, float frame) {
+        if(!(this.system instanceof GPUParticleSystem)) return super.spawn(x, y, vx, vy, life, size, color, frame);
+        return this.system.spawn(x, y, vx, vy, life, size,
+            ParticleBuffer.getChannel(color, 0) / 255f, ParticleBuffer.getChannel(color, 1) / 255f,
+            ParticleBuffer.getChannel(color, 2) / 255f, ParticleBuffer.getChannel(color, 3) / 255f,
+            frame
+        );
+    }
+
+    @Override
+    public void dispose() {
+        if(this.system instanceof GPUParticleSystem) this.system.dispose();
+        super.dispose();
+    }
+}
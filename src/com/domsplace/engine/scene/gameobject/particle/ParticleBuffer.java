@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.scene.gameobject.particle;
+
+import java.nio.ByteOrder;
+
+/**
+ * Particle state as parallel primitive arrays (structure of arrays), one slot
+ * per particle and a fixed capacity allocated up front. Live particles are
+ * always packed into [0, getCount()), a dying particle's slot is filled with
+ * the last live one, so spawning and killing never allocate and the update
+ * loops run over dense arrays with no per-particle objects.
+ *
+ * Colours are packed ints whose bytes sit in memory as r, g, b, a (see
+ * packColor), so they go to GL as-is as normalized unsigned bytes.
+ *
+ * Not thread safe, whoever ticks the buffer owns it until the frame is drawn.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public final class ParticleBuffer {
+    //Where alpha lives in a packed colour, depends on the platform's byte order
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    static final int ALPHA_SHIFT = LITTLE_ENDIAN ? 24 : 0;
+
+    public static int packColor(int r, int g, int b, int a) {
+        r &= 0xFF; g &= 0xFF; b &= 0xFF; a &= 0xFF;
+        if(LITTLE_ENDIAN) return r | (g << 8) | (b << 16) | (a << 24);
+        return (r << 24) | (g << 16) | (b << 8) | a;
+    }
+
+    public static int packColor(float r, float g, float b, float a) {
+        return packColor((int)(r * 255f + 0.5f), (int)(g * 255f + 0.5f), (int)(b * 255f + 0.5f), (int)(a * 255f + 0.5f));
+    }
+
+    //Channel 0 to 3 (r, g, b, a) of a packed colour, 0 to 255
+    public static int getChannel(int color, int channel) {
+        int shift = LITTLE_ENDIAN ? channel * 8 : (3 - channel) * 8;
+        return (color >>> shift) & 0xFF;
+    }
+
+    //Instance
+    private final int capacity;
+    private int count = 0;
+
+    public final float[] x;
+    public final float[] y;
+    public final float[] vx;
+    public final float[] vy;
+    public final float[] age;//Seconds lived
+    public final float[] life;//Seconds to live
+    public final float[] size;
+    public final float[] frame;//Starting frame in the texture's grid
+    public final int[] color;
+
+    public ParticleBuffer(int capacity) {
+        if(capacity <= 0) throw new IllegalArgumentException("Particle capacity must be positive.");
+        this.capacity = capacity;
+        this.x = new float[capacity];
+        this.y = new float[capacity];
+        this.vx = new float[capacity];
+        this.vy = new float[capacity];
+        this.age = new float[capacity];
+        this.life = new float[capacity];
+        this.size = new float[capacity];
+        this.frame = new float[capacity];
+        this.color = new int[capacity];
+    }
+
+    public int getCapacity() {return this.capacity;}
+    public int getCount() {return this.count;}
+    public boolean isFull() {return this.count == this.capacity;}
+
+    /**
+     * Takes the next free slot.
+     * @return the slot, or -1 if the buffer is full.
+     */
+    public int spawn(float x, float y, float vx, float vy, float life, float size, int color, float frame) {
+        if(this.count == this.capacity) return -1;
+        int i = this.count++;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.vx[i] = vx;
+        this.vy[i] = vy;
+        this.age[i] = 0;
+        this.life[i] = life;
+        this.size[i] = size;
+        this.color[i] = color;
+        this.frame[i] = frame;
+        return i;
+    }
+
+    /**
+     * Steps every live particle dt seconds. Motion is one straight loop per
+     * pass with no branches so the JIT can unroll and vectorise it, expired
+     * particles are removed afterwards in a separate pass.
+     * @param ax acceleration (gravity, wind) in units per second squared
+     * @param damping velocity kept per second, 1 for none
+     */
+    public void update(float dt, float ax, float ay, float damping) {
+        int n = this.count;
+        float[] x = this.x, y = this.y, vx = this.vx, vy = this.vy, age = this.age;
+
+        float keep = damping == 1f ? 1f : (float)Math.pow(damping, dt);
+        float dvx = ax * dt, dvy = ay * dt;
+        for(int i = 0; i < n; i++) {
+            vx[i] = vx[i] * keep + dvx;
+            vy[i] = vy[i] * keep + dvy;
+        }
+        for(int i = 0; i < n; i++) {
+            x[i] += vx[i] * dt;
+            y[i] += vy[i] * dt;
+            age[i] += dt;
+        }
+
+        this.removeExpired();
+    }
+
+    private void removeExpired() {
+        float[] age = this.age, life = this.life;
+        int n = this.count;
+        for(int i = 0; i < n;) {
+            if(age[i] < life[i]) {
+                i++;
+                continue;
+            }
+            n--;
+            this.move(n, i);//Check the moved one on the next pass
+        }
+        this.count = n;
+    }
+
+    private void move(int from, int to) {
+        this.x[to] = this.x[from];
+        this.y[to] = this.y[from];
+        this.vx[to] = this.vx[from];
+        this.vy[to] = this.vy[from];
+        this.age[to] = this.age[from];
+        this.life[to] = this.life[from];
+        this.size[to] = this.size[from];
+        this.frame[to] = this.frame[from];
+        this.color[to] = this.color[from];
+    }
+
+    public void kill(int slot) {
+        if(slot < 0 || slot >= this.count) return;
+        this.move(--this.count, slot);
+    }
+
+    public void clear() {this.count = 0;}
+}
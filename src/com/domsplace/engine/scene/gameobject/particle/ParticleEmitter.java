@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Dominic Masters <dominic@domsplace.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.domsplace.engine.scene.gameobject.particle;
+
+import com.domsplace.engine.display.batch.SpriteBatch;
+import com.domsplace.engine.game.Game;
+import com.domsplace.engine.scene.GameScene;
+import com.domsplace.engine.scene.gameobject.GameObject;
+import com.domsplace.engine.scene.gameobject.IParallelTickable;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * Spawns, moves and draws lots of short lived sprites as one scene object.
+ * Particles live in a ParticleBuffer (primitive arrays, fixed capacity) rather
+ * than being GameObjects, and all of them are drawn with one draw through
+ * ParticleRenderer.
+ *
+ * Particles are spawned inside the emitter's x, y, width, height and then
+ * live in scene space, moving the emitter doesn't drag existing ones along.
+ * The spawn settings are plain fields like the rest of GameObject's, read
+ * every tick. Frames are cells of a GameTexture's column/row grid, counted
+ * left to right then top to bottom.
+ *
+ * Ticking only touches the emitter's own state so it can run on the scene's
+ * tick workers.
+ *
+ * @author Dominic Masters <dominic@domsplace.com>
+ */
+public class ParticleEmitter extends GameObject implements IParallelTickable {
+    //Constants
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final float MAX_DELTA = 0.25f;//Longest step when measuring our own time
+
+    //Instance
+    private final ParticleBuffer particles;
+    private float spawnDebt = 0;
+    private long lastTick = -1;
+    private int seed;
+    private long dropped = 0;
+
+    //Spawning
+    public boolean emitting = true;
+    public float rate = 0;//Particles per second while emitting
+    public float minLife = 1f, maxLife = 1f;//Seconds
+    public float minSpeed = 0, maxSpeed = 0;
+    public float direction = 0;//Radians, 0 is +x
+    public float spread = (float)(Math.PI * 2);//Radians either side of direction combined
+    public float minSize = 8f, maxSize = 8f;
+    public int particleColor = ParticleBuffer.packColor(255, 255, 255, 255);
+
+    //Motion
+    public float gravityX = 0, gravityY = 0;
+    public float damping = 1f;//Velocity kept per second
+
+    //Looks
+    public boolean fadeOut = true;//Alpha falls to 0 over each particle's life
+    public boolean additive = false;
+    public int frameCount = 1;
+    public float frameRate = 0;//Frames per second, 0 to keep the spawn frame
+    public boolean randomFrame = false;//Spawn on a random frame rather than 0
+
+    public ParticleEmitter(GameScene scene) {
+        this(scene, DEFAULT_CAPACITY);
+    }
+
+    public ParticleEmitter(GameScene scene, int capacity) {
+        super(scene);
+        this.particles = new ParticleBuffer(capacity);
+        this.cullable = false;//Particles go wherever they like
+        this.width = 0;
+        this.height = 0;
+        this.seed = (int)System.nanoTime() | 1;
+    }
+
+    public final ParticleBuffer getParticles() {return this.particles;}
+    public int getParticleCount() {return this.particles.getCount();}
+    public int getCapacity() {return this.particles.getCapacity();}
+    public final long getDroppedCount() {return this.dropped;}//Spawns lost to a full buffer
+
+    //Seconds per tick, or measured ourselves when the game ticks once a frame
+    private float getDelta() {
+        Game game = this.getScene() instanceof GameScene ? this.getScene().getGame() : null;
+        double delta = game instanceof Game ? game.getTickDelta() : 0;
+        if(delta > 0) return (float)delta;
+        long now = System.nanoTime();
+        float measured = this.lastTick == -1 ? 0 : Math.min(MAX_DELTA, (now - this.lastTick) / 1000000000f);
+        this.lastTick = now;
+        return measured;
+    }
+
+    /**
+     * How far back particles are drawn from where they are, so they line up
+     * with interpolated objects between ticks.
+     */
+    public float getInterpolationLag() {
+        Game game = this.getScene() instanceof GameScene ? this.getScene().getGame() : null;
+        if(!(game instanceof Game) || game.getTickRate() <= 0) return 0;
+        return (float)((1d - game.getInterpolationAlpha()) * game.getTickDelta());
+    }
+
+    @Override
+    public void tick() {
+        this.update(this.getDelta());
+    }
+
+    /**
+     * Steps everything dt seconds, then spawns whatever the rate owes.
+     */
+    public void update(float dt) {
+        this.simulate(dt);
+        if(!this.emitting || this.rate <= 0) return;
+        this.spawnDebt += this.rate * dt;
+        int count = (int)this.spawnDebt;
+        this.spawnDebt -= count;
+        this.emit(count);
+    }
+
+    //Moves the live particles dt seconds
+    protected void simulate(float dt) {
+        this.particles.update(dt, this.gravityX, this.gravityY, this.damping);
+    }
+
+    /**
+     * Spawns count particles from the current settings.
+     * @return how many fit.
+     */
+    public int emit(int count) {
+        int spawned = 0;
+        for(; spawned < count; spawned++) {
+            float angle = this.direction + (this.nextFloat() - 0.5f) * this.spread;
+            float speed = this.lerp(this.minSpeed, this.maxSpeed);
+            float frame = this.randomFrame && this.frameCount > 1 ? (int)(this.nextFloat() * this.frameCount) : 0;
+            boolean fit = this.spawn(
+                (float)(this.x + this.nextFloat() * this.width), (float)(this.y + this.nextFloat() * this.height),
+                (float)Math.cos(angle) * speed, (float)Math.sin(angle) * speed,
+                this.lerp(this.minLife, this.maxLife), this.lerp(this.minSize, this.maxSize),
+                this.particleColor, frame
+            );
+            if(!fit) break;
+        }
+        this.dropped += count - spawned;
+        return spawned;
+    }
+
+    //Where emit() puts each particle, false if there's no room
+    protected boolean spawn(float x, float y, float vx, float vy, float life, float size, int color, float frame) {
+        return this.particles.spawn(x, y, vx, vy, life, size, color, frame) != -1;
+    }
+
+    //Xorshift, cheaper than Random and nothing else touches it
+    private float nextFloat() {
+        int s = this.seed;
+        s ^= s << 13;
+        s ^= s >>> 17;
+        s ^= s << 5;
+        this.seed = s;
+        return (s >>> 8) / 16777216f;
+    }
+
+    private float lerp(float min, float max) {
+        return min == max ? min : min + (max - min) * this.nextFloat();
+    }
+
+    //The frame particle i is on, accounting for frameRate
+    public float getFrame(int i) {
+        float frame = this.particles.frame[i];
+        if(this.frameRate <= 0 || this.frameCount <= 1) return frame;
+        return ((int)frame + (int)(this.particles.age[i] * this.frameRate)) % this.frameCount;//Int %, float % is a slow runtime call
+    }
+
+    //Particle i's packed colour, faded if fadeOut is on
+    public int getColor(int i) {
+        int color = this.particles.color[i];
+        if(!this.fadeOut) return color;
+        int shift = ParticleBuffer.ALPHA_SHIFT;
+        float left = 1f - this.particles.age[i] / this.particles.life[i];
+        int alpha = (int)(((color >>> shift) & 0xFF) * Math.max(0f, left));
+        return (color & ~(0xFF << shift)) | (alpha << shift);
+    }
+
+    /**
+     * Writes particles [from, to) as x, y, size, frame floats and a packed
+     * colour each, 5 words per particle starting at index 0 of both views
+     * (which must share the same memory). Positions are moved back lag
+     * seconds along their velocity.
+     */
+    public void pack(int from, int to, FloatBuffer floats, IntBuffer colors, float lag) {
+        ParticleBuffer p = this.particles;
+        float[] x = p.x, y = p.y, vx = p.vx, vy = p.vy, size = p.size;
+        boolean frames = this.frameRate > 0 && this.frameCount > 1;
+        boolean fade = this.fadeOut;
+        int o = 0;
+        for(int i = from; i < to; i++) {
+            floats.put(o, x[i] - vx[i] * lag);
+            floats.put(o + 1, y[i] - vy[i] * lag);
+            floats.put(o + 2, size[i]);
+            floats.put(o + 3, frames ? this.getFrame(i) : p.frame[i]);
+            colors.put(o + 4, fade ? this.getColor(i) : p.color[i]);
+            o += 5;
+        }
+    }
+
+    @Override
+    public void render() {
+        if(this.getParticleCount() == 0) return;
+        SpriteBatch batch = SpriteBatch.getInstance();
+        if(this.additive) batch.setBlendFunc(GL_SRC_ALPHA, GL_ONE);
+        batch.drawParticles(this);
+        if(this.additive) batch.setBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+    }
+
+    @Override
+    public void dispose() {
+        this.particles.clear();
+        super.dispose();
+    }
+}
@@ -44,6 +44,16 @@ public class SoundPlayer implements IDisposable {
         return new ArrayList<SoundPlayer>(LOADED_PLAYERS);
     }
 
+    //Counted without copying the list, cheap enough to call every frame
+    public static int getPlayingCount() {
+        int count = 0;
+        for(int i = 0; i < LOADED_PLAYERS.size(); i++) {
+            SoundPlayer sp = LOADED_PLAYERS.get(i);
+            if(sp instanceof SoundPlayer && sp.isPlaying()) count++;
+        }
+        return count;
+    }
+
     public static final void cleanup() throws Exception {
         for (SoundPlayer sp : getAllPlayers()) {
             sp.dispose();
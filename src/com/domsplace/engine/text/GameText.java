@@ -15,36 +15,46 @@
  */
 package com.domsplace.engine.text;
 
+import com.domsplace.engine.display.Transform2D;
+import com.domsplace.engine.display.batch.SpriteBatch;
 import com.domsplace.engine.scene.gameobject.GameObject;
 import com.domsplace.engine.scene.GameScene;
 import java.awt.Color;
 import java.nio.FloatBuffer;
-import static org.lwjgl.opengl.GL11.*;
+import org.lwjgl.BufferUtils;
 import org.lwjgl.stb.STBTTAlignedQuad;
 import static org.lwjgl.stb.STBTruetype.*;
-import org.lwjgl.system.MemoryStack;
-import static org.lwjgl.system.MemoryStack.stackPush;
 
 /**
  *
  * @author Dominic Masters <dominic@domsplace.com>
  */
 public class GameText extends GameObject {
-    private String text = "Line 1111111111111111\nLine 2\nLine 3";
+    private CharSequence text = "Line 1111111111111111\nLine 2\nLine 3";
     
     //Instance
     private int fontSize = 12;
     
+    //Reused every render so drawing text doesn't allocate
+    private final FloatBuffer penX = BufferUtils.createFloatBuffer(1);
+    private final FloatBuffer penY = BufferUtils.createFloatBuffer(1);
+    private final STBTTAlignedQuad quad = STBTTAlignedQuad.create();
+    
+    //Glyph extents from the last renderMesh, unscaled. Unknown until then
+    private boolean measured = false;
+    private float meshX0, meshY0, meshX1, meshY1;
+    
     public GameText(GameScene scene) {
         super(scene);
     }
     
     public FontTexture getFont() {return texture instanceof FontTexture ? (FontTexture)texture : null;}
-    public String getText() {return text;}
+    public String getText() {return text.toString();}
     public int getFontSize() {return fontSize;}
 
     public void setFont(FontTexture font) {this.texture = font;}
-    public void setText(String text) {this.text = text;}
+    //Read at render time, a StringBuilder can be rewritten in place between frames
+    public void setText(CharSequence text) {this.text = text;}
     public void setFontSize(int fs) {this.fontSize = fs;}
     
     public final float getFontScale() {return fontSize * 0.055f;}
@@ -53,55 +63,60 @@ public class GameText extends GameObject {
     public void renderMesh() {
         if(!(getFont() instanceof FontTexture)) return;
         
-        try (MemoryStack stack = stackPush()) {
-            this.width = 0;
-            this.height = getFont().getFontSize();
-            
-            FloatBuffer x = stack.floats(0.0f);
-            FloatBuffer y = stack.floats((float)(this.height*0.8f));
-
-            STBTTAlignedQuad q = STBTTAlignedQuad.mallocStack(stack);
-
-            glBegin(GL_QUADS);
-            for (int i = 0; i < text.length(); i++) {
-                char c = text.charAt(i);
-                if (c == '\n') {
-                    this.height += getFont().getFontSize()*getFontScale();
-                    
-                    y.put(0, y.get(0) + getFont().getFontSize()*0.8f);
-                    x.put(0, 0.0f);
-                    continue;
-                } else if (c < getFont().getGlyphStart() || 128 <= c) {
-                    continue;
-                }
-                stbtt_GetBakedQuad(getFont().getCharacterData(), getFont().getWidth(), getFont().getHeight(), c - getFont().getGlyphStart(), x, y, q, true);
-                
-                glTexCoord2f(q.s0(), q.t0());
-                glVertex2f(q.x0(), q.y0());
-
-                glTexCoord2f(q.s1(), q.t0());
-                glVertex2f(q.x1(), q.y0());
-
-                glTexCoord2f(q.s1(), q.t1());
-                glVertex2f(q.x1(), q.y1());
-
-                glTexCoord2f(q.s0(), q.t1());
-                glVertex2f(q.x0(), q.y1());
+        this.width = 0;
+        this.height = getFont().getFontSize();
+        
+        float x0 = 0, y0 = 0, x1 = 0, y1 = 0;
+        
+        FloatBuffer x = this.penX;
+        FloatBuffer y = this.penY;
+        x.put(0, 0.0f);
+        y.put(0, (float)(this.height*0.8f));
+        
+        STBTTAlignedQuad q = this.quad;
+        SpriteBatch batch = SpriteBatch.getInstance();
+        CharSequence text = this.text;
+        
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                this.height += getFont().getFontSize()*getFontScale();
                 
-                this.width = Math.max(this.width, x.get(0)*getFontScale());
+                y.put(0, y.get(0) + getFont().getFontSize()*0.8f);
+                x.put(0, 0.0f);
+                continue;
+            } else if (c < getFont().getGlyphStart() || 128 <= c) {
+                continue;
             }
-            glEnd();
+            stbtt_GetBakedQuad(getFont().getCharacterData(), getFont().getWidth(), getFont().getHeight(), c - getFont().getGlyphStart(), x, y, q, true);
             
-            this.width *= this.getFontScale();
-            this.height *= this.getFontScale();
+            batch.quad(q.x0(), q.y0(), q.x1(), q.y1(), q.s0(), q.t0(), q.s1(), q.t1());
+            x0 = Math.min(x0, q.x0()); y0 = Math.min(y0, q.y0());
+            x1 = Math.max(x1, q.x1()); y1 = Math.max(y1, q.y1());
+            
+            this.width = Math.max(this.width, x.get(0)*getFontScale());
         }
+        
+        this.width *= this.getFontScale();
+        this.height *= this.getFontScale();
+        
+        this.meshX0 = x0; this.meshY0 = y0; this.meshX1 = x1; this.meshY1 = y1;
+        this.measured = true;
     }
     
+    //render() scales the position along with the glyphs, and nothing is known
+    //about the size until the first renderMesh, so it's never culled till then
+    @Override public double getBoundsLeft(double x) {return measured ? (x + meshX0) * getFontScale() : Double.NEGATIVE_INFINITY;}
+    @Override public double getBoundsRight(double x) {return measured ? (x + meshX1) * getFontScale() : Double.POSITIVE_INFINITY;}
+    @Override public double getBoundsTop(double y) {return measured ? (y + meshY0) * getFontScale() : Double.NEGATIVE_INFINITY;}
+    @Override public double getBoundsBottom(double y) {return measured ? (y + meshY1) * getFontScale() : Double.POSITIVE_INFINITY;}
+    
     @Override
     public void render() {
-        glPushMatrix();
-        glScaled(this.getFontScale(),this.getFontScale(),1);
+        Transform2D transform = SpriteBatch.getInstance().getTransform();
+        transform.push();
+        transform.scale(this.getFontScale(),this.getFontScale());
         super.render();
-        glPopMatrix();
+        transform.pop();
     }
 }